@@ -17,6 +17,7 @@ import org.kde.kdeconnect.NetworkPacket;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 
 public abstract class BaseLink {
@@ -28,6 +29,11 @@ public abstract class BaseLink {
     protected final Context context;
     private final BaseLinkProvider linkProvider;
     private final ArrayList<PacketReceiver> receivers = new ArrayList<>();
+    protected final PayloadTransferExecutor payloadTransfers = new PayloadTransferExecutor();
+
+    private long healthCheckIntervalMillis = -1; // From the settings unless set
+    private int healthCheckMaxMissedAcks = LinkHealthMonitor.DEFAULT_MAX_MISSED_ACKS;
+    private volatile LinkHealthMonitor healthMonitor = null;
 
     protected BaseLink(@NonNull Context context, @NonNull BaseLinkProvider linkProvider) {
         this.context = context;
@@ -47,6 +53,14 @@ public abstract class BaseLink {
         return linkProvider;
     }
 
+    /**
+     * Where this link sends payloads from, see {@link #sendPacket}. Its maxConcurrentTransfers can be
+     * changed to limit how many payloads are sent at the same time over this link.
+     */
+    public PayloadTransferExecutor getPayloadTransfers() {
+        return payloadTransfers;
+    }
+
     public void addPacketReceiver(@NonNull PacketReceiver pr) {
         receivers.add(pr);
     }
@@ -54,6 +68,32 @@ public abstract class BaseLink {
         receivers.remove(pr);
     }
 
+    /**
+     * Handles the link health packets, which aren't meant for the device, and counts any other packet
+     * as a sign of life. Has to be called by the reader as soon as a packet is read, before it's queued
+     * for delivery: behind a busy plugin, pings and acks could wait long enough for a healthy link to
+     * be taken for a dead one.
+     *
+     * @return true if the packet was handled, and must not be passed to {@link #packetReceived}
+     */
+    protected boolean handleLinkHealthPacket(@NonNull NetworkPacket np) {
+        LinkHealthMonitor monitor = healthMonitor;
+        if (LinkHealthMonitor.PACKET_TYPE_ACK.equals(np.getType())) {
+            if (monitor != null) {
+                monitor.onAckReceived(np);
+            }
+            return true;
+        }
+        if (monitor != null) {
+            monitor.onPacketReceived(); // The other end's pings count too, so only one end has to ping
+        }
+        if (LinkHealthMonitor.PACKET_TYPE_PING.equals(np.getType())) {
+            LinkHealthMonitor.onPingReceived(this, np);
+            return true;
+        }
+        return false;
+    }
+
     //Should be called from a background thread listening for packets
     public void packetReceived(@NonNull NetworkPacket np) {
         for(PacketReceiver pr : receivers) {
@@ -65,7 +105,80 @@ public abstract class BaseLink {
         linkProvider.onConnectionLost(this);
     }
 
-    //TO OVERRIDE, should be sync. If sendPayloadFromSameThread is false, it should only block to send the packet but start a separate thread to send the payload.
+    /**
+     * Sets how often the link is checked once the health monitor is (re)started, instead of what's
+     * chosen in the settings, and after how many pings without an ack it's considered dead. An
+     * interval of 0 turns the checks off. See {@link LinkHealthMonitor}.
+     */
+    public void setHealthCheck(long intervalMillis, int maxMissedAcks) {
+        this.healthCheckIntervalMillis = intervalMillis;
+        this.healthCheckMaxMissedAcks = maxMissedAcks;
+    }
+
+    /**
+     * Starts checking that the link is alive, if the other end supports it. Links should call it
+     * every time they get a new connection.
+     */
+    protected void startHealthMonitor() {
+        stopHealthMonitor();
+        long intervalMillis = healthCheckIntervalMillis >= 0
+                ? healthCheckIntervalMillis
+                : LinkHealthMonitor.getConfiguredIntervalMillis(context);
+        if (intervalMillis > 0 && LinkFeatures.isEnabled(getDeviceInfo(), LinkFeatures.LINK_HEALTH)) {
+            LinkHealthMonitor monitor = new LinkHealthMonitor(this, intervalMillis, healthCheckMaxMissedAcks);
+            healthMonitor = monitor;
+            monitor.start();
+        }
+    }
+
+    protected void stopHealthMonitor() {
+        LinkHealthMonitor monitor = healthMonitor;
+        healthMonitor = null;
+        if (monitor != null) {
+            monitor.stop();
+        }
+    }
+
+    /**
+     * Called when the health monitor finds the link dead. By default it disconnects the link.
+     */
+    protected void onHealthCheckFailed(@NonNull IOException reason) {
+        disconnect();
+    }
+
+    /**
+     * @return the smoothed round trip time of the link in milliseconds, or a negative number if it
+     * isn't known (eg: the other end doesn't support {@link LinkFeatures#LINK_HEALTH})
+     */
+    public double getSmoothedRttMillis() {
+        LinkHealthMonitor monitor = healthMonitor;
+        return monitor != null ? monitor.getSmoothedRttMillis() : -1;
+    }
+
+    /**
+     * @return whether the last pings sent over the link went unanswered. It's not dead yet, but
+     * packets sent over it will probably be lost or delayed. Always false if the link isn't checked.
+     */
+    public boolean isUnresponsive() {
+        LinkHealthMonitor monitor = healthMonitor;
+        return monitor != null && monitor.getUnackedPings() > 1;
+    }
+
+    //TO OVERRIDE, should be sync. If sendPayloadFromSameThread is false, it should only block to send the packet and leave the payload to payloadTransfers.
+    //Either way the callback gets onSuccess or onFailure once the payload has been sent.
     @WorkerThread
     public abstract boolean sendPacket(@NonNull NetworkPacket np, @NonNull Device.SendPacketStatusCallback callback, boolean sendPayloadFromSameThread) throws IOException;
+
+    /**
+     * Sends several packets without payload at once, in order. Links that can write them together
+     * (eg: in a single TLS record) should override this.
+     *
+     * @return how many of the packets were sent, counting from the first one. Only the callbacks of
+     * the packets sent are called: the caller sends the rest one by one with sendPacket(), which
+     * is all that happens with links that don't override this.
+     */
+    @WorkerThread
+    public int sendPackets(@NonNull List<Device.NetworkPacketWithCallback> packets) throws IOException {
+        return 0;
+    }
 }
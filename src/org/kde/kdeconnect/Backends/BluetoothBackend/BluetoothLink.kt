@@ -13,16 +13,18 @@ import androidx.annotation.WorkerThread
 import org.json.JSONException
 import org.json.JSONObject
 import org.kde.kdeconnect.Backends.BaseLink
+import org.kde.kdeconnect.Backends.LinkFeatures
+import org.kde.kdeconnect.Backends.PayloadTransferExecutor
 import org.kde.kdeconnect.Device
 import org.kde.kdeconnect.DeviceInfo
 import org.kde.kdeconnect.NetworkPacket
+import org.kde.kdeconnect.NetworkPacketParser
+import org.kde.kdeconnect.NetworkPacketWriter
 import java.io.IOException
 import java.io.InputStream
-import java.io.InputStreamReader
+import java.io.InterruptedIOException
 import java.io.OutputStream
-import java.io.Reader
 import java.util.UUID
-import kotlin.text.Charsets.UTF_8
 
 class BluetoothLink(
     context: Context?,
@@ -35,30 +37,38 @@ class BluetoothLink(
 ) : BaseLink(context!!, linkProvider) {
     private val connection: ConnectionMultiplexer? = connection
     private var continueAccepting = true
+    private val packetWriter = NetworkPacketWriter()
     private val receivingThread = Thread(object : Runnable {
         override fun run() {
-            val sb = StringBuilder()
+            val parser = NetworkPacketParser(MAX_PACKET_SIZE)
             try {
-                val reader: Reader = InputStreamReader(input, UTF_8)
-                val buf = CharArray(512)
+                val buf = ByteArray(4096)
                 while (continueAccepting) {
-                    while (sb.indexOf("\n") == -1 && continueAccepting) {
-                        var charsRead: Int
-                        if (reader.read(buf).also { charsRead = it } > 0) {
-                            sb.append(buf, 0, charsRead)
+                    val bytesRead = input.read(buf)
+                    if (bytesRead < 0) {
+                        disconnect()
+                        return
+                    }
+                    var offset = 0
+                    while (offset < bytesRead && continueAccepting) {
+                        offset += parser.feed(buf, offset, bytesRead - offset)
+                        val np = try {
+                            parser.takePacket()
+                        } catch (e: JSONException) {
+                            Log.e("BluetoothLink/receiving", "Unable to parse message.", e)
+                            continue
                         }
-                        if (charsRead < 0) {
-                            disconnect()
-                            return
+                        if (np != null) {
+                            if (!handleLinkHealthPacket(np)) {
+                                processPacket(np)
+                            }
+                        } else if (offset < bytesRead && parser.isIdle) {
+                            // The parser stopped before the end, at a zero byte, which can't start a
+                            // packet. Whitespace between packets is consumed by the parser instead
+                            Log.e("BluetoothLink/receiving", "Unexpected binary data, skipping it")
+                            offset++
                         }
                     }
-                    if (!continueAccepting) break
-                    val endIndex = sb.indexOf("\n")
-                    if (endIndex != -1) {
-                        val message = sb.substring(0, endIndex + 1)
-                        sb.delete(0, endIndex + 1)
-                        processMessage(message)
-                    }
                 }
             } catch (e: IOException) {
                 Log.e("BluetoothLink/receiving", "Connection to " + remoteAddress.address + " likely broken.", e)
@@ -66,13 +76,7 @@ class BluetoothLink(
             }
         }
 
-        private fun processMessage(message: String) {
-            val np = try {
-                NetworkPacket.unserialize(message)
-            } catch (e: JSONException) {
-                Log.e("BluetoothLink/receiving", "Unable to parse message.", e)
-                return
-            }
+        private fun processPacket(np: NetworkPacket) {
             if (np.hasPayloadTransferInfo()) {
                 try {
                     val transferUuid = UUID.fromString(np.payloadTransferInfo.getString("uuid"))
@@ -86,8 +90,14 @@ class BluetoothLink(
         }
     })
 
+    init {
+        // The bandwidth is small enough that sending payloads in parallel only makes each of them slower
+        payloadTransfers.maxConcurrentTransfers = 1
+    }
+
     fun startListening() {
         receivingThread.start()
+        startHealthMonitor()
     }
 
     override fun getName(): String {
@@ -103,6 +113,7 @@ class BluetoothLink(
             return
         }
         continueAccepting = false
+        stopHealthMonitor()
         try {
             connection.close()
         } catch (ignored: IOException) {
@@ -112,15 +123,52 @@ class BluetoothLink(
 
     @Throws(JSONException::class, IOException::class)
     private fun sendMessage(np: NetworkPacket) {
-        val message = np.serialize().toByteArray(UTF_8)
-        output.write(message)
+        synchronized(packetWriter) {
+            try {
+                packetWriter.write(np, LinkFeatures.isEnabled(theDeviceInfo, LinkFeatures.COMPRESSED_BODIES))
+                packetWriter.writeTo(output)
+            } finally {
+                packetWriter.recycle()
+            }
+        }
     }
 
     @WorkerThread
     @Throws(IOException::class)
     override fun sendPacket(np: NetworkPacket, callback: Device.SendPacketStatusCallback, sendPayloadFromSameThread: Boolean): Boolean {
-        // sendPayloadFromSameThread is ignored, we always send from the same thread!
+        if (!np.hasPayload()) {
+            return sendPacket(np, callback, null, false)
+        }
+        // The other end won't wait long for the payload once it gets the packet, so until it can be
+        // sent right away the packet is parked instead of holding up the ones behind it
+        val reservation = if (sendPayloadFromSameThread) {
+            try {
+                payloadTransfers.reserve()
+            } catch (e: InterruptedIOException) {
+                np.payload!!.close()
+                callback.onFailure(e)
+                return false
+            }
+        } else {
+            payloadTransfers.tryReserve() ?: run {
+                payloadTransfers.park(np) { parkedReservation -> sendPacket(np, callback, parkedReservation, false) }
+                return true
+            }
+        }
+        return sendPacket(np, callback, reservation, sendPayloadFromSameThread)
+    }
 
+    /**
+     * @param reservation the transfer slot for the payload, if the packet has one
+     */
+    @WorkerThread
+    private fun sendPacket(
+        np: NetworkPacket,
+        callback: Device.SendPacketStatusCallback,
+        reservation: PayloadTransferExecutor.Reservation?,
+        sendPayloadFromSameThread: Boolean
+    ): Boolean {
+        var payloadSubmitted = false
         return try {
             var transferUuid: UUID? = null
             if (np.hasPayload()) {
@@ -131,32 +179,52 @@ class BluetoothLink(
             }
             sendMessage(np)
             if (transferUuid != null) {
-                try {
-                    connection!!.getChannelOutputStream(transferUuid).use { payloadStream ->
-                        val BUFFER_LENGTH = 1024
-                        val buffer = ByteArray(BUFFER_LENGTH)
-                        var bytesRead: Int
-                        var progress: Long = 0
-                        val stream = np.payload!!.inputStream!!
-                        while (stream.read(buffer).also { bytesRead = it } != -1) {
-                            progress += bytesRead.toLong()
-                            payloadStream.write(buffer, 0, bytesRead)
-                            if (np.payloadSize > 0) {
-                                callback.onPayloadProgressChanged((100 * progress / np.payloadSize).toInt())
-                            }
-                        }
-                        payloadStream.flush()
-                    }
-                } catch (e: Exception) {
-                    callback.onFailure(e)
-                    return false
-                }
+                // From now on the transfer closes the payload and tells the callback how it went
+                payloadSubmitted = true
+                val result = payloadTransfers.submit(reservation!!, np, callback) { sendPayload(np, callback, transferUuid) }
+                return !sendPayloadFromSameThread || PayloadTransferExecutor.await(result)
             }
             callback.onSuccess()
             true
         } catch (e: Exception) {
-            callback.onFailure(e)
+            if (!payloadSubmitted) {
+                callback.onFailure(e)
+            }
             false
+        } finally {
+            if (np.hasPayload() && !payloadSubmitted) {
+                np.payload!!.close()
+            }
+            if (!payloadSubmitted) {
+                reservation?.release()
+            }
         }
     }
+
+    @Throws(IOException::class)
+    private fun sendPayload(np: NetworkPacket, callback: Device.SendPacketStatusCallback, transferUuid: UUID) {
+        try {
+            connection!!.getChannelOutputStream(transferUuid).use { payloadStream ->
+                val BUFFER_LENGTH = 1024
+                val buffer = ByteArray(BUFFER_LENGTH)
+                var bytesRead: Int
+                var progress: Long = 0
+                val stream = np.payload!!.inputStream!!
+                while (!np.isCanceled && stream.read(buffer).also { bytesRead = it } != -1) {
+                    progress += bytesRead.toLong()
+                    payloadStream.write(buffer, 0, bytesRead)
+                    if (np.payloadSize > 0) {
+                        callback.onPayloadProgressChanged((100 * progress / np.payloadSize).toInt())
+                    }
+                }
+                payloadStream.flush()
+            }
+        } finally {
+            np.payload!!.close()
+        }
+    }
+
+    companion object {
+        private const val MAX_PACKET_SIZE = NetworkPacketParser.DEFAULT_MAX_PACKET_SIZE
+    }
 }
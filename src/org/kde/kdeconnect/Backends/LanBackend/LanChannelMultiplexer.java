@@ -0,0 +1,379 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams payloads over the main connection of a {@link LanLink} instead of opening a new socket for
+ * each of them, like the {@link org.kde.kdeconnect.Backends.BluetoothBackend.ConnectionMultiplexer}
+ * does for Bluetooth. Only used if both devices announce
+ * {@link org.kde.kdeconnect.Backends.LinkFeatures#PAYLOAD_MULTIPLEXING}.
+ * <p>
+ * Channels are one-way: the sender of a payload opens a channel and writes to it, the receiver reads
+ * from it. Messages are sent as binary frames (see {@link LanReaderEngine}) containing the message
+ * type, the channel id and the message data. OPEN, DATA and END go from the sender to the receiver
+ * and CREDIT and CANCEL from the receiver to the sender, so each side allocates the ids for the
+ * channels it opens without clashing with the other side.
+ * <p>
+ * Each channel can have at most {@link #WINDOW_SIZE} bytes in flight, and the receiver returns
+ * credits as it consumes them. That way a payload nobody is reading can't fill the connection and
+ * block the packets and the other payloads behind it. Data is sent in chunks that fit in one TLS
+ * record, so a packet never waits for more than one chunk per active transfer.
+ */
+class LanChannelMultiplexer {
+
+    static final byte MESSAGE_OPEN = 1; // Sender opens a channel
+    static final byte MESSAGE_DATA = 2; // Sender writes some bytes
+    static final byte MESSAGE_END = 3; // Sender finished writing
+    static final byte MESSAGE_CREDIT = 4; // Receiver allows the sender to write more bytes
+    static final byte MESSAGE_CANCEL = 5; // Receiver is not interested in the rest of the data
+
+    private static final int MESSAGE_HEADER_SIZE = 1 + 4; // Type and channel id
+    private static final int FRAME_HEADER_SIZE = LanReaderEngine.BINARY_FRAME_HEADER_SIZE + MESSAGE_HEADER_SIZE;
+
+    static final int MAX_CHUNK_SIZE = 16 * 1024 - FRAME_HEADER_SIZE; // So a chunk fits in a single TLS record
+    static final int WINDOW_SIZE = 256 * 1024;
+
+    private final LanTlsChannel channel;
+    private final AtomicInteger nextChannelId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, OutgoingChannel> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, IncomingChannel> incoming = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    LanChannelMultiplexer(@NonNull LanTlsChannel channel) {
+        this.channel = channel;
+    }
+
+    LanTlsChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Whether a payload that was already taken is still arriving, in which case we must keep reading
+     * from the connection: whoever took it might be waiting for the rest.
+     */
+    boolean isReceivingPayloads() {
+        for (IncomingChannel incomingChannel : incoming.values()) {
+            if (incomingChannel.isTaken()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens a channel to send a payload. The id has to be sent to the other end along with the
+     * packet, which must be sent after calling this. Closing the stream ends the payload.
+     */
+    @NonNull
+    OutgoingChannel openChannel() throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        OutgoingChannel outgoingChannel = new OutgoingChannel(nextChannelId.getAndIncrement());
+        outgoing.put(outgoingChannel.id, outgoingChannel);
+        try {
+            sendMessage(MESSAGE_OPEN, outgoingChannel.id, null, 0, 0);
+        } catch (IOException e) {
+            outgoing.remove(outgoingChannel.id);
+            throw e;
+        }
+        return outgoingChannel;
+    }
+
+    /**
+     * Hands over the stream for a payload the other end opened, or returns null if there's no such
+     * channel or it was already taken. Must be called in order with the frames received, ie: from the
+     * reader thread, as soon as the packet announcing the payload arrives.
+     * <p>
+     * The channel is forgotten once it's taken and the other end finished writing, or when the stream
+     * is closed. So whoever takes it has to close it, even if the payload isn't read.
+     */
+    @Nullable
+    InputStream takeIncomingChannel(int id) {
+        IncomingChannel incomingChannel = incoming.get(id);
+        if (incomingChannel == null || !incomingChannel.take()) {
+            return null;
+        }
+        if (incomingChannel.isEnded()) {
+            incoming.remove(id);
+        }
+        return incomingChannel;
+    }
+
+    /**
+     * Called from the reader thread, must not block.
+     */
+    void onFrameReceived(@NonNull ByteBuffer frame) throws IOException {
+        if (frame.remaining() < MESSAGE_HEADER_SIZE) {
+            throw new IOException("Multiplexer message too short");
+        }
+        byte type = frame.get();
+        int id = frame.getInt();
+        switch (type) {
+            case MESSAGE_OPEN:
+                incoming.put(id, new IncomingChannel(id));
+                break;
+            case MESSAGE_DATA: {
+                IncomingChannel incomingChannel = incoming.get(id);
+                if (incomingChannel != null) { // Otherwise, it was canceled and this was already in flight
+                    incomingChannel.onData(frame);
+                }
+                break;
+            }
+            case MESSAGE_END: {
+                IncomingChannel incomingChannel = incoming.get(id);
+                if (incomingChannel != null && incomingChannel.onEnd()) {
+                    incoming.remove(id); // Nothing else will come for it, and it was already taken
+                }
+                break;
+            }
+            case MESSAGE_CREDIT: {
+                OutgoingChannel outgoingChannel = outgoing.get(id);
+                if (outgoingChannel != null) {
+                    outgoingChannel.addCredits(frame.getInt());
+                }
+                break;
+            }
+            case MESSAGE_CANCEL: {
+                OutgoingChannel outgoingChannel = outgoing.get(id);
+                if (outgoingChannel != null) {
+                    outgoingChannel.cancel();
+                }
+                break;
+            }
+            default:
+                throw new IOException("Invalid multiplexer message type " + type);
+        }
+    }
+
+    /**
+     * Fails all the open channels, because the connection they were using is gone.
+     */
+    void close() {
+        closed = true;
+        for (OutgoingChannel outgoingChannel : outgoing.values()) {
+            outgoingChannel.cancel();
+        }
+        outgoing.clear();
+        for (IncomingChannel incomingChannel : incoming.values()) {
+            incomingChannel.fail();
+        }
+        incoming.clear();
+    }
+
+    private void sendMessage(byte type, int id, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.put(LanReaderEngine.BINARY_FRAME_MARKER);
+        header.putInt(MESSAGE_HEADER_SIZE + length);
+        header.put(type);
+        header.putInt(id);
+        header.flip();
+        if (length > 0) {
+            channel.write(header, ByteBuffer.wrap(data, offset, length));
+        } else {
+            channel.write(header);
+        }
+    }
+
+    class OutgoingChannel extends OutputStream {
+        final int id;
+        private int credits = WINDOW_SIZE; // Guarded by this
+        private boolean canceled = false; // Guarded by this
+        private boolean closed = false;
+
+        OutgoingChannel(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk;
+                synchronized (this) {
+                    while (credits == 0 && !canceled) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (canceled) {
+                        throw new IOException("Payload canceled by the other end");
+                    }
+                    chunk = Math.min(Math.min(len, credits), MAX_CHUNK_SIZE);
+                    credits -= chunk;
+                }
+                sendMessage(MESSAGE_DATA, id, b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        synchronized void addCredits(int amount) {
+            credits += amount;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            notifyAll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outgoing.remove(id);
+            boolean sendEnd;
+            synchronized (this) {
+                sendEnd = !canceled;
+            }
+            if (sendEnd) {
+                sendMessage(MESSAGE_END, id, null, 0, 0);
+            }
+        }
+    }
+
+    private class IncomingChannel extends InputStream {
+        final int id;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WINDOW_SIZE); // In write mode, guarded by this
+        private int consumedSinceLastCredit = 0; // Guarded by this
+        private boolean ended = false; // Guarded by this
+        private boolean failed = false; // Guarded by this
+        private boolean taken = false; // Guarded by this
+        private boolean closed = false;
+
+        IncomingChannel(int id) {
+            this.id = id;
+        }
+
+        synchronized void onData(ByteBuffer data) throws IOException {
+            if (data.remaining() > buffer.remaining()) {
+                throw new IOException("Received more data than allowed on channel " + id);
+            }
+            buffer.put(data);
+            notifyAll();
+        }
+
+        /**
+         * @return whether the channel was already taken
+         */
+        synchronized boolean onEnd() {
+            ended = true;
+            notifyAll();
+            return taken;
+        }
+
+        /**
+         * @return false if it was already taken
+         */
+        synchronized boolean take() {
+            if (taken) {
+                return false;
+            }
+            taken = true;
+            return true;
+        }
+
+        synchronized boolean isTaken() {
+            return taken;
+        }
+
+        synchronized boolean isEnded() {
+            return ended;
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read;
+            int credit = 0;
+            synchronized (this) {
+                while (buffer.position() == 0 && !ended && !failed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (buffer.position() == 0) {
+                    if (failed) {
+                        throw new IOException("Connection lost");
+                    }
+                    return -1;
+                }
+                read = Math.min(len, buffer.position());
+                buffer.flip();
+                buffer.get(b, off, read);
+                buffer.compact();
+                consumedSinceLastCredit += read;
+                // Batch the credits so we don't send a message for every read
+                if (!ended && consumedSinceLastCredit >= WINDOW_SIZE / 4) {
+                    credit = consumedSinceLastCredit;
+                    consumedSinceLastCredit = 0;
+                }
+            }
+            if (credit > 0) {
+                sendMessage(MESSAGE_CREDIT, id, ByteBuffer.allocate(4).putInt(credit).array(), 0, 4);
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffer.position();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            incoming.remove(id);
+            boolean sendCancel;
+            synchronized (this) {
+                sendCancel = !ended && !failed;
+            }
+            if (sendCancel) {
+                try {
+                    sendMessage(MESSAGE_CANCEL, id, null, 0, 0);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import kotlin.text.Charsets;
+
+/**
+ * Receives the UDP identity broadcasts of other devices.
+ * <p>
+ * A single thread receives all the datagrams into the same buffer, and only decodes the ones
+ * {@link Handler#shouldReceive} lets through, so a storm of broadcasts doesn't allocate much nor start
+ * a thread per datagram. Handling them (connecting back to the sender) is left to a few worker
+ * threads, and datagrams that arrive while the queue in front of those is full are dropped: the
+ * sender broadcasts again later anyway.
+ */
+class LanDiscoveryListener {
+
+    private static final String LOG_TAG = "LanDiscoveryListener";
+
+    // The biggest payload an UDP datagram can have
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    static final int MAX_WORKERS = 4;
+    static final int MAX_QUEUED_DATAGRAMS = 32;
+
+    interface Handler {
+        /**
+         * Called on the listener thread before decoding a datagram, to drop the unwanted ones early.
+         * Must return quickly.
+         */
+        boolean shouldReceive(@NonNull InetAddress address);
+
+        @WorkerThread
+        void onDatagramReceived(@NonNull InetAddress address, @NonNull String message);
+
+        /**
+         * Called on the listener thread when receiving fails, before trying again.
+         */
+        void onReceiveFailed(@NonNull IOException e);
+    }
+
+    private final Handler handler;
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_DATAGRAMS));
+
+    private DatagramChannel channel;
+    private volatile boolean listening = false;
+
+    LanDiscoveryListener(@NonNull Handler handler) {
+        this.handler = handler;
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts receiving broadcasts on the given port, if it can be bound. Otherwise we can still send
+     * broadcasts but not receive them, so that is only logged.
+     */
+    void start(int port) {
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().setBroadcast(true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error creating udp server", e);
+            throw new RuntimeException(e);
+        }
+        try {
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (SocketException e) {
+            // We ignore this exception and continue without being able to receive broadcasts instead of crashing the app.
+            Log.e(LOG_TAG, "Error binding udp server. We can send udp broadcasts but not receive them", e);
+            return;
+        }
+        listening = true;
+        final DatagramChannel listeningChannel = channel;
+        Thread thread = new Thread(() -> receiveLoop(listeningChannel), "UdpListener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        listening = false;
+        try {
+            if (channel != null) {
+                channel.close(); // Wakes up the listener thread
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Exception", e);
+        }
+    }
+
+    private void receiveLoop(DatagramChannel listeningChannel) {
+        Log.i(LOG_TAG, "Starting UDP listener");
+        // Reused for every datagram, only what was received is decoded
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        while (listening) {
+            InetAddress address;
+            String message;
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress) listeningChannel.receive(buffer);
+                address = sender.getAddress();
+                if (!handler.shouldReceive(address)) {
+                    continue;
+                }
+                buffer.flip();
+                message = Charsets.UTF_8.decode(buffer).toString();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                handler.onReceiveFailed(e);
+                continue;
+            }
+            final InetAddress senderAddress = address;
+            final String senderMessage = message;
+            try {
+                workers.execute(() -> handler.onDatagramReceived(senderAddress, senderMessage));
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "Too many broadcasts to handle, dropping the one from " + address);
+            }
+        }
+        Log.w(LOG_TAG, "Stopping UDP listener");
+    }
+}
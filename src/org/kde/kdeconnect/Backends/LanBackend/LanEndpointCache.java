@@ -0,0 +1,101 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the address and TCP port where each trusted device was last connected, so after a
+ * network change or a restart we can connect to it right away, instead of waiting for it to answer
+ * a broadcast or to be found by mDNS.
+ * <p>
+ * Entries older than {@link #MAX_AGE_MILLIS} are forgotten: by then the device has most likely been
+ * given another address.
+ */
+class LanEndpointCache {
+
+    private static final String PREFERENCES_NAME = "lan_endpoint_cache";
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    static class Endpoint {
+        final String deviceId;
+        final InetAddress address;
+        final int port;
+
+        Endpoint(String deviceId, InetAddress address, int port) {
+            this.deviceId = deviceId;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    LanEndpointCache(@NonNull Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    void put(@NonNull String deviceId, @NonNull InetAddress address, int port) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("address", address.getHostAddress());
+            json.put("port", port);
+            json.put("updated", System.currentTimeMillis());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        preferences.edit().putString(deviceId, json.toString()).apply();
+    }
+
+    void remove(@NonNull String deviceId) {
+        preferences.edit().remove(deviceId).apply();
+    }
+
+    @NonNull
+    List<Endpoint> getAll() {
+        List<Endpoint> endpoints = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Endpoint endpoint = parse(entry.getKey(), entry.getValue(), now);
+            if (endpoint != null) {
+                endpoints.add(endpoint);
+            } else {
+                remove(entry.getKey());
+            }
+        }
+        return endpoints;
+    }
+
+    @Nullable
+    private static Endpoint parse(String deviceId, Object value, long now) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject((String) value);
+            if (now - json.optLong("updated") > MAX_AGE_MILLIS) {
+                return null;
+            }
+            // A literal address, so this doesn't do a DNS lookup
+            InetAddress address = InetAddress.getByName(json.getString("address"));
+            return new Endpoint(deviceId, address, json.getInt("port"));
+        } catch (JSONException | UnknownHostException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which incoming connections get a handshake, and runs them on a bounded pool of threads.
+ * <p>
+ * Reading the identity packet and the TLS handshake block, so each one needs a thread. Instead of
+ * starting one per connection, at most {@link #MAX_CONCURRENT_HANDSHAKES} run at the same time and
+ * {@link #MAX_QUEUED_HANDSHAKES} more wait. Connections that don't fit are closed right away, as are
+ * those from an address that already has {@link #MAX_HANDSHAKES_PER_ADDRESS} waiting or running, so
+ * a single misbehaving host can't keep the others out.
+ * <p>
+ * Every handshake gets {@link #TIME_BUDGET_MILLIS} (unless told otherwise) since it was accepted, including the time it waited
+ * in the queue, to complete.
+ */
+class LanHandshakeAdmission {
+
+    private static final String LOG_TAG = "LanHandshakeAdmission";
+
+    static final int MAX_CONCURRENT_HANDSHAKES = 4;
+    static final int MAX_QUEUED_HANDSHAKES = 16;
+    static final int MAX_HANDSHAKES_PER_ADDRESS = 2;
+    static final long TIME_BUDGET_MILLIS = 15 * 1000;
+
+    interface Handshake {
+        /**
+         * @param deadline when, in {@link System#currentTimeMillis()} time, the handshake has to give up
+         * @throws SocketTimeoutException if it didn't complete in time
+         */
+        @WorkerThread
+        void run(long deadline) throws IOException;
+    }
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_CONCURRENT_HANDSHAKES, MAX_CONCURRENT_HANDSHAKES, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_HANDSHAKES));
+
+    private final HashMap<InetAddress, Integer> pendingByAddress = new HashMap<>(); // Guarded by itself
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    private final long timeBudgetMillis;
+
+    LanHandshakeAdmission() {
+        this(TIME_BUDGET_MILLIS);
+    }
+
+    LanHandshakeAdmission(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the handshake of a connection just accepted from address, or closes the connection if
+     * there's no room for it.
+     *
+     * @return whether the handshake was queued
+     */
+    boolean admit(@NonNull InetAddress address, @NonNull Closeable connection, @NonNull Handshake handshake) {
+        final long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        synchronized (pendingByAddress) {
+            Integer pending = pendingByAddress.get(address);
+            if (pending != null && pending >= MAX_HANDSHAKES_PER_ADDRESS) {
+                reject(address, connection, "too many from the same address");
+                return false;
+            }
+            pendingByAddress.put(address, pending == null ? 1 : pending + 1);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw new SocketTimeoutException("Waited too long to start the handshake");
+                    }
+                    handshake.run(deadline);
+                } catch (SocketTimeoutException e) {
+                    timedOutCount.incrementAndGet();
+                    Log.w(LOG_TAG, "Handshake with " + address + " timed out. " + getStats(), e);
+                    close(connection);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Exception receiving incoming TCP connection", e);
+                    close(connection);
+                } finally {
+                    release(address);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(address);
+            reject(address, connection, "too many waiting");
+            return false;
+        }
+        acceptedCount.incrementAndGet();
+        return true;
+    }
+
+    long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    String getStats() {
+        return "Handshakes: " + acceptedCount.get() + " accepted, " + rejectedCount.get() + " rejected, "
+                + timedOutCount.get() + " timed out";
+    }
+
+    private void reject(InetAddress address, Closeable connection, String reason) {
+        rejectedCount.incrementAndGet();
+        Log.w(LOG_TAG, "Rejecting connection from " + address + ": " + reason + ". " + getStats());
+        close(connection);
+    }
+
+    private void release(InetAddress address) {
+        synchronized (pendingByAddress) {
+            Integer pending = pendingByAddress.get(address);
+            if (pending == null || pending <= 1) {
+                pendingByAddress.remove(address);
+            } else {
+                pendingByAddress.put(address, pending - 1);
+            }
+        }
+    }
+
+    private static void close(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
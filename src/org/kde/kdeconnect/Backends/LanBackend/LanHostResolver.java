@@ -0,0 +1,138 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the hosts of the custom devices the identity packet is sent to, and caches the results.
+ * <p>
+ * A DNS lookup can block for seconds, so they run in parallel on up to {@link #MAX_PARALLEL_LOOKUPS}
+ * threads and each address is handed over as soon as it's known, so a host that takes long doesn't
+ * hold up the others. Addresses are reused for {@link #POSITIVE_TTL_MILLIS}, and a host that couldn't
+ * be resolved isn't tried again for {@link #NEGATIVE_TTL_MILLIS}.
+ */
+class LanHostResolver {
+
+    private static final String LOG_TAG = "LanHostResolver";
+
+    static final int MAX_PARALLEL_LOOKUPS = 4;
+    static final long LOOKUP_TIMEOUT_MILLIS = 5 * 1000;
+    static final long POSITIVE_TTL_MILLIS = 5 * 60 * 1000;
+    static final long NEGATIVE_TTL_MILLIS = 30 * 1000;
+
+    interface Callback {
+        @WorkerThread
+        void onResolved(@NonNull List<InetAddress> addresses);
+    }
+
+    private static class Entry {
+        @Nullable
+        final InetAddress address; // Null if the host couldn't be resolved
+        final long expires; // In SystemClock.elapsedRealtime() time
+
+        Entry(@Nullable InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_PARALLEL_LOOKUPS, MAX_PARALLEL_LOOKUPS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Set<String> lookingUp = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    LanHostResolver() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resolves hosts, passing the addresses to callback as they become known: first the ones cached,
+     * all together, then each one as soon as its lookup completes. Returns once all the lookups are
+     * done, or after {@link #LOOKUP_TIMEOUT_MILLIS}. Lookups that take longer keep going, and their
+     * result is cached for the next time.
+     * <p>
+     * Hosts that are already being looked up for an earlier call are skipped: that call passes their
+     * address on.
+     */
+    @WorkerThread
+    void resolve(@NonNull List<String> hosts, @NonNull Callback callback) {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<InetAddress> cached = new ArrayList<>();
+        CompletionService<InetAddress> lookups = new ExecutorCompletionService<>(executor);
+        int pending = 0;
+        for (String host : hosts) {
+            Entry entry = cache.get(host);
+            if (entry != null && entry.expires > now) {
+                if (entry.address != null) {
+                    cached.add(entry.address);
+                }
+            } else if (lookingUp.add(host)) {
+                lookups.submit(() -> lookup(host));
+                pending++;
+            }
+        }
+
+        if (!cached.isEmpty()) {
+            callback.onResolved(cached);
+        }
+
+        long deadline = now + LOOKUP_TIMEOUT_MILLIS;
+        try {
+            for (; pending > 0; pending--) {
+                Future<InetAddress> lookup = lookups.poll(deadline - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+                if (lookup == null) {
+                    Log.w(LOG_TAG, pending + " hosts took too long to resolve");
+                    return;
+                }
+                InetAddress address = lookup.get();
+                if (address != null) {
+                    callback.onResolved(Collections.singletonList(address));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Unexpected exception resolving a host", e.getCause());
+        }
+    }
+
+    @Nullable
+    private InetAddress lookup(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            cache.put(host, new Entry(address, SystemClock.elapsedRealtime() + POSITIVE_TTL_MILLIS));
+            return address;
+        } catch (UnknownHostException e) {
+            Log.w(LOG_TAG, "Couldn't resolve " + host + ": " + e.getMessage());
+            cache.put(host, new Entry(null, SystemClock.elapsedRealtime() + NEGATIVE_TTL_MILLIS));
+            return null;
+        } finally {
+            lookingUp.remove(host);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import kotlin.text.Charsets;
+
+/**
+ * Reads the identity packet a device sends in plain text right after connecting, before the TLS
+ * handshake.
+ * <p>
+ * The socket is read in chunks instead of byte by byte, starting with a small buffer that only grows
+ * if the line is longer. Anything received after the line already belongs to the handshake, so it's
+ * kept in {@link #getRemaining()} to be handed to the {@link LanTlsChannel}.
+ */
+class LanIdentityReader {
+
+    static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // In write mode
+
+    /**
+     * Blocks until a full line is received and returns it, including the trailing newline. Leaves
+     * the channel in non-blocking mode.
+     *
+     * @param deadline when, in {@link System#currentTimeMillis()} time, to give up waiting
+     */
+    @NonNull
+    String readLine(@NonNull SocketChannel channel, int maxLength, long deadline) throws IOException {
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            int scanned = 0;
+            while (true) {
+                byte[] array = buffer.array();
+                for (int i = scanned; i < buffer.position(); i++) {
+                    if (array[i] == '\n') {
+                        String line = new String(array, 0, i + 1, Charsets.UTF_8);
+                        buffer.flip();
+                        buffer.position(i + 1);
+                        buffer.compact();
+                        return line;
+                    }
+                }
+                scanned = buffer.position();
+                if (scanned >= maxLength) {
+                    throw new IOException("Line too long");
+                }
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxLength));
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("End of stream");
+                }
+                if (read == 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Timed out reading the identity packet");
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                    key.interestOps(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * The bytes received after the line, in read mode.
+     */
+    @NonNull
+    ByteBuffer getRemaining() {
+        ByteBuffer remaining = buffer.duplicate();
+        remaining.flip();
+        return remaining;
+    }
+}
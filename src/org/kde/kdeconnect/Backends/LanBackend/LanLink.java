@@ -11,101 +11,171 @@ import android.util.Log;
 
 import org.apache.commons.io.IOUtils;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
+import org.kde.kdeconnect.Backends.LinkFeatures;
+import org.kde.kdeconnect.Backends.LinkHealthMonitor;
+import org.kde.kdeconnect.Backends.PayloadDigest;
+import org.kde.kdeconnect.Backends.PayloadTransferExecutor;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.DeviceInfo;
+import org.kde.kdeconnect.DeviceStats;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+import org.kde.kdeconnect.Helpers.SerialExecutor;
 import org.kde.kdeconnect.Helpers.ThreadHelper;
 import org.kde.kdeconnect.NetworkPacket;
+import org.kde.kdeconnect.NetworkPacketParser;
+import org.kde.kdeconnect.NetworkPacketWriter;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSocket;
 
-import kotlin.text.Charsets;
-
-public class LanLink extends BaseLink {
+public class LanLink extends BaseLink implements LanReaderEngine.FrameListener {
 
     public enum ConnectionStarted {
         Locally, Remotely
     }
 
+    // If the plugins can't keep up, stop reading from the socket until they catch up
+    private final static int MAX_PENDING_PACKETS = 64;
+
     private DeviceInfo deviceInfo;
 
-    private volatile SSLSocket socket = null;
+    private final LanReaderEngine readerEngine;
+    private volatile LanTlsChannel channel = null;
+    private volatile LanReaderEngine.Registration registration = null;
+    private volatile LanChannelMultiplexer multiplexer = null;
+    private final SerialExecutor packetDelivery = new SerialExecutor();
+    private final LanPayloadConnectionPool payloadConnections = new LanPayloadConnectionPool();
+    private final NetworkPacketWriter packetWriter = new NetworkPacketWriter(); // Guarded by itself
 
     @Override
     public void disconnect() {
-        Log.i("LanLink/Disconnect","socket:"+ socket.hashCode());
-        try {
-            socket.close();
-        } catch (IOException e) {
-            Log.e("LanLink", "Error", e);
-        }
+        Log.i("LanLink/Disconnect","socket:"+ channel.hashCode());
+        registration.close();
     }
 
-    //Returns the old socket
-    public SSLSocket reset(final SSLSocket newSocket, final DeviceInfo deviceInfo) throws IOException {
+    @Override
+    protected void onHealthCheckFailed(@NonNull IOException reason) {
+        Log.i("LanLink/Disconnect", "Dead socket:" + channel.hashCode());
+        registration.close(reason);
+    }
+
+    //Returns the old channel
+    LanTlsChannel reset(final LanTlsChannel newChannel, final DeviceInfo deviceInfo) throws IOException {
 
         this.deviceInfo = deviceInfo;
 
-        SSLSocket oldSocket = socket;
-        socket = newSocket;
+        LanTlsChannel oldChannel = channel;
+        LanReaderEngine.Registration oldRegistration = registration;
+        LanChannelMultiplexer oldMultiplexer = multiplexer;
+        multiplexer = new LanChannelMultiplexer(newChannel);
+        channel = newChannel;
+        registration = readerEngine.register(newChannel, this);
+
+        if (oldRegistration != null) {
+            oldRegistration.close();
+            oldMultiplexer.close();
+            payloadConnections.closeAll();
+        }
 
-        IOUtils.close(oldSocket); //This should cancel the readThread
+        startHealthMonitor();
 
-        //Log.e("LanLink", "Start listening");
-        //Create a thread to take care of incoming data for the new socket
-        ThreadHelper.execute(() -> {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), Charsets.UTF_8));
-                while (true) {
-                    String packet;
-                    try {
-                        packet = reader.readLine();
-                    } catch (SocketTimeoutException e) {
-                        continue;
-                    }
-                    if (packet == null) {
-                        throw new IOException("End of stream");
-                    }
-                    if (packet.isEmpty()) {
-                        continue;
-                    }
-                    NetworkPacket np = NetworkPacket.unserialize(packet);
-                    receivedNetworkPacket(np);
-                }
-            } catch (Exception e) {
-                Log.i("LanLink", "Socket closed: " + newSocket.hashCode() + ". Reason: " + e.getMessage());
-                try { Thread.sleep(300); } catch (InterruptedException ignored) {} // Wait a bit because we might receive a new socket meanwhile
-                boolean thereIsaANewSocket = (newSocket != socket);
-                if (!thereIsaANewSocket) {
-                    Log.i("LanLink", "Socket closed and there's no new socket, disconnecting device");
-                    getLinkProvider().onConnectionLost(LanLink.this);
-                }
+        return oldChannel;
+    }
+
+    @Override
+    public void onWakeup() {
+        DeviceStats.countWakeup(getDeviceId(), DeviceStats.WAKEUP_READ);
+    }
+
+    @Override
+    public void onPacketReceived(@NonNull NetworkPacket np) {
+        if (handleLinkHealthPacket(np)) {
+            return;
+        }
+        // We are on a reader thread shared with other links, hand the packet over to a thread of our own
+        final LanReaderEngine.Registration frameRegistration = registration;
+        // Taken here, in order with the frames of the payload, so its end can't come first
+        final InputStream payloadChannel = np.getPayloadTransferInfo().has("channel")
+                ? multiplexer.takeIncomingChannel(np.getPayloadTransferInfo().optInt("channel"))
+                : null;
+        packetDelivery.execute(() -> {
+            receivedNetworkPacket(np, payloadChannel);
+            if (packetDelivery.getPendingTasks() == 0) {
+                frameRegistration.resumeReading();
             }
         });
+        // Unless a payload already handed over is still arriving over this connection, the plugins might be waiting for it
+        if (packetDelivery.getPendingTasks() > MAX_PENDING_PACKETS && !multiplexer.isReceivingPayloads()) {
+            frameRegistration.pauseReading();
+        }
+    }
 
-        return oldSocket;
+    @Override
+    public void onInvalidPacket(@NonNull JSONException e) {
+        if (e instanceof NetworkPacketParser.PacketTooLargeException) {
+            Log.e("LanLink", "Skipping packet too large to receive", e);
+            return;
+        }
+        Log.e("LanLink", "Invalid packet received, closing the connection", e);
+        registration.close();
     }
 
-    public LanLink(@NonNull Context context, @NonNull DeviceInfo deviceInfo, @NonNull BaseLinkProvider linkProvider, @NonNull SSLSocket socket) throws IOException {
+    @Override
+    public void onBinaryFrameReceived(@NonNull LanTlsChannel frameChannel, @NonNull ByteBuffer frame) throws IOException {
+        LanChannelMultiplexer frameMultiplexer = multiplexer;
+        if (frameMultiplexer.getChannel() == frameChannel) {
+            frameMultiplexer.onFrameReceived(frame);
+        }
+    }
+
+    @Override
+    public void onClosed(@NonNull LanTlsChannel closedChannel, @NonNull Exception reason) {
+        Log.i("LanLink", "Socket closed: " + closedChannel.hashCode() + ". Reason: " + reason.getMessage());
+        // Right away, a plugin blocked reading a payload from it would otherwise hold the queue below
+        LanChannelMultiplexer closedMultiplexer = multiplexer;
+        if (closedMultiplexer.getChannel() == closedChannel) {
+            closedMultiplexer.close();
+        }
+        // A dead link was found by the health monitor, so there's no point in waiting for a new socket
+        boolean dead = reason instanceof LinkHealthMonitor.DeadLinkException;
+        // Queued after the packets already received, so those get delivered before we disconnect
+        packetDelivery.execute(() -> ThreadHelper.execute(() -> {
+            if (!dead) {
+                try { Thread.sleep(300); } catch (InterruptedException ignored) {} // Wait a bit because we might receive a new socket meanwhile
+            }
+            boolean thereIsaANewSocket = (closedChannel != channel);
+            if (!thereIsaANewSocket) {
+                Log.i("LanLink", "Socket closed and there's no new socket, disconnecting device");
+                stopHealthMonitor();
+                payloadConnections.closeAll();
+                getLinkProvider().onConnectionLost(LanLink.this);
+            }
+        }));
+    }
+
+    LanLink(@NonNull Context context, @NonNull DeviceInfo deviceInfo, @NonNull BaseLinkProvider linkProvider, @NonNull LanReaderEngine readerEngine, @NonNull LanTlsChannel channel) throws IOException {
         super(context, linkProvider);
-        reset(socket, deviceInfo);
+        this.readerEngine = readerEngine;
+        reset(channel, deviceInfo);
     }
 
     @Override
@@ -121,51 +191,120 @@ public class LanLink extends BaseLink {
     @WorkerThread
     @Override
     public boolean sendPacket(@NonNull NetworkPacket np, @NonNull final Device.SendPacketStatusCallback callback, boolean sendPayloadFromSameThread) {
-        if (socket == null) {
-            Log.e("KDE/sendPacket", "Not yet connected");
-            callback.onFailure(new NotYetConnectedException());
-            return false;
+        if (!np.hasPayload()) {
+            return sendPacket(np, callback, null, false);
         }
 
+        // Once the packet is out the other end connects for the payload and won't wait long for it,
+        // so the packet is only sent when the payload can be sent right away. Until then it's parked,
+        // so the packets behind it don't have to wait for the transfers
+        final PayloadTransferExecutor.Reservation reservation;
+        if (sendPayloadFromSameThread) {
+            try {
+                reservation = payloadTransfers.reserve();
+            } catch (InterruptedIOException e) {
+                np.getPayload().close();
+                callback.onFailure(e);
+                return false;
+            }
+        } else {
+            reservation = payloadTransfers.tryReserve();
+            if (reservation == null) {
+                payloadTransfers.park(np, parkedReservation -> sendPacket(np, callback, parkedReservation, false));
+                return true;
+            }
+        }
+        return sendPacket(np, callback, reservation, sendPayloadFromSameThread);
+    }
+
+    /**
+     * @param reservation the transfer slot for the payload, if the packet has one
+     */
+    @WorkerThread
+    private boolean sendPacket(@NonNull NetworkPacket np, @NonNull final Device.SendPacketStatusCallback callback, @Nullable PayloadTransferExecutor.Reservation reservation, boolean sendPayloadFromSameThread) {
+        boolean payloadSubmitted = false;
         try {
+            if (channel == null) {
+                Log.e("KDE/sendPacket", "Not yet connected");
+                throw new NotYetConnectedException();
+            }
+
+            // The payload channel has to be opened on the same connection the packet goes through
+            final LanChannelMultiplexer currentMultiplexer = multiplexer;
+            final LanTlsChannel currentChannel = currentMultiplexer.getChannel();
 
             //Prepare socket for the payload
             final ServerSocket server;
-            if (np.hasPayload()) {
-                server = LanLinkProvider.openServerSocketOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT);
+            final LanPayloadConnectionPool.Connection pooledConnection;
+            final int newConnectionId;
+            final LanChannelMultiplexer.OutgoingChannel payloadChannel;
+            if (np.hasPayload() && LinkFeatures.isEnabled(deviceInfo, LinkFeatures.PAYLOAD_MULTIPLEXING)) {
+                payloadChannel = currentMultiplexer.openChannel();
+                JSONObject payloadTransferInfo = new JSONObject();
+                payloadTransferInfo.put("channel", payloadChannel.id);
+                addPayloadDigest(np, payloadTransferInfo);
+                np.setPayloadTransferInfo(payloadTransferInfo);
+                server = null;
+                pooledConnection = null;
+                newConnectionId = 0;
+            } else if (np.hasPayload()) {
+                payloadChannel = null;
                 JSONObject payloadTransferInfo = new JSONObject();
-                payloadTransferInfo.put("port", server.getLocalPort());
+                // Connections can only be reused if we know exactly where the payload ends
+                boolean reuse = np.getPayloadSize() > 0 && LinkFeatures.isEnabled(deviceInfo, LinkFeatures.PAYLOAD_CONNECTION_REUSE);
+                pooledConnection = reuse ? payloadConnections.takeForSending() : null;
+                if (pooledConnection != null) {
+                    server = null;
+                    newConnectionId = 0;
+                    payloadTransferInfo.put("connectionId", pooledConnection.id);
+                } else {
+                    server = LanLinkProvider.openServerSocketOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT);
+                    payloadTransferInfo.put("port", server.getLocalPort());
+                    newConnectionId = reuse ? payloadConnections.newConnectionId() : 0;
+                    if (newConnectionId != 0) {
+                        payloadTransferInfo.put("connectionId", newConnectionId);
+                    }
+                }
+                addPayloadDigest(np, payloadTransferInfo);
                 np.setPayloadTransferInfo(payloadTransferInfo);
             } else {
                 server = null;
+                pooledConnection = null;
+                newConnectionId = 0;
+                payloadChannel = null;
             }
 
             //Log.e("LanLink/sendPacket", np.getType());
 
             //Send body of the network packet
             try {
-                OutputStream writer = socket.getOutputStream();
-                writer.write(np.serialize().getBytes(Charsets.UTF_8));
-                writer.flush();
+                synchronized (packetWriter) {
+                    try {
+                        packetWriter.write(np, LinkFeatures.isEnabled(deviceInfo, LinkFeatures.COMPRESSED_BODIES));
+                        currentChannel.write(packetWriter.toByteBuffer());
+                    } finally {
+                        packetWriter.recycle();
+                    }
+                }
             } catch (Exception e) {
                 disconnect(); //main socket is broken, disconnect
                 throw e;
             }
 
             //Send payload
-            if (server != null) {
-                if (sendPayloadFromSameThread) {
-                    sendPayload(np, callback, server);
-                } else {
-                    ThreadHelper.execute(() -> {
-                        try {
-                            sendPayload(np, callback, server);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            Log.e("LanLink/sendPacket", "Async sendPayload failed for packet of type " + np.getType() + ". The Plugin was NOT notified.");
-                        }
-                    });
-                }
+            final PayloadTransferExecutor.Transfer transfer;
+            if (payloadChannel != null) {
+                transfer = () -> sendMultiplexedPayload(np, callback, payloadChannel);
+            } else if (server != null || pooledConnection != null) {
+                transfer = () -> sendPayload(np, callback, server, pooledConnection, newConnectionId);
+            } else {
+                transfer = null;
+            }
+            if (transfer != null) {
+                // From now on the transfer closes the payload and tells the callback how it went
+                payloadSubmitted = true;
+                Future<Boolean> result = payloadTransfers.submit(reservation, np, callback, transfer);
+                return !sendPayloadFromSameThread || PayloadTransferExecutor.await(result);
             }
 
             if (!np.isCanceled()) {
@@ -173,79 +312,201 @@ public class LanLink extends BaseLink {
             }
             return true;
         } catch (Exception e) {
-            callback.onFailure(e);
+            if (!payloadSubmitted) {
+                callback.onFailure(e);
+            }
             return false;
         } finally  {
             //Make sure we close the payload stream, if any
-            if (np.hasPayload()) {
+            if (np.hasPayload() && !payloadSubmitted) {
                 np.getPayload().close();
             }
+            if (reservation != null && !payloadSubmitted) {
+                reservation.release();
+            }
         }
     }
 
-    private void sendPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, ServerSocket server) throws IOException {
+    @WorkerThread
+    @Override
+    public int sendPackets(@NonNull List<Device.NetworkPacketWithCallback> packets) {
+        final LanTlsChannel currentChannel = channel;
+        if (currentChannel == null) {
+            return 0;
+        }
+
+        boolean compressBodies = LinkFeatures.isEnabled(deviceInfo, LinkFeatures.COMPRESSED_BODIES);
+        int count = 0;
+        synchronized (packetWriter) {
+            try {
+                for (Device.NetworkPacketWithCallback packet : packets) {
+                    try {
+                        packetWriter.write(packet.getNp(), compressBodies);
+                    } catch (JSONException e) {
+                        break; // Let sendPacket() report it
+                    }
+                    count++;
+                }
+
+                // A single write, so the packets share TLS records and syscalls
+                try {
+                    currentChannel.write(packetWriter.toByteBuffer());
+                } catch (IOException e) {
+                    Log.e("LanLink", "Failed to send " + count + " packets", e);
+                    disconnect(); //main socket is broken, disconnect
+                    return 0;
+                }
+            } finally {
+                packetWriter.recycle();
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            Device.NetworkPacketWithCallback packet = packets.get(i);
+            if (!packet.getNp().isCanceled()) {
+                packet.getCallback().onSuccess();
+            }
+        }
+        return count;
+    }
+
+    private void addPayloadDigest(NetworkPacket np, JSONObject payloadTransferInfo) throws JSONException {
+        // Only if we know where the payload ends, and so where the digest starts
+        if (np.getPayloadSize() > 0 && LinkFeatures.isEnabled(deviceInfo, LinkFeatures.PAYLOAD_DIGEST)) {
+            payloadTransferInfo.put(PayloadDigest.TRANSFER_INFO_KEY, PayloadDigest.DEFAULT_ALGORITHM);
+        }
+    }
+
+    /**
+     * Sends the payload either over a pooled connection or over a new one accepted from server.
+     * If newConnectionId isn't 0, the new connection is kept in the pool afterwards.
+     */
+    private void sendPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, ServerSocket server, LanPayloadConnectionPool.Connection pooledConnection, int newConnectionId) throws IOException {
         Socket payloadSocket = null;
         OutputStream outputStream = null;
-        InputStream inputStream;
+        boolean keepConnection = false;
         try {
             if (!np.isCanceled()) {
-                //Wait a maximum of 10 seconds for the other end to establish a connection with our socket, close it afterwards
-                server.setSoTimeout(10 * 1000);
+                if (pooledConnection != null) {
+                    payloadSocket = pooledConnection.socket;
+                } else {
+                    //Wait a maximum of 10 seconds for the other end to establish a connection with our socket, close it afterwards
+                    server.setSoTimeout(10 * 1000);
 
-                payloadSocket = server.accept();
+                    payloadSocket = server.accept();
 
-                //Convert to SSL if needed
-                payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, false);
+                    //Convert to SSL if needed
+                    payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, false);
 
-                outputStream = payloadSocket.getOutputStream();
-                inputStream = np.getPayload().getInputStream();
-
-                Log.i("KDE/LanLink", "Beginning to send payload for " + np.getType());
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long size = np.getPayloadSize();
-                long progress = 0;
-                long timeSinceLastUpdate = -1;
-                while (!np.isCanceled() && (bytesRead = inputStream.read(buffer)) != -1) {
-                    //Log.e("ok",""+bytesRead);
-                    progress += bytesRead;
-                    outputStream.write(buffer, 0, bytesRead);
-                    if (size > 0) {
-                        if (timeSinceLastUpdate + 500 < System.currentTimeMillis()) { //Report progress every half a second
-                            long percent = ((100 * progress) / size);
-                            callback.onPayloadProgressChanged((int) percent);
-                            timeSinceLastUpdate = System.currentTimeMillis();
-                        }
+                    if (newConnectionId != 0) {
+                        pooledConnection = new LanPayloadConnectionPool.Connection(newConnectionId, payloadSocket);
                     }
                 }
-                outputStream.flush();
-                Log.i("KDE/LanLink", "Finished sending payload (" + progress + " bytes written)");
+
+                outputStream = payloadSocket.getOutputStream();
+                long progress = copyPayload(np, callback, outputStream);
+
+                // The other end only knows the payload is over after exactly payloadSize bytes
+                keepConnection = pooledConnection != null && !np.isCanceled() && progress == np.getPayloadSize();
             }
         } catch(SocketTimeoutException e) {
             Log.e("LanLink", "Socket for payload in packet " + np.getType() + " timed out. The other end didn't fetch the payload.");
+            throw e;
         } catch(SSLHandshakeException e) {
             // The exception can be due to several causes. "Connection closed by peer" seems to be a common one.
             // If we could distinguish different cases we could react differently for some of them, but I haven't found how.
             Log.e("sendPacket","Payload SSLSocket failed");
             e.printStackTrace();
+            throw e;
         } finally {
-            try { server.close(); } catch (Exception ignored) { }
-            try { IOUtils.close(payloadSocket); } catch (Exception ignored) { }
+            try { if (server != null) server.close(); } catch (Exception ignored) { }
             np.getPayload().close();
-            try { IOUtils.close(outputStream); } catch (Exception ignored) { }
+            if (keepConnection) {
+                payloadConnections.releaseAfterSending(pooledConnection);
+            } else {
+                try { IOUtils.close(payloadSocket); } catch (Exception ignored) { }
+                try { IOUtils.close(outputStream); } catch (Exception ignored) { }
+            }
         }
     }
 
-    private void receivedNetworkPacket(NetworkPacket np) {
+    private void sendMultiplexedPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, LanChannelMultiplexer.OutgoingChannel payloadChannel) throws IOException {
+        try {
+            if (!np.isCanceled()) {
+                copyPayload(np, callback, payloadChannel);
+            }
+        } finally {
+            np.getPayload().close();
+            payloadChannel.close();
+        }
+    }
+
+    private long copyPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, OutputStream outputStream) throws IOException {
+        InputStream inputStream = np.getPayload().getInputStream();
+
+        Log.i("KDE/LanLink", "Beginning to send payload for " + np.getType());
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        long size = np.getPayloadSize();
+        long progress = 0;
+        long timeSinceLastUpdate = -1;
+        PayloadDigest digest = PayloadDigest.forTransferInfo(np.getPayloadTransferInfo());
+        while (!np.isCanceled() && (bytesRead = inputStream.read(buffer)) != -1) {
+            //Log.e("ok",""+bytesRead);
+            progress += bytesRead;
+            outputStream.write(buffer, 0, bytesRead);
+            if (digest != null) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            if (size > 0) {
+                if (timeSinceLastUpdate + 500 < System.currentTimeMillis()) { //Report progress every half a second
+                    long percent = ((100 * progress) / size);
+                    callback.onPayloadProgressChanged((int) percent);
+                    timeSinceLastUpdate = System.currentTimeMillis();
+                }
+            }
+        }
+        if (digest != null && !np.isCanceled() && progress == size) {
+            outputStream.write(digest.digest());
+        }
+        outputStream.flush();
+        Log.i("KDE/LanLink", "Finished sending payload (" + progress + " bytes written)");
+        return progress;
+    }
+
+    private void receivedNetworkPacket(NetworkPacket np, @Nullable InputStream payloadChannel) {
 
         if (np.hasPayloadTransferInfo()) {
+            JSONObject payloadTransferInfo = np.getPayloadTransferInfo();
+            int connectionId = payloadTransferInfo.optInt("connectionId", 0);
             Socket payloadSocket = new Socket();
             try {
-                int tcpPort = np.getPayloadTransferInfo().getInt("port");
-                InetSocketAddress deviceAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
-                payloadSocket.connect(new InetSocketAddress(deviceAddress.getAddress(), tcpPort));
-                payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, true);
-                np.setPayload(new NetworkPacket.Payload(payloadSocket, np.getPayloadSize()));
+                long payloadSize = np.getPayloadSize();
+                PayloadDigest digest = PayloadDigest.forTransferInfo(payloadTransferInfo);
+                // What goes through the connection, the digest follows the payload
+                long streamSize = payloadSize + (digest != null ? digest.getLength() : 0);
+                if (payloadTransferInfo.has("channel")) {
+                    // Streamed over this same connection
+                    if (payloadChannel == null) {
+                        throw new IOException("Unknown payload channel " + payloadTransferInfo.getInt("channel"));
+                    }
+                    np.setPayload(new NetworkPacket.Payload(PayloadDigest.verifying(payloadChannel, payloadSize, digest), payloadSize));
+                } else if (!payloadTransferInfo.has("port")) {
+                    // The sender is reusing a connection that we kept from a previous payload
+                    LanPayloadConnectionPool.Connection connection = payloadConnections.takeForReceiving(connectionId);
+                    if (connection == null) {
+                        throw new IOException("Unknown payload connection " + connectionId);
+                    }
+                    payloadSocket = connection.socket;
+                    InputStream stream = payloadConnections.receivePayload(connection, streamSize);
+                    np.setPayload(new NetworkPacket.Payload(PayloadDigest.verifying(stream, payloadSize, digest), payloadSize));
+                } else {
+                    // Connecting and the handshake are done in the background, so the packet (and the
+                    // ones after it) don't have to wait for them
+                    InetSocketAddress address = new InetSocketAddress(channel.getRemoteAddress().getAddress(), payloadTransferInfo.getInt("port"));
+                    PendingPayloadInputStream stream = new PendingPayloadInputStream(() -> connectToPayload(address, connectionId, payloadSize, streamSize, digest));
+                    np.setPayload(new NetworkPacket.Payload(stream, payloadSize));
+                }
             } catch (Exception e) {
                 try { payloadSocket.close(); } catch(Exception ignored) { }
                 Log.e("KDE/LanLink", "Exception connecting to payload remote socket", e);
@@ -256,4 +517,24 @@ public class LanLink extends BaseLink {
         packetReceived(np);
     }
 
+    private NetworkPacket.Payload connectToPayload(InetSocketAddress address, int connectionId, long payloadSize, long streamSize, PayloadDigest digest) throws IOException {
+        Socket payloadSocket = new Socket();
+        try {
+            payloadSocket.connect(address);
+            payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, true);
+            if (connectionId != 0) {
+                LanPayloadConnectionPool.Connection connection = new LanPayloadConnectionPool.Connection(connectionId, payloadSocket);
+                InputStream stream = payloadConnections.receivePayload(connection, streamSize);
+                return new NetworkPacket.Payload(PayloadDigest.verifying(stream, payloadSize, digest), payloadSize);
+            } else {
+                InputStream stream = PayloadDigest.verifying(payloadSocket.getInputStream(), payloadSize, digest);
+                return new NetworkPacket.Payload(payloadSocket, stream, payloadSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            try { payloadSocket.close(); } catch(Exception ignored) { }
+            Log.e("KDE/LanLink", "Exception connecting to payload remote socket", e);
+            throw e;
+        }
+    }
+
 }
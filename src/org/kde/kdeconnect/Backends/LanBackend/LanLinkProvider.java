@@ -13,6 +13,7 @@ import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
@@ -21,33 +22,36 @@ import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
 import org.kde.kdeconnect.DeviceHost;
 import org.kde.kdeconnect.DeviceInfo;
+import org.kde.kdeconnect.DeviceStats;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
 import org.kde.kdeconnect.Helpers.ThreadHelper;
 import org.kde.kdeconnect.Helpers.TrustedNetworkHelper;
 import org.kde.kdeconnect.NetworkPacket;
+import org.kde.kdeconnect.NetworkPacketParser;
 import org.kde.kdeconnect.UserInterface.CustomDevicesActivity;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocket;
-
 import kotlin.text.Charsets;
 
 /**
@@ -55,7 +59,7 @@ import kotlin.text.Charsets;
  * WiFi network. The first packet sent over a socket must be an
  * {@link DeviceInfo#toIdentityPacket()}.
  *
- * @see #identityPacketReceived(NetworkPacket, Socket, LanLink.ConnectionStarted, boolean)
+ * @see #identityPacketReceived(NetworkPacket, SocketChannel, ByteBuffer, LanLink.ConnectionStarted, boolean, long)
  */
 public class LanLinkProvider extends BaseLinkProvider {
 
@@ -65,10 +69,14 @@ public class LanLinkProvider extends BaseLinkProvider {
     final static int PAYLOAD_TRANSFER_MIN_PORT = 1739;
 
     final static int MAX_IDENTITY_PACKET_SIZE = 1024 * 512;
-    final static int MAX_UDP_PACKET_SIZE = 1024 * 512;
 
     final static long MILLIS_DELAY_BETWEEN_CONNECTIONS_TO_SAME_DEVICE = 1000L;
 
+    final static int HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+    final static int DIRECT_CONNECT_TIMEOUT_MILLIS = 3 * 1000;
+    final static int READER_THREADS = 2;
+    final static int MAX_PACKET_SIZE = NetworkPacketParser.DEFAULT_MAX_PACKET_SIZE;
+
     private final Context context;
 
     final HashMap<String, LanLink> visibleDevices = new HashMap<>(); // Links by device id
@@ -77,11 +85,45 @@ public class LanLinkProvider extends BaseLinkProvider {
     final ConcurrentHashMap<String, Long> lastConnectionTimeByDeviceId = new ConcurrentHashMap<>();
     final ConcurrentHashMap<InetAddress, Long> lastConnectionTimeByIp = new ConcurrentHashMap<>();
 
-    private ServerSocket tcpServer;
-    private DatagramSocket udpServer;
+    private ServerSocketChannel tcpServer;
+    private final LanDiscoveryListener udpListener = new LanDiscoveryListener(new LanDiscoveryListener.Handler() {
+        @Override
+        public boolean shouldReceive(@NonNull InetAddress address) {
+            if (rateLimitByIp(address)) {
+                Log.i("LanLinkProvider", "Discarding second UDP packet from the same ip " + address + " received too quickly");
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDatagramReceived(@NonNull InetAddress address, @NonNull String message) {
+            try {
+                udpPacketReceived(address, message);
+            } catch (JSONException | IOException e) {
+                Log.e("LanLinkProvider", "Exception receiving incoming UDP connection", e);
+            }
+        }
+
+        @Override
+        public void onReceiveFailed(@NonNull IOException e) {
+            Log.e("LanLinkProvider", "UdpReceive exception", e);
+            onNetworkChange(null); // Trigger a UDP broadcast to try to get them to connect to us instead
+        }
+    });
+
+    private final LanHandshakeAdmission handshakeAdmission = new LanHandshakeAdmission();
+    private final LanHostResolver hostResolver = new LanHostResolver();
+
+    private final LanReaderEngine readerEngine = new LanReaderEngine(READER_THREADS, MAX_PACKET_SIZE);
 
     private final MdnsDiscovery mdnsDiscovery;
 
+    private final LanEndpointCache endpointCache;
+    private final Set<String> directConnects = Collections.newSetFromMap(new ConcurrentHashMap<>()); // Device ids being tried
+    private final Set<SocketChannel> directChannels = Collections.newSetFromMap(new ConcurrentHashMap<>()); // Their handshakes
+    private final ConcurrentHashMap<String, Long> disconnectedSince = new ConcurrentHashMap<>(); // By device id
+
     private long lastBroadcast = 0;
     private final static long delayBetweenBroadcasts = 200;
 
@@ -91,6 +133,11 @@ public class LanLinkProvider extends BaseLinkProvider {
         String deviceId = link.getDeviceId();
         visibleDevices.remove(deviceId);
         super.onConnectionLost(link);
+        if (listening && isDeviceTrusted(deviceId)) {
+            disconnectedSince.putIfAbsent(deviceId, System.currentTimeMillis());
+            // It might still be there, eg: if only the connection broke
+            connectToCachedEndpoints(deviceId);
+        }
     }
 
     Pair<NetworkPacket, Boolean> unserializeReceivedIdentityPacket(String message) {
@@ -130,25 +177,24 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     //They received my UDP broadcast and are connecting to me. The first thing they send should be their identity packet.
     @WorkerThread
-    private void tcpPacketReceived(Socket socket) throws IOException {
-
-        InetAddress address = socket.getInetAddress();
-        if (rateLimitByIp(address)) {
-            Log.i("LanLinkProvider", "Discarding second TCP packet from the same ip " + address + " received too quickly");
-            return;
-        }
+    private void tcpPacketReceived(SocketChannel channel, long deadline) throws IOException {
 
+        LanIdentityReader reader = new LanIdentityReader();
         String message;
         try {
-            message = readSingleLine(socket);
+            message = reader.readLine(channel, MAX_IDENTITY_PACKET_SIZE, deadline);
             //Log.e("TcpListener", "Received TCP packet: " + identityPacket.serialize());
+        } catch (SocketTimeoutException e) {
+            throw e; // Counted by the handshake admission
         } catch (Exception e) {
             Log.e("KDE/LanLinkProvider", "Exception while receiving TCP packet", e);
+            channel.close();
             return;
         }
 
         final Pair<NetworkPacket, Boolean> pair = unserializeReceivedIdentityPacket(message);
         if (pair == null) {
+            channel.close();
             return;
         }
         final NetworkPacket identityPacket = pair.first;
@@ -156,26 +202,7 @@ public class LanLinkProvider extends BaseLinkProvider {
 
         Log.i("KDE/LanLinkProvider", "identity packet received from a TCP connection from " + identityPacket.getString("deviceName"));
 
-        identityPacketReceived(identityPacket, socket, LanLink.ConnectionStarted.Locally, deviceTrusted);
-    }
-
-    /**
-     * Read a single line from a socket without consuming anything else from the input.
-     */
-    private String readSingleLine(Socket socket) throws IOException {
-        InputStream stream = socket.getInputStream();
-        StringBuilder line = new StringBuilder(MAX_IDENTITY_PACKET_SIZE);
-        int ch;
-        while ((ch = stream.read()) != -1) {
-            line.append((char) ch);
-            if (ch == '\n') {
-                return line.toString();
-            }
-            if (line.length() >= MAX_IDENTITY_PACKET_SIZE) {
-                break;
-            }
-        }
-        throw new IOException("Couldn't read a line from the socket");
+        identityPacketReceived(identityPacket, channel, reader.getRemaining(), LanLink.ConnectionStarted.Locally, deviceTrusted, deadline);
     }
 
     boolean rateLimitByIp(InetAddress address) {
@@ -206,16 +233,7 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     //I've received their broadcast and should connect to their TCP socket and send my identity.
     @WorkerThread
-    private void udpPacketReceived(DatagramPacket packet) throws JSONException, IOException {
-
-        final InetAddress address = packet.getAddress();
-
-        if (rateLimitByIp(address)) {
-            Log.i("LanLinkProvider", "Discarding second UDP packet from the same ip " + address + " received too quickly");
-            return;
-        }
-
-        String message = new String(packet.getData(), Charsets.UTF_8);
+    private void udpPacketReceived(InetAddress address, String message) throws JSONException, IOException {
 
         final Pair<NetworkPacket, Boolean> pair = unserializeReceivedIdentityPacket(message);
         if (pair == null) {
@@ -232,23 +250,106 @@ public class LanLinkProvider extends BaseLinkProvider {
             return;
         }
 
-        SocketFactory socketFactory = SocketFactory.getDefault();
-        Socket socket = socketFactory.createSocket(address, tcpPort);
-        configureSocket(socket);
+        SocketChannel channel = connectAndSendIdentity(new InetSocketAddress(address, tcpPort), 0);
 
-        DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
-        NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
+        long deadline = System.currentTimeMillis() + LanHandshakeAdmission.TIME_BUDGET_MILLIS;
+        identityPacketReceived(identityPacket, channel, ByteBuffer.allocate(0), LanLink.ConnectionStarted.Remotely, deviceTrusted, deadline);
+    }
+
+    /**
+     * Connects to the TCP port of another device and sends our identity, after which the other
+     * device expects us to start the TLS handshake as the server.
+     *
+     * @param timeoutMillis how long to wait for the connection, 0 to wait as long as the system does
+     */
+    private SocketChannel connectAndSendIdentity(InetSocketAddress address, int timeoutMillis) throws IOException, JSONException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, timeoutMillis);
+            configureSocket(channel);
 
-        OutputStream out = socket.getOutputStream();
-        out.write(myIdentity.serialize().getBytes());
-        out.flush();
+            DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
+            NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
 
-        identityPacketReceived(identityPacket, socket, LanLink.ConnectionStarted.Remotely, deviceTrusted);
+            OutputStream out = channel.socket().getOutputStream();
+            out.write(myIdentity.serialize().getBytes());
+            out.flush();
+        } catch (IOException | JSONException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
     }
 
-    private void configureSocket(Socket socket) {
+    /**
+     * Connects straight to the last known address of the given trusted devices (or all of them, if
+     * none are given) that aren't connected, in parallel. This is what usually reconnects them after
+     * a network change, since it doesn't depend on them answering a broadcast.
+     */
+    private void connectToCachedEndpoints(String... deviceIds) {
+        List<String> onlyDeviceIds = Arrays.asList(deviceIds);
+        ThreadHelper.execute(() -> {
+            long now = System.currentTimeMillis();
+            for (LanEndpointCache.Endpoint endpoint : endpointCache.getAll()) {
+                String deviceId = endpoint.deviceId;
+                if (!onlyDeviceIds.isEmpty() && !onlyDeviceIds.contains(deviceId)) {
+                    continue;
+                }
+                if (!isDeviceTrusted(deviceId)) {
+                    endpointCache.remove(deviceId);
+                    continue;
+                }
+                if (visibleDevices.containsKey(deviceId)) {
+                    continue;
+                }
+                disconnectedSince.putIfAbsent(deviceId, now);
+                if (!directConnects.add(deviceId)) {
+                    continue; // Already trying
+                }
+                ThreadHelper.execute(() -> {
+                    try {
+                        connectToCachedEndpoint(endpoint);
+                    } catch (IOException | JSONException e) {
+                        Log.d("LanLinkProvider", "Couldn't connect to the last known address of " + deviceId + ": " + e.getMessage());
+                    } finally {
+                        directConnects.remove(deviceId);
+                    }
+                });
+            }
+        });
+    }
+
+    @WorkerThread
+    private void connectToCachedEndpoint(LanEndpointCache.Endpoint endpoint) throws IOException, JSONException {
+        // We haven't received its identity packet, so we use what we know from the last time
+        SharedPreferences deviceSettings = context.getSharedPreferences(endpoint.deviceId, Context.MODE_PRIVATE);
+        int protocolVersion = deviceSettings.getInt("protocolVersion", 0);
+        if (protocolVersion < 8) {
+            // Only since version 8 the identity is sent again once the connection is encrypted, older
+            // devices have to tell us their capabilities in the broadcast
+            return;
+        }
+        NetworkPacket identityPacket = new NetworkPacket(NetworkPacket.PACKET_TYPE_IDENTITY);
+        identityPacket.set("deviceId", endpoint.deviceId);
+        identityPacket.set("deviceName", deviceSettings.getString("deviceName", "unknown"));
+        identityPacket.set("deviceType", deviceSettings.getString("deviceType", "desktop"));
+        identityPacket.set("protocolVersion", protocolVersion);
+        identityPacket.set("tcpPort", endpoint.port);
+
+        Log.i("KDE/LanLinkProvider", "Connecting to the last known address of " + endpoint.deviceId);
+        SocketChannel channel = connectAndSendIdentity(new InetSocketAddress(endpoint.address, endpoint.port), DIRECT_CONNECT_TIMEOUT_MILLIS);
+        long deadline = System.currentTimeMillis() + LanHandshakeAdmission.TIME_BUDGET_MILLIS;
+        directChannels.add(channel);
         try {
-            socket.setKeepAlive(true);
+            identityPacketReceived(identityPacket, channel, ByteBuffer.allocate(0), LanLink.ConnectionStarted.Remotely, true, deadline);
+        } finally {
+            directChannels.remove(channel);
+        }
+    }
+
+    private void configureSocket(SocketChannel channel) {
+        try {
+            channel.socket().setKeepAlive(true);
         } catch (SocketException e) {
             Log.e("LanLink", "Exception", e);
         }
@@ -261,26 +362,31 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     /**
      * Called when a new 'identity' packet is received. Those are passed here by
-     * {@link #tcpPacketReceived(Socket)} and {@link #udpPacketReceived(DatagramPacket)}.
+     * {@link #tcpPacketReceived(SocketChannel, long)} and {@link #udpPacketReceived(InetAddress, String)}.
      * Should be called on a new thread since it blocks until the handshake is completed.
      *
      * @param identityPacket    identity of a remote device
-     * @param socket            a new Socket, which should be used to receive packets from the remote device
+     * @param channel           a new SocketChannel, which should be used to receive packets from the remote device
+     * @param received          bytes already read from the channel after the identity packet, in read mode
      * @param connectionStarted which side started this connection
      * @param deviceTrusted     whether the packet comes from a trusted device
+     * @param deadline          when, in {@link System#currentTimeMillis()} time, to give up on the handshake
+     * @throws IOException if the handshake fails, after closing the channel
      */
     @WorkerThread
-    private void identityPacketReceived(final NetworkPacket identityPacket, final Socket socket, final LanLink.ConnectionStarted connectionStarted, final boolean deviceTrusted) throws IOException {
+    private void identityPacketReceived(final NetworkPacket identityPacket, final SocketChannel channel, final ByteBuffer received, final LanLink.ConnectionStarted connectionStarted, final boolean deviceTrusted, final long deadline) throws IOException {
         final String deviceId = identityPacket.getString("deviceId");
 
         int protocolVersion = identityPacket.getInt("protocolVersion");
         if (deviceTrusted && isProtocolDowngrade(deviceId, protocolVersion)) {
             Log.w("KDE/LanLinkProvider", "Refusing to connect to a device using an older protocol version:" + protocolVersion);
+            channel.close();
             return;
         }
 
         if (deviceTrusted && !SslHelper.isCertificateStored(context, deviceId)) {
             Log.e("KDE/LanLinkProvider", "Device trusted but no cert stored. This should not happen.");
+            channel.close();
             return;
         }
 
@@ -289,48 +395,60 @@ public class LanLinkProvider extends BaseLinkProvider {
 
         // If I'm the TCP server I will be the SSL client and viceversa.
         final boolean clientMode = (connectionStarted == LanLink.ConnectionStarted.Locally);
-        final SSLSocket sslSocket = SslHelper.convertToSslSocket(context, socket, deviceId, deviceTrusted, clientMode);
-        sslSocket.addHandshakeCompletedListener(event -> {
-            // Start a new thread because some Android versions don't allow calling sslSocket.getOutputStream() from the callback
-            ThreadHelper.execute(() -> {
-                String mode = clientMode ? "client" : "server";
-                try {
-                    NetworkPacket secureIdentityPacket;
-                    if (protocolVersion >= 8) {
-                        DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
-                        NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
-                        OutputStream writer = sslSocket.getOutputStream();
-                        writer.write(myIdentity.serialize().getBytes(Charsets.UTF_8));
-                        writer.flush();
-                        String line = readSingleLine(sslSocket);
-                        // Do not trust the identity packet we received unencrypted
-                        secureIdentityPacket = NetworkPacket.unserialize(line);
-                        if (!DeviceInfo.isValidIdentityPacket(secureIdentityPacket)) {
-                            throw new JSONException("Invalid identity packet");
-                        }
-                        int newProtocolVersion = secureIdentityPacket.getInt("protocolVersion");
-                        if (newProtocolVersion != protocolVersion) {
-                            Log.w("KDE/LanLinkProvider", "Protocol version changed half-way through the handshake: " + protocolVersion + " ->" + newProtocolVersion);
-                        }
-                    } else {
-                        secureIdentityPacket = identityPacket;
-                    }
-                    Certificate certificate = event.getPeerCertificates()[0];
-                    DeviceInfo deviceInfo = DeviceInfo.fromIdentityPacketAndCert(secureIdentityPacket, certificate);
-                    Log.i("KDE/LanLinkProvider", "Handshake as " + mode + " successful with " + deviceName + " secured with " + event.getCipherSuite());
-                    addOrUpdateLink(sslSocket, deviceInfo);
-                } catch (JSONException e) {
-                    Log.e("KDE/LanLinkProvider", "Remote device doesn't correctly implement protocol version 8", e);
-                } catch (IOException e) {
-                    Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + deviceName, e);
+        final String mode = clientMode ? "client" : "server";
+        InetSocketAddress peerAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        final LanTlsChannel tlsChannel = new LanTlsChannel(channel, SslHelper.createSslEngine(context, peerAddress, deviceId, deviceTrusted, clientMode), received);
+        try {
+            //Handshake is blocking, we are already on a thread of our own so other connections can still be received
+            Log.d("LanLinkProvider", "Starting handshake");
+            long handshakeStart = System.currentTimeMillis();
+            tlsChannel.handshake(Math.min(HANDSHAKE_TIMEOUT_MILLIS, deadline - System.currentTimeMillis()));
+            SslHelper.reportHandshake(deviceId, tlsChannel.getSession(), handshakeStart);
+
+            NetworkPacket secureIdentityPacket;
+            if (protocolVersion >= 8) {
+                DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
+                NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
+                tlsChannel.write(ByteBuffer.wrap(myIdentity.serialize().getBytes(Charsets.UTF_8)));
+                String line = tlsChannel.readLine(MAX_IDENTITY_PACKET_SIZE, deadline - System.currentTimeMillis());
+                // Do not trust the identity packet we received unencrypted
+                secureIdentityPacket = NetworkPacket.unserialize(line);
+                if (!DeviceInfo.isValidIdentityPacket(secureIdentityPacket)) {
+                    throw new JSONException("Invalid identity packet");
                 }
-            });
-        });
-
-        //Handshake is blocking, so do it on another thread and free this thread to keep receiving new connection
-        Log.d("LanLinkProvider", "Starting handshake");
-        sslSocket.startHandshake();
-        Log.d("LanLinkProvider", "Handshake done");
+                int newProtocolVersion = secureIdentityPacket.getInt("protocolVersion");
+                if (newProtocolVersion != protocolVersion) {
+                    Log.w("KDE/LanLinkProvider", "Protocol version changed half-way through the handshake: " + protocolVersion + " ->" + newProtocolVersion);
+                }
+            } else {
+                secureIdentityPacket = identityPacket;
+            }
+            Certificate certificate = tlsChannel.getPeerCertificates()[0];
+            DeviceInfo deviceInfo = DeviceInfo.fromIdentityPacketAndCert(secureIdentityPacket, certificate);
+            Log.i("KDE/LanLinkProvider", "Handshake as " + mode + " successful with " + deviceName + " secured with " + tlsChannel.getCipherSuite());
+            addOrUpdateLink(tlsChannel, deviceInfo);
+            if (deviceTrusted) {
+                // Only if we connected to it, from its broadcast or the cache: otherwise all we know is
+                // the port it connected from, not the one it listens on
+                if (connectionStarted == LanLink.ConnectionStarted.Remotely) {
+                    endpointCache.put(deviceId, peerAddress.getAddress(), peerAddress.getPort());
+                }
+                Long since = disconnectedSince.remove(deviceId);
+                if (since != null) {
+                    boolean direct = directChannels.contains(channel);
+                    long duration = System.currentTimeMillis() - since;
+                    Log.i("KDE/LanLinkProvider", "Reconnected to " + deviceName + (direct ? " directly" : "") + " after " + duration + "ms");
+                    DeviceStats.countReconnect(deviceId, direct, duration);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e("KDE/LanLinkProvider", "Remote device doesn't correctly implement protocol version 8", e);
+            tlsChannel.close();
+        } catch (IOException e) {
+            Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + deviceName);
+            tlsChannel.close();
+            throw e;
+        }
     }
 
     private boolean isProtocolDowngrade(String deviceId, int protocolVersion) {
@@ -342,25 +460,26 @@ public class LanLinkProvider extends BaseLinkProvider {
     /**
      * Add or update a link in the {@link #visibleDevices} map.
      *
-     * @param socket           a new Socket, which should be used to send and receive packets from the remote device
+     * @param channel          a new LanTlsChannel, which should be used to send and receive packets from the remote device
      * @param deviceInfo       remote device info
-     * @throws IOException if an exception is thrown by {@link LanLink#reset(SSLSocket, DeviceInfo)}
+     * @throws IOException if an exception is thrown by {@link LanLink#reset(LanTlsChannel, DeviceInfo)}
      */
-    private void addOrUpdateLink(SSLSocket socket, DeviceInfo deviceInfo) throws IOException {
+    private void addOrUpdateLink(LanTlsChannel channel, DeviceInfo deviceInfo) throws IOException {
         LanLink link = visibleDevices.get(deviceInfo.id);
         if (link != null) {
             if (!link.getDeviceInfo().certificate.equals(deviceInfo.certificate)) {
                 Log.e("LanLinkProvider", "LanLink was asked to replace a socket but the certificate doesn't match, aborting");
+                channel.close();
                 return;
             }
             // Update existing link
             Log.d("KDE/LanLinkProvider", "Reusing same link for device " + deviceInfo.id);
-            link.reset(socket, deviceInfo);
+            link.reset(channel, deviceInfo);
             onDeviceInfoUpdated(deviceInfo);
         } else {
             // Create a new link
             Log.d("KDE/LanLinkProvider", "Creating a new link for device " + deviceInfo.id);
-            link = new LanLink(context, deviceInfo, this, socket);
+            link = new LanLink(context, deviceInfo, this, readerEngine, channel);
             visibleDevices.put(deviceInfo.id, link);
             onConnectionReceived(link);
         }
@@ -369,48 +488,12 @@ public class LanLinkProvider extends BaseLinkProvider {
     public LanLinkProvider(Context context) {
         this.context = context;
         this.mdnsDiscovery = new MdnsDiscovery(context, this);
-    }
-
-    private void setupUdpListener() {
-        try {
-            udpServer = new DatagramSocket(null);
-            udpServer.setReuseAddress(true);
-            udpServer.setBroadcast(true);
-        } catch (SocketException e) {
-            Log.e("LanLinkProvider", "Error creating udp server", e);
-            throw new RuntimeException(e);
-        }
-        try {
-            udpServer.bind(new InetSocketAddress(UDP_PORT));
-        } catch (SocketException e) {
-            // We ignore this exception and continue without being able to receive broadcasts instead of crashing the app.
-            Log.e("LanLinkProvider", "Error binding udp server. We can send udp broadcasts but not receive them", e);
-        }
-        ThreadHelper.execute(() -> {
-            Log.i("UdpListener", "Starting UDP listener");
-            while (listening) {
-                try {
-                    DatagramPacket packet = new DatagramPacket(new byte[MAX_UDP_PACKET_SIZE], MAX_UDP_PACKET_SIZE);
-                    udpServer.receive(packet);
-                    ThreadHelper.execute(() -> {
-                        try {
-                            udpPacketReceived(packet);
-                        } catch (JSONException | IOException e) {
-                            Log.e("LanLinkProvider", "Exception receiving incoming UDP connection", e);
-                        }
-                    });
-                } catch (IOException e) {
-                    Log.e("LanLinkProvider", "UdpReceive exception", e);
-                    onNetworkChange(null); // Trigger a UDP broadcast to try to get them to connect to us instead
-                }
-            }
-            Log.w("UdpListener", "Stopping UDP listener");
-        });
+        this.endpointCache = new LanEndpointCache(context);
     }
 
     private void setupTcpListener() {
         try {
-            tcpServer = openServerSocketOnFreePort(MIN_PORT);
+            tcpServer = openServerSocketChannelOnFreePort(MIN_PORT);
         } catch (IOException e) {
             Log.e("LanLinkProvider", "Error creating tcp server", e);
             throw new RuntimeException(e);
@@ -418,15 +501,15 @@ public class LanLinkProvider extends BaseLinkProvider {
         ThreadHelper.execute(() -> {
             while (listening) {
                 try {
-                    Socket socket = tcpServer.accept();
-                    configureSocket(socket);
-                    ThreadHelper.execute(() -> {
-                        try {
-                            tcpPacketReceived(socket);
-                        } catch (IOException e) {
-                            Log.e("LanLinkProvider", "Exception receiving incoming TCP connection", e);
-                        }
-                    });
+                    SocketChannel channel = tcpServer.accept();
+                    InetAddress address = channel.socket().getInetAddress();
+                    if (rateLimitByIp(address)) {
+                        Log.i("LanLinkProvider", "Discarding second TCP packet from the same ip " + address + " received too quickly");
+                        channel.close();
+                        continue;
+                    }
+                    configureSocket(channel);
+                    handshakeAdmission.admit(address, channel, deadline -> tcpPacketReceived(channel, deadline));
                 } catch (Exception e) {
                     Log.e("LanLinkProvider", "TcpReceive exception", e);
                 }
@@ -455,6 +538,26 @@ public class LanLinkProvider extends BaseLinkProvider {
         throw new RuntimeException("This should not be reachable");
     }
 
+    private static ServerSocketChannel openServerSocketChannelOnFreePort(int minPort) throws IOException {
+        int tcpPort = minPort;
+        while (tcpPort <= MAX_PORT) {
+            ServerSocketChannel candidateServer = ServerSocketChannel.open();
+            try {
+                candidateServer.socket().bind(new InetSocketAddress(tcpPort));
+                Log.i("KDE/LanLink", "Using port " + tcpPort);
+                return candidateServer;
+            } catch (IOException e) {
+                candidateServer.close();
+                tcpPort++;
+                if (tcpPort == MAX_PORT) {
+                    Log.e("KDE/LanLink", "No ports available");
+                    throw e; //Propagate exception
+                }
+            }
+        }
+        throw new RuntimeException("This should not be reachable");
+    }
+
     private void broadcastUdpIdentityPacket(@Nullable Network network) {
         ThreadHelper.execute(() -> {
             List<DeviceHost> hostList = CustomDevicesActivity
@@ -466,26 +569,18 @@ public class LanLinkProvider extends BaseLinkProvider {
                 Log.i("LanLinkProvider", "Current network isn't trusted, not broadcasting");
             }
 
-            ArrayList<InetAddress> ipList = new ArrayList<>();
+            ArrayList<String> hosts = new ArrayList<>();
             for (DeviceHost host : hostList) {
-                try {
-                    ipList.add(InetAddress.getByName(host.toString()));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            if (ipList.isEmpty()) {
-                return;
+                hosts.add(host.toString());
             }
 
-            sendUdpIdentityPacket(ipList, network);
+            hostResolver.resolve(hosts, ipList -> sendUdpIdentityPacket(ipList, network));
         });
     }
 
     @WorkerThread
     public void sendUdpIdentityPacket(List<InetAddress> ipList, @Nullable Network network) {
-        if (tcpServer == null || !tcpServer.isBound()) {
+        if (tcpServer == null || !tcpServer.socket().isBound()) {
             Log.i("LanLinkProvider", "Won't broadcast UDP packet if TCP socket is not ready yet");
             return;
         }
@@ -494,7 +589,7 @@ public class LanLinkProvider extends BaseLinkProvider {
         //       since it will be exchanged after the socket is encrypted.
         DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
         NetworkPacket identity = myDeviceInfo.toIdentityPacket();
-        identity.set("tcpPort", tcpServer.getLocalPort());
+        identity.set("tcpPort", tcpServer.socket().getLocalPort());
 
         byte[] bytes;
         try {
@@ -541,7 +636,7 @@ public class LanLinkProvider extends BaseLinkProvider {
 
             listening = true;
 
-            setupUdpListener();
+            udpListener.start(UDP_PORT);
             setupTcpListener();
 
             mdnsDiscovery.startDiscovering();
@@ -549,12 +644,16 @@ public class LanLinkProvider extends BaseLinkProvider {
                 mdnsDiscovery.startAnnouncing();
             }
 
+            connectToCachedEndpoints();
             broadcastUdpIdentityPacket(null);
         }
     }
 
     @Override
     public void onNetworkChange(@Nullable Network network) {
+        // Not throttled, connections already being tried are skipped
+        connectToCachedEndpoints();
+
         if (System.currentTimeMillis() < lastBroadcast + delayBetweenBroadcasts) {
             Log.i("LanLinkProvider", "onNetworkChange: relax cowboy");
             return;
@@ -577,11 +676,7 @@ public class LanLinkProvider extends BaseLinkProvider {
         } catch (Exception e) {
             Log.e("LanLink", "Exception", e);
         }
-        try {
-            udpServer.close();
-        } catch (Exception e) {
-            Log.e("LanLink", "Exception", e);
-        }
+        udpListener.stop();
     }
 
     @Override
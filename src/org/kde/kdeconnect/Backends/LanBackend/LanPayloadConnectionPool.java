@@ -0,0 +1,261 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the payload connections of a {@link LanLink} open after a transfer, so the next payloads can
+ * reuse them instead of binding a new port and doing a new TLS handshake every time.
+ * <p>
+ * Only used if both devices announce {@link org.kde.kdeconnect.Backends.LinkFeatures#PAYLOAD_CONNECTION_REUSE}.
+ * The sender gives an id to every payload connection it opens and sends it in the payloadTransferInfo
+ * together with the port. Once the receiver has read the whole payload, it sends back {@link #ACK}
+ * and both ends keep the connection under that id. Later payloads only carry the id.
+ */
+class LanPayloadConnectionPool {
+
+    private static final String LOG_TAG = "LanPayloadConnections";
+
+    static final int ACK = 1;
+    static final int ACK_TIMEOUT_MILLIS = 10 * 1000;
+
+    static final int MAX_IDLE_CONNECTIONS = 4;
+    // The receiver keeps its end for longer, so it never drops a connection the sender is about to reuse
+    static final long SENDER_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    static final long RECEIVER_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+
+    static class Connection {
+        final int id;
+        final Socket socket;
+        private long idleSince;
+
+        Connection(int id, @NonNull Socket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ArrayDeque<Connection> idleForSending = new ArrayDeque<>(); // Guarded by this
+    private final HashMap<Integer, Connection> idleForReceiving = new HashMap<>(); // Guarded by this
+    private boolean sweepScheduled = false; // Guarded by this
+
+    int newConnectionId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Returns the most recently used idle connection to send a payload, or null if there's none.
+     */
+    @Nullable
+    synchronized Connection takeForSending() {
+        return idleForSending.pollLast();
+    }
+
+    /**
+     * Waits for the receiver to confirm it read the whole payload and keeps the connection for later.
+     * Closes the connection if the confirmation doesn't arrive.
+     */
+    void releaseAfterSending(@NonNull Connection connection) {
+        try {
+            connection.socket.setSoTimeout(ACK_TIMEOUT_MILLIS);
+            int ack = connection.socket.getInputStream().read();
+            if (ack != ACK) {
+                throw new IOException("Unexpected payload ack: " + ack);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Payload connection " + connection.id + " not acknowledged, closing it", e);
+            connection.close();
+            return;
+        }
+        synchronized (this) {
+            if (idleForSending.size() >= MAX_IDLE_CONNECTIONS) {
+                idleForSending.pollFirst().close();
+            }
+            connection.idleSince = System.currentTimeMillis();
+            idleForSending.addLast(connection);
+            scheduleSweep();
+        }
+    }
+
+    @Nullable
+    synchronized Connection takeForReceiving(int id) {
+        return idleForReceiving.remove(id);
+    }
+
+    /**
+     * Wraps the connection in a stream that returns exactly payloadSize bytes. Closing the stream
+     * gives the connection back to the pool if the whole payload was read, or closes it otherwise.
+     */
+    @NonNull
+    InputStream receivePayload(@NonNull Connection connection, long payloadSize) throws IOException {
+        connection.socket.setSoTimeout(0);
+        return new PayloadInputStream(connection, payloadSize);
+    }
+
+    private void releaseAfterReceiving(Connection connection) {
+        synchronized (this) {
+            connection.idleSince = System.currentTimeMillis();
+            Connection previous = idleForReceiving.put(connection.id, connection);
+            if (previous != null && previous != connection) {
+                previous.close();
+            }
+            scheduleSweep();
+        }
+        // Only now that it's in the pool, so the sender can't reuse it before we are ready
+        try {
+            OutputStream out = connection.socket.getOutputStream();
+            out.write(ACK);
+            out.flush();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't acknowledge payload on connection " + connection.id, e);
+            synchronized (this) {
+                if (idleForReceiving.get(connection.id) == connection) {
+                    idleForReceiving.remove(connection.id);
+                }
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes all the idle connections, eg: because the device reconnected and the ids it assigned
+     * before are no longer meaningful.
+     */
+    synchronized void closeAll() {
+        for (Connection connection : idleForSending) {
+            connection.close();
+        }
+        idleForSending.clear();
+        for (Connection connection : idleForReceiving.values()) {
+            connection.close();
+        }
+        idleForReceiving.clear();
+    }
+
+    private void scheduleSweep() {
+        if (!sweepScheduled) {
+            sweepScheduled = true;
+            sweeper.schedule(this::sweep, SENDER_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sweep() {
+        sweepScheduled = false;
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = idleForSending.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (connection.idleSince + SENDER_IDLE_TIMEOUT_MILLIS <= now) {
+                it.remove();
+                connection.close();
+            }
+        }
+        it = idleForReceiving.values().iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (connection.idleSince + RECEIVER_IDLE_TIMEOUT_MILLIS <= now) {
+                it.remove();
+                connection.close();
+            }
+        }
+        if (!idleForSending.isEmpty() || !idleForReceiving.isEmpty()) {
+            scheduleSweep();
+        }
+    }
+
+    private class PayloadInputStream extends FilterInputStream {
+        private final Connection connection;
+        private long remaining;
+        private boolean closed = false;
+
+        PayloadInputStream(Connection connection, long payloadSize) throws IOException {
+            super(connection.socket.getInputStream());
+            this.connection = connection;
+            this.remaining = payloadSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (remaining == 0) {
+                releaseAfterReceiving(connection);
+            } else {
+                // The reader gave up half-way, the rest of the payload is still in the socket
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.kde.kdeconnect.NetworkPacket;
+import org.kde.kdeconnect.NetworkPacketParser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives the packets for all the {@link LanLink}s using a small, fixed set of threads. Each thread
+ * multiplexes many {@link LanTlsChannel}s with a {@link Selector}, so we don't need a thread blocked
+ * on every socket.
+ * <p>
+ * The framing is the same as always: one JSON packet per line. Additionally, a line can't start with
+ * a zero byte in JSON, so that is used to mark binary frames: a zero byte followed by the length of
+ * the frame as a big endian int and the frame itself. Those are only sent if both ends negotiated it.
+ * <p>
+ * Packets are parsed with a {@link NetworkPacketParser} as their bytes arrive, so a big packet
+ * doesn't need to fit in the receive buffer nor be copied around before it's parsed.
+ */
+class LanReaderEngine {
+
+    private static final String LOG_TAG = "LanReaderEngine";
+
+    static final byte BINARY_FRAME_MARKER = 0;
+    static final int BINARY_FRAME_HEADER_SIZE = 1 + 4;
+    static final int MAX_BINARY_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Receives the frames of a registered channel. All the calls happen on a reader thread, so
+     * implementations must return quickly: slow work has to be moved to another thread.
+     */
+    interface FrameListener {
+        /**
+         * The reader thread woke up because the channel had something to read. Called before the
+         * frames that arrived are delivered.
+         */
+        void onWakeup();
+
+        void onPacketReceived(@NonNull NetworkPacket np);
+
+        /**
+         * A packet couldn't be parsed. If it was too long (see {@link NetworkPacketParser.PacketTooLargeException})
+         * it has been skipped and reading goes on, otherwise the connection can't be trusted anymore.
+         */
+        void onInvalidPacket(@NonNull JSONException e);
+
+        /**
+         * The frame buffer is only valid during the call, the contents have to be copied if needed later.
+         */
+        void onBinaryFrameReceived(@NonNull LanTlsChannel channel, @NonNull ByteBuffer frame) throws IOException;
+
+        /**
+         * Called once, after the channel has been closed (either remotely, because of an error or
+         * by calling {@link Registration#close()}).
+         */
+        void onClosed(@NonNull LanTlsChannel channel, @NonNull Exception reason);
+    }
+
+    private final int threadCount;
+    private final int maxPacketSize;
+    private SelectorThread[] threads; // Lazily started on the first registration
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    /**
+     * @param maxPacketSize packets longer than this many bytes are skipped
+     */
+    LanReaderEngine(int threadCount, int maxPacketSize) {
+        this.threadCount = threadCount;
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Starts reading from the channel. Any data already in its app buffer (eg: received together
+     * with the identity packet) is delivered first.
+     */
+    @NonNull
+    Registration register(@NonNull LanTlsChannel channel, @NonNull FrameListener listener) throws IOException {
+        SelectorThread thread = getThreads()[Math.abs(nextThread.getAndIncrement() % threadCount)];
+        Registration registration = new Registration(thread, channel, listener, new NetworkPacketParser(maxPacketSize));
+        thread.post(registration::attach);
+        return registration;
+    }
+
+    private synchronized SelectorThread[] getThreads() throws IOException {
+        if (threads == null) {
+            SelectorThread[] newThreads = new SelectorThread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                newThreads[i] = new SelectorThread(Selector.open(), i);
+                newThreads[i].start();
+            }
+            threads = newThreads;
+        }
+        return threads;
+    }
+
+    static class Registration {
+        private final SelectorThread thread;
+        final LanTlsChannel channel;
+        private final FrameListener listener;
+        private final NetworkPacketParser parser; // Only accessed from the selector thread
+        private SelectionKey key; // Only accessed from the selector thread
+        private boolean paused = false;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Registration(SelectorThread thread, LanTlsChannel channel, FrameListener listener, NetworkPacketParser parser) {
+            this.thread = thread;
+            this.channel = channel;
+            this.listener = listener;
+            this.parser = parser;
+        }
+
+        /**
+         * Stops reading from the socket until {@link #resumeReading()} is called. Data keeps
+         * accumulating in the kernel buffers, which eventually makes the other end stop sending.
+         */
+        void pauseReading() {
+            thread.post(() -> {
+                paused = true;
+                updateInterest();
+            });
+        }
+
+        void resumeReading() {
+            thread.post(() -> {
+                paused = false;
+                updateInterest();
+            });
+        }
+
+        /**
+         * Closes the channel. The listener's onClosed will be called from the reader thread.
+         */
+        void close() {
+            close(new IOException("Closed locally"));
+        }
+
+        /**
+         * Like {@link #close()}, with the reason passed to onClosed.
+         */
+        void close(@NonNull IOException reason) {
+            thread.post(() -> fail(reason));
+        }
+
+        private void attach() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                key = channel.getChannel().register(thread.selector, paused ? 0 : SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                fail(e);
+                return;
+            }
+            onReadable();
+        }
+
+        private void updateInterest() {
+            if (key != null && key.isValid()) {
+                key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        private void onReadable() {
+            try {
+                int read = channel.readAvailable();
+                deliverFrames();
+                if (read < 0) {
+                    throw new EOFException("End of stream");
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void deliverFrames() throws IOException {
+            ByteBuffer buffer = channel.getAppBuffer();
+            byte[] array = buffer.array();
+            int end = buffer.position();
+            int frameStart = 0;
+            while (frameStart < end) {
+                if (parser.isIdle() && array[frameStart] == BINARY_FRAME_MARKER) {
+                    if (end - frameStart < BINARY_FRAME_HEADER_SIZE) {
+                        break;
+                    }
+                    int length = ByteBuffer.wrap(array, frameStart + 1, 4).getInt();
+                    if (length < 0 || length > MAX_BINARY_FRAME_SIZE) {
+                        throw new IOException("Invalid binary frame length " + length);
+                    }
+                    int frameEnd = frameStart + BINARY_FRAME_HEADER_SIZE + length;
+                    if (end < frameEnd) {
+                        break;
+                    }
+                    listener.onBinaryFrameReceived(channel, ByteBuffer.wrap(array, frameStart + BINARY_FRAME_HEADER_SIZE, length).slice());
+                    frameStart = frameEnd;
+                    continue;
+                }
+                frameStart += parser.feed(array, frameStart, end - frameStart);
+                NetworkPacket np;
+                try {
+                    np = parser.takePacket();
+                } catch (JSONException e) {
+                    listener.onInvalidPacket(e); // The parser skips the rest of the line by itself
+                    continue;
+                }
+                if (np != null) {
+                    listener.onPacketReceived(np);
+                }
+            }
+            if (frameStart > 0) {
+                buffer.flip();
+                buffer.position(frameStart);
+                buffer.compact();
+            }
+        }
+
+        private void fail(Exception reason) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+            listener.onClosed(channel, reason);
+        }
+    }
+
+    private static class SelectorThread extends Thread {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+        SelectorThread(Selector selector, int index) {
+            super("LanReader-" + index);
+            this.selector = selector;
+            setDaemon(true);
+        }
+
+        /**
+         * Runs the task on this thread. Registrations and interest changes go through here because
+         * they could block if done from another thread while select() is running.
+         */
+        void post(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Select failed", e);
+                    continue;
+                }
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Exception running task", e);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Registration registration = (Registration) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        registration.listener.onWakeup();
+                        registration.onReadable();
+                    }
+                }
+            }
+        }
+    }
+}
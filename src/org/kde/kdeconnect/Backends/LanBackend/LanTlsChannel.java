@@ -0,0 +1,405 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import kotlin.text.Charsets;
+
+/**
+ * A TLS connection over a non-blocking {@link SocketChannel}, driven by an {@link SSLEngine}.
+ * <p>
+ * Unlike an SSLSocket, this doesn't need a thread blocked on it to receive data: once the handshake
+ * is done, the {@link LanReaderEngine} calls {@link #readAvailable()} when the socket is readable
+ * and consumes the decrypted bytes from {@link #getAppBuffer()}.
+ * <p>
+ * Writes can happen from any thread and block until all the data has been handed to the kernel.
+ */
+class LanTlsChannel implements Closeable {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final static long WRITE_TIMEOUT_MILLIS = 30 * 1000;
+    final static int RECORDS_PER_WRITE = 4;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final InetSocketAddress remoteAddress;
+
+    // Only accessed from the thread reading (the handshake thread first, a reader engine thread later)
+    private ByteBuffer netIn; // Encrypted bytes read from the socket, in write mode
+    private ByteBuffer appIn; // Decrypted bytes not consumed yet, in write mode
+
+    // Fair, so a packet waits behind at most one write of each other thread (eg: payload chunks)
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private ByteBuffer netOut; // Guarded by writeLock
+    private volatile Selector writeSelector; // Guarded by writeLock, created on the first write that would block
+
+    private volatile boolean closed = false;
+
+    LanTlsChannel(@NonNull SocketChannel channel, @NonNull SSLEngine engine) throws IOException {
+        this(channel, engine, EMPTY);
+    }
+
+    /**
+     * @param received bytes already read from the channel (in read mode), eg: together with the
+     *                 identity packet that precedes the handshake
+     */
+    LanTlsChannel(@NonNull SocketChannel channel, @NonNull SSLEngine engine, @NonNull ByteBuffer received) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        int packetBufferSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(Math.max(packetBufferSize, received.remaining()));
+        this.netIn.put(received);
+        this.netOut = ByteBuffer.allocate(packetBufferSize * RECORDS_PER_WRITE);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        channel.configureBlocking(false);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+        return engine.getSession().getPeerCertificates();
+    }
+
+    String getCipherSuite() {
+        return engine.getSession().getCipherSuite();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Decrypted bytes received and not consumed yet, in write mode (ie: the data is between 0 and
+     * position()). Consumers should compact() the buffer after reading from it. The returned buffer
+     * can change after a call to {@link #readAvailable()}.
+     */
+    ByteBuffer getAppBuffer() {
+        return appIn;
+    }
+
+    /**
+     * Blocks until the TLS handshake is completed.
+     */
+    void handshake(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        engine.beginHandshake();
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_WRAP:
+                        status = wrapAndWrite(EMPTY);
+                        break;
+                    case NEED_UNWRAP:
+                        SSLEngineResult result = unwrap();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during the handshake");
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            int read = channel.read(netIn);
+                            if (read < 0) {
+                                throw new EOFException("Connection closed during the handshake");
+                            }
+                            if (read == 0) {
+                                awaitReadable(selector, key, deadline);
+                            }
+                        }
+                        status = engine.getHandshakeStatus();
+                        break;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    default:
+                        throw new SSLException("Unexpected handshake status " + status);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until a full line is received and returns it, including the trailing newline.
+     * Anything received after the newline is kept in the app buffer for whoever reads next.
+     */
+    String readLine(int maxLength, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            int scanned = 0;
+            while (true) {
+                byte[] array = appIn.array();
+                for (int i = scanned; i < appIn.position(); i++) {
+                    if (array[i] == '\n') {
+                        String line = new String(array, 0, i + 1, Charsets.UTF_8);
+                        appIn.flip();
+                        appIn.position(i + 1);
+                        appIn.compact();
+                        return line;
+                    }
+                }
+                scanned = appIn.position();
+                if (scanned >= maxLength) {
+                    throw new IOException("Line too long");
+                }
+                int read = readAvailable();
+                if (read < 0) {
+                    throw new EOFException("End of stream");
+                }
+                if (read == 0 && appIn.position() == scanned) {
+                    awaitReadable(selector, key, deadline);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads what is available on the socket without blocking and decrypts it into the app buffer.
+     *
+     * @return the number of bytes read from the socket, or -1 if the connection was closed
+     */
+    int readAvailable() throws IOException {
+        int read = channel.read(netIn);
+        SSLEngineResult result = unwrap();
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrapAndWrite(EMPTY);
+            } else {
+                break;
+            }
+            result = unwrap();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            return -1;
+        }
+        return read;
+    }
+
+    /**
+     * Encrypts and writes all the remaining bytes in srcs, blocking until they are sent.
+     */
+    void write(ByteBuffer... srcs) throws IOException {
+        writeLock.lock();
+        try {
+            do {
+                wrapAndWrite(srcs);
+            } while (hasRemaining(srcs));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrypts as many records as possible from netIn into appIn.
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        SSLEngineResult result;
+        netIn.flip();
+        try {
+            while (true) {
+                result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.OK
+                        && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && netIn.hasRemaining() && result.bytesConsumed() > 0) {
+                    continue; // There might be more records
+                }
+                break;
+            }
+        } finally {
+            netIn.compact();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netIn.hasRemaining()) {
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        }
+        return result;
+    }
+
+    private SSLEngineResult.HandshakeStatus wrapAndWrite(ByteBuffer... srcs) throws IOException {
+        writeLock.lock();
+        try {
+            netOut.clear();
+            SSLEngineResult result;
+            while (true) {
+                result = engine.wrap(srcs, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (netOut.position() > 0) {
+                        break; // Write what we have, the caller will come back for the rest
+                    }
+                    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize() * RECORDS_PER_WRITE);
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("Connection closed");
+                }
+                // Pack as many records as fit, so big writes (eg: several packets) need fewer syscalls
+                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        || result.bytesConsumed() == 0 || !hasRemaining(srcs)) {
+                    break;
+                }
+            }
+            netOut.flip();
+            writeFully(netOut);
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return engine.getHandshakeStatus();
+            }
+            return result.getHandshakeStatus();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        long deadline = 0;
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                if (deadline == 0) {
+                    deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+                }
+                awaitWritable(deadline);
+            }
+        }
+    }
+
+    private void awaitWritable(long deadline) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out writing to " + remoteAddress);
+        }
+        Selector selector = writeSelector;
+        if (selector == null) {
+            selector = Selector.open();
+            try {
+                channel.register(selector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                selector.close();
+                throw e;
+            }
+            writeSelector = selector;
+        }
+        try {
+            // Also checked before waiting, close() might have missed the selector we just created
+            if (closed) {
+                selector.close();
+                throw new IOException("Connection closed");
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new IOException("Connection closed", e); // By close(), while we were waiting
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void awaitReadable(Selector selector, SelectionKey key, long deadline) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out reading from " + remoteAddress);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+        key.interestOps(0);
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minFreeSpace) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.position() + Math.max(minFreeSpace, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Closes the connection. Doesn't block: if another thread is writing, the TLS close_notify is skipped.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (writeLock.tryLock()) {
+            try {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut); // Best effort, don't wait if it doesn't fit
+            } catch (Exception ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        Selector selector = writeSelector;
+        if (selector != null) {
+            selector.wakeup();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -11,12 +11,14 @@ import android.content.Context;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.util.Log;
 
 import org.kde.kdeconnect.Helpers.DeviceHelper;
 
 import java.net.InetAddress;
 import java.util.Collections;
+import java.util.List;
 
 public class MdnsDiscovery {
 
@@ -36,6 +38,8 @@ public class MdnsDiscovery {
 
     private NsdResolveQueue mNsdResolveQueue;
 
+    private final ResolvedServiceCache resolvedServices = new ResolvedServiceCache();
+
     public MdnsDiscovery(Context context, LanLinkProvider lanLinkProvider) {
         this.context = context;
         this.lanLinkProvider = lanLinkProvider;
@@ -169,7 +173,14 @@ public class MdnsDiscovery {
                     return;
                 }
 
-                // We use a queue because only one service can be resolved at
+                List<InetAddress> resolved = resolvedServices.get(deviceId);
+                if (resolved != null) {
+                    Log.i(LOG_TAG, "MDNS found " + deviceId + ", resolved lately to " + resolved);
+                    lanLinkProvider.sendUdpIdentityPacket(resolved, null);
+                    return;
+                }
+
+                // We use a queue because older Android versions can only resolve one service at
                 // a time, otherwise we get error 3 (already active) in onResolveFailed.
                 mNsdResolveQueue.resolveOrEnqueue(serviceInfo, createResolveListener());
             }
@@ -215,11 +226,18 @@ public class MdnsDiscovery {
                 Log.i(LOG_TAG, "MDNS successfully resolved " + serviceInfo);
 
                 // Let the LanLinkProvider handle the connection
-                InetAddress remoteAddress = serviceInfo.getHost();
+                List<InetAddress> remoteAddresses;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                    remoteAddresses = serviceInfo.getHostAddresses();
+                } else {
+                    remoteAddresses = Collections.singletonList(serviceInfo.getHost());
+                }
+                // The port isn't kept: the identity packet always goes to LanLinkProvider.UDP_PORT
+                resolvedServices.put(serviceInfo.getServiceName(), remoteAddresses);
                 // TODO: In protocol version 8 we should be able to call "identityPacketReceived"
                 //       here, since we already have all the info we need to start a connection
                 //       and the remaining identity info will be exchanged later.
-                lanLinkProvider.sendUdpIdentityPacket(Collections.singletonList(remoteAddress), null);
+                lanLinkProvider.sendUdpIdentityPacket(remoteAddresses, null);
             }
         };
     }
@@ -7,60 +7,142 @@ package org.kde.kdeconnect.Backends.LanBackend
 
 import android.net.nsd.NsdManager
 import android.net.nsd.NsdServiceInfo
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
+import androidx.annotation.RequiresApi
 import java.util.LinkedList
 
+/**
+ * Resolves the services found by NsdManager, a few at a time.
+ *
+ * Before Android 14 NsdManager only allows one resolveService() at a time (any other fails with
+ * FAILURE_ALREADY_ACTIVE), so requests are resolved one by one. From Android 14 on they are resolved
+ * with registerServiceInfoCallback() instead, which has no such limit, up to [MAX_CONCURRENT_RESOLVES]
+ * at the same time. Those callbacks never give up on their own, so they are given [RESOLVE_TIMEOUT_MILLIS].
+ */
 class NsdResolveQueue {
     val LOG_TAG: String = "NsdResolveQueue"
 
     private val nsdManager: NsdManager
     private val lock: Any
+    private val maxConcurrentResolves: Int
+    private val handler = Handler(Looper.getMainLooper())
 
-    private data class PendingResolve(val serviceInfo: NsdServiceInfo, val listener: NsdManager.ResolveListener)
+    private inner class PendingResolve(val serviceInfo: NsdServiceInfo, val listener: NsdManager.ResolveListener) {
+        var finished = false // Guarded by lock
+    }
     private val resolveRequests: LinkedList<PendingResolve>
+    private val activeRequests: MutableList<PendingResolve>
 
     constructor(nsdManager: NsdManager) {
         this.nsdManager = nsdManager
         this.lock = Any()
         this.resolveRequests = LinkedList<PendingResolve>()
+        this.activeRequests = ArrayList()
+        this.maxConcurrentResolves = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) MAX_CONCURRENT_RESOLVES else 1
     }
 
     fun resolveOrEnqueue(serviceInfo: NsdServiceInfo, listener: NsdManager.ResolveListener) {
         synchronized(lock) {
-            if (resolveRequests.any { r -> serviceInfo.serviceName == r.serviceInfo.serviceName }) {
+            if ((resolveRequests + activeRequests).any { r -> serviceInfo.serviceName == r.serviceInfo.serviceName }) {
                 Log.i(LOG_TAG, "Not enqueuing a new resolve request for the same service: " + serviceInfo.serviceName)
                 return
             }
-            resolveRequests.addLast(PendingResolve(serviceInfo, ListenerWrapper(listener)))
-            if (resolveRequests.size == 1) {
-                resolveNextRequest()
+            resolveRequests.addLast(PendingResolve(serviceInfo, listener))
+            resolveNextRequests()
+        }
+    }
+
+    private fun resolveNextRequests() {
+        while (activeRequests.size < maxConcurrentResolves && resolveRequests.isNotEmpty()) {
+            val request = resolveRequests.pop()
+            activeRequests.add(request)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                resolveWithCallback(request)
+            } else {
+                nsdManager.resolveService(request.serviceInfo, ListenerWrapper(request))
+            }
+        }
+    }
+
+    /**
+     * Marks request as done and starts the next ones.
+     *
+     * @return false if it was already done, eg: it timed out and now got a late answer
+     */
+    private fun finish(request: PendingResolve): Boolean {
+        synchronized(lock) {
+            if (request.finished) {
+                return false
             }
+            request.finished = true
+            activeRequests.remove(request)
+            resolveNextRequests()
+            return true
         }
     }
 
-    private inner class ListenerWrapper(private val listener: NsdManager.ResolveListener) : NsdManager.ResolveListener {
+    private inner class ListenerWrapper(private val request: PendingResolve) : NsdManager.ResolveListener {
         override fun onResolveFailed(serviceInfo: NsdServiceInfo, errorCode: Int) {
-            listener.onResolveFailed(serviceInfo, errorCode)
-            postResolve()
+            request.listener.onResolveFailed(serviceInfo, errorCode)
+            finish(request)
         }
 
         override fun onServiceResolved(serviceInfo: NsdServiceInfo) {
-            listener.onServiceResolved(serviceInfo)
-            postResolve()
+            request.listener.onServiceResolved(serviceInfo)
+            finish(request)
         }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    private fun resolveWithCallback(request: PendingResolve) {
+        val callback = object : NsdManager.ServiceInfoCallback {
+            override fun onServiceInfoCallbackRegistrationFailed(errorCode: Int) {
+                if (finish(request)) {
+                    request.listener.onResolveFailed(request.serviceInfo, errorCode)
+                }
+            }
+
+            override fun onServiceUpdated(serviceInfo: NsdServiceInfo) {
+                // We only want it resolved once, updates are handled by discovery
+                if (serviceInfo.hostAddresses.isNotEmpty() && finish(request)) {
+                    unregister(this)
+                    request.listener.onServiceResolved(serviceInfo)
+                }
+            }
 
-        private fun postResolve() {
-            synchronized(lock) {
-                resolveRequests.pop()
-                resolveNextRequest()
+            override fun onServiceLost() {
+                if (finish(request)) {
+                    unregister(this)
+                    request.listener.onResolveFailed(request.serviceInfo, NsdManager.FAILURE_INTERNAL_ERROR)
+                }
             }
+
+            override fun onServiceInfoCallbackUnregistered() {}
         }
+        nsdManager.registerServiceInfoCallback(request.serviceInfo, Runnable::run, callback)
+        handler.postDelayed({
+            if (finish(request)) {
+                Log.w(LOG_TAG, "Timed out resolving " + request.serviceInfo.serviceName)
+                unregister(callback)
+                request.listener.onResolveFailed(request.serviceInfo, NsdManager.FAILURE_INTERNAL_ERROR)
+            }
+        }, RESOLVE_TIMEOUT_MILLIS)
     }
 
-    private fun resolveNextRequest() {
-        if (resolveRequests.isNotEmpty()) {
-            val request = resolveRequests.first
-            nsdManager.resolveService(request.serviceInfo, request.listener)
+    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    private fun unregister(callback: NsdManager.ServiceInfoCallback) {
+        try {
+            nsdManager.unregisterServiceInfoCallback(callback)
+        } catch (e: IllegalArgumentException) {
+            // Ignore "callback not registered" exception
         }
     }
+
+    companion object {
+        const val MAX_CONCURRENT_RESOLVES = 4
+        const val RESOLVE_TIMEOUT_MILLIS = 10 * 1000L
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import androidx.annotation.NonNull;
+
+import org.kde.kdeconnect.Helpers.ThreadHelper;
+import org.kde.kdeconnect.NetworkPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The payload of a received packet whose connection is still being set up.
+ * <p>
+ * Connecting to the sender and the TLS handshake are started in the background as soon as this is
+ * created, so the sender doesn't wait any longer than before for us to connect, but the packet can
+ * be delivered to the plugin without waiting for them. Reads block until the connection is ready,
+ * and fail with the same IOException the connection did, if it failed.
+ */
+class PendingPayloadInputStream extends InputStream {
+
+    interface Connector {
+        @NonNull NetworkPacket.Payload connect() throws IOException;
+    }
+
+    private final FutureTask<NetworkPacket.Payload> connection;
+    private NetworkPacket.Payload connected;
+    private boolean closed = false;
+
+    PendingPayloadInputStream(@NonNull Connector connector) {
+        connection = new FutureTask<>(() -> {
+            NetworkPacket.Payload payload = connector.connect();
+            synchronized (this) {
+                if (closed) {
+                    payload.close();
+                    throw new IOException("Payload closed before it was connected");
+                }
+                connected = payload;
+            }
+            return payload;
+        });
+        ThreadHelper.execute(connection);
+    }
+
+    private InputStream await() throws IOException {
+        try {
+            return connection.get().getInputStream();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the payload connection");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return await().read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return await().read(buffer, offset, length);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (!connection.isDone()) {
+            return 0;
+        }
+        return await().available();
+    }
+
+    @Override
+    public void close() {
+        NetworkPacket.Payload payload;
+        synchronized (this) {
+            closed = true;
+            payload = connected;
+        }
+        if (payload != null) {
+            payload.close();
+        }
+    }
+}
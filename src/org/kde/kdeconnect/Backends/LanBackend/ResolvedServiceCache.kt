@@ -0,0 +1,48 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+package org.kde.kdeconnect.Backends.LanBackend
+
+import android.os.SystemClock
+import java.net.InetAddress
+
+/**
+ * Addresses of the mDNS services resolved lately, by service name. When discovery finds a service
+ * again shortly after, eg: it was restarted after a network blip, we can use them right away instead
+ * of resolving it again.
+ *
+ * Entries are forgotten after [TTL_MILLIS], the TTL mDNS gives to host address records (RFC 6762).
+ */
+class ResolvedServiceCache {
+
+    private class Entry(val addresses: List<InetAddress>, val resolvedAt: Long)
+
+    private val entries = HashMap<String, Entry>() // Guarded by itself
+
+    fun put(serviceName: String, addresses: List<InetAddress>) {
+        if (addresses.isEmpty()) {
+            return
+        }
+        synchronized(entries) {
+            entries[serviceName] = Entry(addresses, SystemClock.elapsedRealtime())
+        }
+    }
+
+    /**
+     * @return the addresses the service was resolved to, or null if it wasn't resolved lately
+     */
+    fun get(serviceName: String): List<InetAddress>? {
+        synchronized(entries) {
+            val entry = entries[serviceName] ?: return null
+            if (SystemClock.elapsedRealtime() - entry.resolvedAt > TTL_MILLIS) {
+                entries.remove(serviceName)
+                return null
+            }
+            return entry.addresses
+        }
+    }
+
+    companion object {
+        const val TTL_MILLIS = 120 * 1000L
+    }
+}
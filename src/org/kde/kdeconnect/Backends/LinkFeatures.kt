@@ -0,0 +1,57 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends
+
+import org.kde.kdeconnect.DeviceInfo
+
+/**
+ * Optional extensions to the link protocol. Each device lists the ones it supports in the
+ * "linkFeatures" field of its identity packet, and an extension is only used if both ends list it,
+ * so older devices keep talking the plain protocol.
+ */
+object LinkFeatures {
+    /**
+     * Payload connections are kept open after a transfer and reused for the next payloads.
+     * @see org.kde.kdeconnect.Backends.LanBackend.LanPayloadConnectionPool
+     */
+    const val PAYLOAD_CONNECTION_REUSE = "payloadConnectionReuse"
+
+    /**
+     * Payloads are streamed over the main connection instead of opening a new one.
+     * @see org.kde.kdeconnect.Backends.LanBackend.LanChannelMultiplexer
+     */
+    const val PAYLOAD_MULTIPLEXING = "payloadMultiplexing"
+
+    /**
+     * Big packet bodies are sent compressed.
+     * @see org.kde.kdeconnect.PacketBodyCompression
+     */
+    const val COMPRESSED_BODIES = "compressedBodies"
+
+    /**
+     * Payloads are followed by a digest of their content, checked by the receiver.
+     * @see PayloadDigest
+     */
+    const val PAYLOAD_DIGEST = "payloadDigest"
+
+    /**
+     * Links are pinged to measure their round trip time and to notice quickly when they are dead.
+     * @see LinkHealthMonitor
+     */
+    const val LINK_HEALTH = "linkHealth"
+
+    /**
+     * File transfers interrupted by a dropped connection are resumed where they stopped.
+     * @see org.kde.kdeconnect.Plugins.SharePlugin.SharePlugin
+     */
+    const val RESUMABLE_TRANSFERS = "resumableTransfers"
+
+    @JvmStatic
+    val supported: Set<String> = setOf(PAYLOAD_CONNECTION_REUSE, PAYLOAD_MULTIPLEXING, COMPRESSED_BODIES, PAYLOAD_DIGEST, LINK_HEALTH, RESUMABLE_TRANSFERS)
+
+    @JvmStatic
+    fun isEnabled(remote: DeviceInfo, feature: String): Boolean =
+        feature in supported && remote.linkFeatures?.contains(feature) == true
+}
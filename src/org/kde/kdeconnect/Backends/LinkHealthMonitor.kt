@@ -0,0 +1,169 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends
+
+import android.content.Context
+import android.util.Log
+import androidx.preference.PreferenceManager
+import org.kde.kdeconnect.Device
+import org.kde.kdeconnect.DeviceStats
+import org.kde.kdeconnect.Helpers.ThreadHelper
+import org.kde.kdeconnect.NetworkPacket
+import org.kde.kdeconnect.UserInterface.SettingsFragment
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks that a link is still alive by sending small pings that the other end acks right away, and
+ * measures the round trip time with them.
+ *
+ * Only used if both ends support [LinkFeatures.LINK_HEALTH]. A ping is sent every [intervalMillis],
+ * and if [maxMissedAcks] pings in a row are still waiting for their ack when the next one is due, the
+ * link is declared dead. That is way sooner than TCP keepalive notices a peer that went away without
+ * closing the connection (eg: it left the network), and meanwhile packets would be sent to nowhere.
+ *
+ * Acks carry the [NetworkPacket.id] of the ping they answer. Ids only grow, so an ack also accounts
+ * for any earlier ping that didn't get one.
+ *
+ * Pings are what wakes up an idle link, so they are kept to a minimum: no ping is sent if something
+ * was received over the link since the last one, since that already proves it's alive. And the pings
+ * of all the links with the same interval are sent together, so they share one wakeup.
+ */
+class LinkHealthMonitor(
+    private val link: BaseLink,
+    val intervalMillis: Long = DEFAULT_INTERVAL_MILLIS,
+    val maxMissedAcks: Int = DEFAULT_MAX_MISSED_ACKS,
+) {
+    class DeadLinkException(message: String) : IOException(message)
+
+    private val pending = LinkedHashMap<Long, Long>() // Sent time in nanos by ping id, oldest first. Guarded by this
+    private var tick: ScheduledFuture<*>? = null // Guarded by this
+
+    @Volatile
+    private var receivedSinceLastTick = false
+
+    /**
+     * Round trip time, smoothed like TCP's SRTT (RFC 6298). Negative until the first ack.
+     */
+    @Volatile
+    var smoothedRttMillis = -1.0
+        private set
+
+    /**
+     * Pings sent that haven't been acked yet. One is normal, it's usually the last one on its way.
+     */
+    val unackedPings: Int
+        @Synchronized get() = pending.size
+
+    @Synchronized
+    fun start() {
+        if (tick == null) {
+            // Aligned to the interval, so all the monitors with the same one tick at the same time
+            val initialDelay = intervalMillis - (System.nanoTime() / 1_000_000) % intervalMillis
+            tick = scheduler.scheduleAtFixedRate(::sendPing, initialDelay, intervalMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    @Synchronized
+    fun stop() {
+        tick?.cancel(false)
+        tick = null
+        pending.clear()
+    }
+
+    /**
+     * Called for every packet received over the link.
+     */
+    fun onPacketReceived() {
+        receivedSinceLastTick = true
+    }
+
+    private fun sendPing() {
+        DeviceStats.countWakeup(link.deviceId, DeviceStats.WAKEUP_HEARTBEAT)
+        val ping = NetworkPacket(PACKET_TYPE_PING)
+        synchronized(this) {
+            if (tick == null) {
+                return
+            }
+            if (receivedSinceLastTick) {
+                // The link is alive, and the pings still unacked are just stuck behind other packets
+                receivedSinceLastTick = false
+                pending.clear()
+                return
+            }
+            if (pending.size >= maxMissedAcks) {
+                stop()
+                val reason = DeadLinkException("$maxMissedAcks pings in a row weren't acked")
+                Log.w(LOG_TAG, "${link.name} to ${link.deviceId} is dead: ${reason.message}")
+                ThreadHelper.execute { link.onHealthCheckFailed(reason) }
+                return
+            }
+            pending[ping.id] = System.nanoTime()
+        }
+        // Sending can block if the link is stuck, and the scheduler is shared by all the links
+        ThreadHelper.execute { link.sendPacket(ping, ignoreResult, false) }
+    }
+
+    fun onAckReceived(ack: NetworkPacket) {
+        val pingId = ack.getLong(KEY_PING_ID)
+        val rtt: Double
+        synchronized(this) {
+            val sentNanos = pending[pingId] ?: return // Late, or from before a restart
+            // Earlier pings won't be acked anymore, but the link is alive
+            val iterator = pending.keys.iterator()
+            while (iterator.hasNext() && iterator.next() <= pingId) {
+                iterator.remove()
+            }
+            val sample = (System.nanoTime() - sentNanos) / 1_000_000.0
+            smoothedRttMillis = if (smoothedRttMillis < 0) sample else 0.875 * smoothedRttMillis + 0.125 * sample
+            rtt = smoothedRttMillis
+        }
+        DeviceStats.reportRtt(link.deviceId, link.name, rtt.toLong())
+    }
+
+    companion object {
+        private const val LOG_TAG = "LinkHealthMonitor"
+
+        const val PACKET_TYPE_PING = "kdeconnect.link.ping"
+        const val PACKET_TYPE_ACK = "kdeconnect.link.ack"
+        private const val KEY_PING_ID = "pingId"
+
+        const val DEFAULT_INTERVAL_MILLIS = 30 * 1000L
+        const val DEFAULT_MAX_MISSED_ACKS = 3
+
+        private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, LOG_TAG).apply { isDaemon = true }
+        }
+
+        /**
+         * The interval between pings chosen in the settings, or 0 if the user turned them off.
+         */
+        @JvmStatic
+        fun getConfiguredIntervalMillis(context: Context): Long {
+            val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+            val seconds = preferences.getString(SettingsFragment.KEY_LINK_HEARTBEAT_INTERVAL, null)?.toLongOrNull()
+            return if (seconds != null) seconds * 1000 else DEFAULT_INTERVAL_MILLIS
+        }
+
+        /**
+         * Answers a ping received over link. Pings are answered even if we aren't checking the link
+         * ourselves.
+         */
+        @JvmStatic
+        fun onPingReceived(link: BaseLink, ping: NetworkPacket) {
+            val ack = NetworkPacket(PACKET_TYPE_ACK)
+            ack[KEY_PING_ID] = ping.id
+            ThreadHelper.execute { link.sendPacket(ack, ignoreResult, false) }
+        }
+
+        private val ignoreResult = object : Device.SendPacketStatusCallback() {
+            override fun onSuccess() {}
+            override fun onFailure(e: Throwable) {}
+        }
+    }
+}
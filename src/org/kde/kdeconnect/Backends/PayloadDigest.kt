@@ -0,0 +1,151 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends
+
+import org.json.JSONObject
+import java.io.EOFException
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.zip.CRC32
+
+/**
+ * Digest of a payload, computed while it's being copied so it doesn't need to be read twice.
+ *
+ * When both ends support [LinkFeatures.PAYLOAD_DIGEST], the sender names the algorithm in the
+ * [TRANSFER_INFO_KEY] field of the payloadTransferInfo, and writes the digest right after the
+ * payloadSize bytes of the payload, on the same stream. The receiver reads the payload through
+ * [verifying], which fails the read that would return the end of the payload if the digest doesn't
+ * match, so a corrupted file is never taken as complete.
+ */
+abstract class PayloadDigest private constructor(val algorithm: String, val length: Int) {
+
+    abstract fun update(buffer: ByteArray, offset: Int, length: Int)
+
+    abstract fun digest(): ByteArray
+
+    private class Crc32 : PayloadDigest(CRC32, 4) {
+        private val crc = CRC32()
+
+        override fun update(buffer: ByteArray, offset: Int, length: Int) = crc.update(buffer, offset, length)
+
+        override fun digest(): ByteArray {
+            val value = crc.value
+            return byteArrayOf((value shr 24).toByte(), (value shr 16).toByte(), (value shr 8).toByte(), value.toByte())
+        }
+    }
+
+    private class Message(algorithm: String, private val messageDigest: MessageDigest) :
+        PayloadDigest(algorithm, messageDigest.digestLength) {
+
+        override fun update(buffer: ByteArray, offset: Int, length: Int) = messageDigest.update(buffer, offset, length)
+
+        override fun digest(): ByteArray = messageDigest.digest()
+    }
+
+    private class VerifyingInputStream(
+        input: InputStream,
+        private var remaining: Long,
+        private val digest: PayloadDigest,
+    ) : FilterInputStream(input) {
+        private var verified = false
+
+        override fun read(): Int {
+            val byte = ByteArray(1)
+            return if (read(byte, 0, 1) < 0) -1 else byte[0].toInt() and 0xFF
+        }
+
+        override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+            if (remaining == 0L) {
+                verify()
+                return -1
+            }
+            val read = super.read(buffer, offset, minOf(length.toLong(), remaining).toInt())
+            if (read < 0) {
+                return -1 // Truncated, the caller will see it received less than payloadSize
+            }
+            digest.update(buffer, offset, read)
+            remaining -= read
+            return read
+        }
+
+        override fun skip(n: Long): Long = throw IOException("Can't skip a payload being verified")
+
+        override fun available(): Int = minOf(super.available().toLong(), remaining).toInt()
+
+        override fun markSupported(): Boolean = false
+
+        private fun verify() {
+            if (verified) {
+                return
+            }
+            val expected = ByteArray(digest.length)
+            var offset = 0
+            while (offset < expected.size) {
+                val read = super.read(expected, offset, expected.size - offset)
+                if (read < 0) {
+                    throw EOFException("Payload ended before its ${digest.algorithm} digest")
+                }
+                offset += read
+            }
+            if (!MessageDigest.isEqual(expected, digest.digest())) {
+                throw IOException("Payload doesn't match its ${digest.algorithm} digest")
+            }
+            verified = true
+        }
+    }
+
+    companion object {
+        const val TRANSFER_INFO_KEY = "digest"
+
+        const val CRC32 = "crc32"
+        const val MD5 = "md5"
+        const val SHA1 = "sha-1"
+        const val SHA256 = "sha-256"
+
+        /**
+         * Algorithm used for the payloads we send. CRC32 is enough to catch corruption, and is
+         * cheap enough to add next to nothing to a transfer. Receivers support all of [ALGORITHMS].
+         */
+        const val DEFAULT_ALGORITHM = CRC32
+
+        @JvmField
+        val ALGORITHMS = listOf(CRC32, MD5, SHA1, SHA256)
+
+        /**
+         * @return a new digest, or null if the algorithm isn't supported
+         */
+        @JvmStatic
+        fun create(algorithm: String): PayloadDigest? = when (algorithm) {
+            CRC32 -> Crc32()
+            MD5, SHA1, SHA256 -> Message(algorithm, MessageDigest.getInstance(algorithm.uppercase()))
+            else -> null
+        }
+
+        /**
+         * @return a new digest for the payload described by payloadTransferInfo, or null if it doesn't
+         * have one
+         * @throws IOException if it has one we don't support
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun forTransferInfo(payloadTransferInfo: JSONObject): PayloadDigest? {
+            val algorithm = payloadTransferInfo.optString(TRANSFER_INFO_KEY, "")
+            if (algorithm.isEmpty()) {
+                return null
+            }
+            return create(algorithm) ?: throw IOException("Unsupported payload digest $algorithm")
+        }
+
+        /**
+         * Reads the first payloadSize bytes of input as the payload, checking them against the digest
+         * that follows. If digest is null, returns input as is.
+         */
+        @JvmStatic
+        fun verifying(input: InputStream, payloadSize: Long, digest: PayloadDigest?): InputStream =
+            if (digest == null) input else VerifyingInputStream(input, payloadSize, digest)
+    }
+}
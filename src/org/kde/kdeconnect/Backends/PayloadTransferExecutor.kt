@@ -0,0 +1,265 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends
+
+import android.util.Log
+import org.kde.kdeconnect.Device
+import org.kde.kdeconnect.NetworkPacket
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Runs the payload transfers of a link, so sending a packet with a payload only has to wait for the
+ * packet itself to be written, and the transfers don't hold up the packets sent after it.
+ *
+ * At most [maxConcurrentTransfers] payloads are sent at the same time. The limit is applied before
+ * the packet that announces a payload is sent: once the other end gets the packet it connects to
+ * fetch the payload right away, and gives up if nothing arrives for a while. So a payload can't wait
+ * in a queue after its packet went out, it's the packet that waits for a free slot. Links take one
+ * with [tryReserve], and if there's none they [park] the packet, which is then sent from here as
+ * soon as a slot frees up. That way the packets behind it don't wait for the transfers, only a
+ * sender that wants to wait for its payload anyway uses [reserve], which blocks.
+ * Threads are only kept while there are transfers to run.
+ *
+ * It also keeps track of how much is waiting to be sent and how fast payloads have been going out,
+ * which is what [org.kde.kdeconnect.LinkScheduler] uses to pick a link for the next one.
+ */
+class PayloadTransferExecutor @JvmOverloads constructor(maxConcurrentTransfers: Int = DEFAULT_MAX_CONCURRENT_TRANSFERS) {
+
+    fun interface Transfer {
+        @Throws(IOException::class)
+        fun run()
+    }
+
+    /**
+     * Sends a packet parked with [park], once there's a slot for its payload.
+     */
+    fun interface ParkedSend {
+        /**
+         * Called from a transfer thread. It has to submit the payload with the reservation, or
+         * release it if the packet couldn't be sent.
+         */
+        fun send(reservation: Reservation)
+    }
+
+    /**
+     * A slot for one transfer, taken with [tryReserve] or [reserve]. It's freed once the transfer
+     * submitted with it is done, or by calling [release] if in the end there's nothing to submit
+     * (eg: the packet couldn't be sent).
+     */
+    inner class Reservation internal constructor() {
+        private val released = AtomicBoolean(false)
+
+        fun release() {
+            if (released.compareAndSet(false, true)) {
+                slots.withLock {
+                    reserved--
+                    startParked()
+                    slotFreed.signalAll()
+                }
+            }
+        }
+    }
+
+    private class Parked(val np: NetworkPacket, val size: Long, val send: ParkedSend)
+
+    private val executor = ThreadPoolExecutor(
+        maxConcurrentTransfers, maxConcurrentTransfers,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        LinkedBlockingQueue()
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    private val slots = ReentrantLock()
+    private val slotFreed = slots.newCondition()
+    private var reserved = 0 // Guarded by slots
+    private val parked = ArrayDeque<Parked>() // Guarded by slots
+
+    var maxConcurrentTransfers: Int
+        get() = executor.maximumPoolSize
+        set(value) {
+            require(value > 0) { "At least one transfer has to be allowed" }
+            slots.withLock {
+                // The core size can't be above the maximum, not even for a moment
+                if (value > executor.maximumPoolSize) {
+                    executor.maximumPoolSize = value
+                    executor.corePoolSize = value
+                } else {
+                    executor.corePoolSize = value
+                    executor.maximumPoolSize = value
+                }
+                startParked()
+                slotFreed.signalAll()
+            }
+        }
+
+    private val queuedBytes = AtomicLong()
+
+    /**
+     * Bytes of the payloads parked or submitted that haven't been sent yet, including those being
+     * sent now.
+     */
+    val pendingBytes: Long
+        get() = queuedBytes.get()
+
+    /**
+     * How fast payloads were sent lately, in bytes per second, smoothed over the last transfers.
+     * Negative until a payload of at least [MIN_THROUGHPUT_SAMPLE_BYTES] has been sent, smaller
+     * ones take too little to tell.
+     */
+    @Volatile
+    var throughputBytesPerSecond = -1.0
+        private set
+
+    /**
+     * Reserves a slot for one more transfer if fewer than [maxConcurrentTransfers] are running or
+     * reserved and no packet is parked.
+     *
+     * @return the reservation, or null if there's no free slot
+     */
+    fun tryReserve(): Reservation? = slots.withLock {
+        if (reserved >= maxConcurrentTransfers || parked.isNotEmpty()) {
+            null
+        } else {
+            reserved++
+            Reservation()
+        }
+    }
+
+    /**
+     * Waits until [tryReserve] would succeed, and reserves a slot. Only for callers that block
+     * until the payload is sent anyway.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    @Throws(InterruptedIOException::class)
+    fun reserve(): Reservation {
+        slots.withLock {
+            try {
+                while (reserved >= maxConcurrentTransfers || parked.isNotEmpty()) {
+                    slotFreed.await()
+                }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Interrupted while waiting to send a payload")
+            }
+            reserved++
+        }
+        return Reservation()
+    }
+
+    /**
+     * Keeps a packet with a payload that didn't get a slot from [tryReserve], and has send send it
+     * once it gets one. Packets are sent in the order they were parked.
+     */
+    fun park(np: NetworkPacket, send: ParkedSend) {
+        val size = np.payloadSize.coerceAtLeast(0)
+        queuedBytes.addAndGet(size)
+        slots.withLock {
+            parked.addLast(Parked(np, size, send))
+            startParked() // In case a slot was freed since tryReserve()
+        }
+    }
+
+    private fun startParked() {
+        while (reserved < maxConcurrentTransfers && parked.isNotEmpty()) {
+            val next = parked.removeFirst()
+            reserved++
+            val reservation = Reservation()
+            executor.execute {
+                queuedBytes.addAndGet(-next.size) // submit() counts it again
+                try {
+                    next.send.send(reservation)
+                } catch (e: RuntimeException) {
+                    reservation.release()
+                    Log.e(LOG_TAG, "Failed to send a parked ${next.np.type} packet", e)
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the transfer of the payload of np in the slot reserved for it. Once it's done, the
+     * slot is freed and the callback gets onSuccess (unless the packet was canceled meanwhile) or,
+     * if the transfer threw, onFailure.
+     *
+     * @return a future that completes with whether the payload was sent
+     */
+    fun submit(reservation: Reservation, np: NetworkPacket, callback: Device.SendPacketStatusCallback, transfer: Transfer): Future<Boolean> {
+        val size = np.payloadSize.coerceAtLeast(0)
+        queuedBytes.addAndGet(size)
+        val task = FutureTask {
+            val started = System.nanoTime()
+            try {
+                transfer.run()
+                onTransferred(size, System.nanoTime() - started)
+                if (!np.isCanceled) {
+                    callback.onSuccess()
+                }
+                true
+            } catch (e: Exception) {
+                Log.e(LOG_TAG, "Failed to send the payload of a ${np.type} packet", e)
+                callback.onFailure(e)
+                false
+            } finally {
+                queuedBytes.addAndGet(-size)
+                reservation.release()
+            }
+        }
+        try {
+            executor.execute(task)
+        } catch (e: RejectedExecutionException) {
+            queuedBytes.addAndGet(-size)
+            reservation.release()
+            throw e
+        }
+        return task
+    }
+
+    private fun onTransferred(bytes: Long, nanos: Long) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || nanos <= 0) {
+            return
+        }
+        val sample = bytes * 1e9 / nanos
+        synchronized(this) {
+            val previous = throughputBytesPerSecond
+            throughputBytesPerSecond = if (previous < 0) sample else 0.75 * previous + 0.25 * sample
+        }
+    }
+
+    companion object {
+        private const val LOG_TAG = "PayloadTransfers"
+        private const val KEEP_ALIVE_SECONDS = 30L
+
+        const val DEFAULT_MAX_CONCURRENT_TRANSFERS = 2
+        const val MIN_THROUGHPUT_SAMPLE_BYTES = 256 * 1024L
+
+        /**
+         * Waits for a transfer submitted with [submit].
+         *
+         * @return whether the payload was sent
+         */
+        @JvmStatic
+        @Throws(InterruptedIOException::class)
+        fun await(transfer: Future<Boolean>): Boolean = try {
+            transfer.get()
+        } catch (e: ExecutionException) {
+            false // Can't happen, submit() catches everything the transfer throws
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while waiting for a payload to be sent")
+        }
+    }
+}
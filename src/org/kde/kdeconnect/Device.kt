@@ -22,8 +22,8 @@ import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
 import org.apache.commons.collections4.MultiValuedMap
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap
 import org.kde.kdeconnect.Backends.BaseLink
@@ -31,8 +31,13 @@ import org.kde.kdeconnect.Backends.BaseLink.PacketReceiver
 import org.kde.kdeconnect.DeviceInfo.Companion.loadFromSettings
 import org.kde.kdeconnect.DeviceStats.countReceived
 import org.kde.kdeconnect.DeviceStats.countSent
+import org.kde.kdeconnect.DeviceStats.countSuperseded
+import org.kde.kdeconnect.Helpers.BoundedExecutor
 import org.kde.kdeconnect.Helpers.DeviceHelper
 import org.kde.kdeconnect.Helpers.NotificationHelper
+import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper
+import org.kde.kdeconnect.Helpers.SerialExecutor
+import org.kde.kdeconnect.Helpers.ThreadHelper
 import org.kde.kdeconnect.PairingHandler.PairingCallback
 import org.kde.kdeconnect.Plugins.Plugin
 import org.kde.kdeconnect.Plugins.Plugin.Companion.getPluginKey
@@ -44,12 +49,17 @@ import java.security.cert.Certificate
 import java.util.Vector
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.Executor
 import java.util.concurrent.CopyOnWriteArrayList
 import androidx.core.content.edit
 
 class Device : PacketReceiver {
 
-    data class NetworkPacketWithCallback(val np : NetworkPacket, val callback: SendPacketStatusCallback)
+    data class NetworkPacketWithCallback(
+        val np : NetworkPacket,
+        val callback: SendPacketStatusCallback,
+        val priority: SendPriority = PluginFactory.getSendPriority(np.type)
+    )
 
     val context: Context
 
@@ -97,12 +107,44 @@ class Device : PacketReceiver {
 
     private val settings: SharedPreferences
 
+    /**
+     * Where each plugin's onPacketReceived() runs, so a slow plugin doesn't hold up the other
+     * plugins. Each one takes at most [MAX_PENDING_PLUGIN_PACKETS] packets ahead: after that the
+     * link's delivery thread waits for it, so the link stops reading from the socket instead of
+     * the packets piling up in memory. Indexed by plugin key, dropped when the plugin is removed.
+     */
+    private val pluginPacketExecutors: ConcurrentMap<String, Executor> = ConcurrentHashMap()
+
     private val pairingCallbacks = CopyOnWriteArrayList<PairingCallback>()
     private val pluginsChangedListeners = CopyOnWriteArrayList<PluginsChangedListener>()
 
-    private val sendChannel = Channel<NetworkPacketWithCallback>(Channel.UNLIMITED)
+    private val sendQueue = OutgoingPacketQueue()
     private var sendCoroutine : Job? = null
 
+    /**
+     * Maximum number of packets waiting to be sent. When reached, [sendPacket] fails and
+     * [sendPacketSuspending] waits.
+     */
+    var maxQueuedPackets: Int by sendQueue::maxPackets
+
+    /**
+     * Maximum memory, in bytes, used by the packets waiting to be sent (including in-memory
+     * payloads, eg: album art). When reached, [sendPacket] fails and [sendPacketSuspending] waits.
+     */
+    var maxQueuedBytes: Long by sendQueue::maxBytes
+
+    /**
+     * Maximum number of queued packets written to the link at once.
+     */
+    var maxSendBatchSize: Int = DEFAULT_MAX_SEND_BATCH_SIZE
+
+    /**
+     * How long a packet can wait for more packets to be queued, so they are sent together. By
+     * default it doesn't wait, and only the packets that queued up while sending the previous ones
+     * are batched.
+     */
+    var maxSendBatchDelayMillis: Long = DEFAULT_MAX_SEND_BATCH_DELAY_MILLIS
+
     /**
      * Constructor for remembered, already-trusted devices.
      * Given the deviceId, it will load the other properties from SharedPreferences.
@@ -232,6 +274,7 @@ class Device : PacketReceiver {
 
                 val devicePreferences = context.getSharedPreferences(deviceInfo.id, Context.MODE_PRIVATE)
                 devicePreferences.edit { clear() }
+                SslHelper.invalidateSslContext(deviceInfo.id)
 
                 pairingCallbacks.forEach(PairingCallback::unpaired)
 
@@ -312,11 +355,37 @@ class Device : PacketReceiver {
         get() = links.isNotEmpty()
 
     fun addLink(link: BaseLink) {
-        synchronized(sendChannel) {
+        synchronized(sendQueue) {
             if (sendCoroutine == null) {
+                DeviceStats.setSendQueue(deviceId, sendQueue)
                 sendCoroutine = CoroutineScope(Dispatchers.IO).launch {
-                    for ((np, callback) in sendChannel) {
-                        sendPacketBlocking(np, callback)
+                    var next: NetworkPacketWithCallback? = null
+                    while (true) {
+                        val first = next ?: sendQueue.receive()
+                        next = null
+                        if (first.np.hasPayload()) {
+                            sendPacketBlocking(first.np, first.callback, false, first.priority)
+                            continue
+                        }
+                        // Take whatever else is queued, so it goes out in a single write
+                        val batch = arrayListOf(first)
+                        val deadline = System.currentTimeMillis() + maxSendBatchDelayMillis
+                        while (batch.size < maxSendBatchSize) {
+                            var item = sendQueue.poll()
+                            val remaining = deadline - System.currentTimeMillis()
+                            if (item == null && remaining > 0) {
+                                item = withTimeoutOrNull(remaining) { sendQueue.receive() }
+                            }
+                            if (item == null) {
+                                break
+                            }
+                            if (item.np.hasPayload()) {
+                                next = item // Sent on its own, after the batch
+                                break
+                            }
+                            batch.add(item)
+                        }
+                        sendPacketsBlocking(batch)
                     }
                 }
             }
@@ -349,7 +418,7 @@ class Device : PacketReceiver {
         )
         if (links.isEmpty()) {
             reloadPluginsFromSettings()
-            synchronized(sendChannel) {
+            synchronized(sendQueue) {
                 sendCoroutine?.cancel(CancellationException("Device disconnected"))
                 sendCoroutine = null
             }
@@ -367,6 +436,8 @@ class Device : PacketReceiver {
                 deviceInfo.saveInSettings(settings)
             }
         }
+        // Not stored in the settings, it's only known once the device connects
+        deviceInfo.linkFeatures = newDeviceInfo.linkFeatures
 
         val incomingCapabilities = deviceInfo.incomingCapabilities
         val outgoingCapabilities = deviceInfo.outgoingCapabilities
@@ -397,6 +468,10 @@ class Device : PacketReceiver {
         countReceived(deviceId, np.type)
 
         if (NetworkPacket.PACKET_TYPE_PAIR == np.type) {
+            if (!np.isBodyValid) {
+                Log.w("KDE/Device", "Ignoring pair packet with an invalid body")
+                return
+            }
             Log.i("KDE/Device", "Pair packet")
             pairingHandler.packetReceived(np)
             return
@@ -426,17 +501,47 @@ class Device : PacketReceiver {
         val targetPlugins = pluginsByIncomingInterface[np.type] // Returns an empty collection if the key doesn't exist
         if (targetPlugins.isEmpty()) {
             Log.w("Device", "Ignoring packet with type ${np.type} because no plugin can handle it")
+            np.payload?.close() // So the link can let go of it
             return
         }
-        targetPlugins.map { it to loadedPlugins[it]!! }.forEach { (pluginKey, plugin) ->
-            plugin.runCatching {
-                if (isPaired) onPacketReceived(np) else onUnpairedDevicePacketReceived(np)
-            }.onFailure { e ->
-                Log.e("Device", "Exception in ${pluginKey}'s onPacketReceived()", e)
+        val paired = isPaired
+        targetPlugins.mapNotNull { pluginKey -> loadedPlugins[pluginKey]?.let { pluginKey to it } }.forEach { (pluginKey, plugin) ->
+            try {
+                getPluginPacketExecutor(plugin).execute {
+                    if (loadedPlugins[pluginKey] !== plugin) {
+                        return@execute // Removed while the packet was waiting
+                    }
+                    // Decoded here, on the plugin's thread, by the first plugin to get it
+                    if (!np.isBodyValid) {
+                        Log.w("Device", "Dropping packet with type ${np.type} because its body is invalid")
+                        np.payload?.close()
+                        return@execute
+                    }
+                    plugin.runCatching {
+                        if (paired) onPacketReceived(np) else onUnpairedDevicePacketReceived(np)
+                    }.onFailure { e ->
+                        Log.e("Device", "Exception in ${pluginKey}'s onPacketReceived()", e)
+                    }
+                }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                Log.w("Device", "Interrupted waiting for $pluginKey, packet ${np.type} dropped")
+                return
             }
         }
     }
 
+    /**
+     * Plugins get their packets one at a time and in order, unless they handle them concurrently.
+     * Either way, with a bound on how many can wait.
+     */
+    private fun getPluginPacketExecutor(plugin: Plugin): Executor {
+        return pluginPacketExecutors.getOrPut(plugin.pluginKey) {
+            val executor = if (plugin.handlesPacketsConcurrently) CONCURRENT_PACKET_EXECUTOR else SerialExecutor()
+            BoundedExecutor(executor, MAX_PENDING_PLUGIN_PACKETS)
+        }
+    }
+
     abstract class SendPacketStatusCallback {
         abstract fun onSuccess()
 
@@ -458,12 +563,75 @@ class Device : PacketReceiver {
      * Send a packet to the device asynchronously
      * @param np The packet
      * @param callback A callback for success/failure
+     * @param priority The lane of the send queue it waits in. If not given, the one the plugins
+     * declare for its type in [Plugin.outgoingPacketPriorities].
+     * @param supersedeKey If not null, a packet of the same type queued with the same key that
+     * hasn't been sent yet is dropped, and this one takes its place. Use it for packets that make
+     * the previous ones obsolete, eg: the current volume of a given sink.
      */
     @AnyThread
-    fun sendPacket(np: NetworkPacket, callback: SendPacketStatusCallback) {
-        sendChannel.trySend(NetworkPacketWithCallback(np, callback))
+    fun sendPacket(np: NetworkPacket, callback: SendPacketStatusCallback, priority: SendPriority, supersedeKey: String?) {
+        if (!trySendPacket(np, callback, priority, supersedeKey)) {
+            Log.e("KDE/sendPacket", "Send queue full. Packet ${np.type} to ${deviceInfo.name} lost!")
+            countSent(deviceId, np.type, false)
+            callback.onFailure(IOException("Send queue full"))
+        }
     }
 
+    /**
+     * Like [sendPacket], but returns false instead of failing the callback if the send queue is
+     * full. In that case the packet is not sent and the callback is never called.
+     */
+    @AnyThread
+    @JvmOverloads
+    fun trySendPacket(
+        np: NetworkPacket,
+        callback: SendPacketStatusCallback = defaultCallback,
+        priority: SendPriority = PluginFactory.getSendPriority(np.type),
+        supersedeKey: String? = null
+    ): Boolean {
+        val result = sendQueue.offer(NetworkPacketWithCallback(np, callback, priority), priority, supersedeKey)
+        onQueued(np, result)
+        return result !== OutgoingPacketQueue.OfferResult.Rejected
+    }
+
+    /**
+     * Like [sendPacket], but if the send queue is full it waits until there's room for the packet.
+     * Returns once the packet is queued, not sent.
+     */
+    suspend fun sendPacketSuspending(
+        np: NetworkPacket,
+        callback: SendPacketStatusCallback = defaultCallback,
+        priority: SendPriority = PluginFactory.getSendPriority(np.type),
+        supersedeKey: String? = null
+    ) {
+        onQueued(np, sendQueue.offerSuspending(NetworkPacketWithCallback(np, callback, priority), priority, supersedeKey))
+    }
+
+    private fun onQueued(np: NetworkPacket, result: OutgoingPacketQueue.OfferResult) {
+        if (result is OutgoingPacketQueue.OfferResult.Superseded) {
+            if (result.item.np !== np) {
+                result.item.np.payload?.close()
+            }
+            countSuperseded(deviceId, np.type)
+        }
+    }
+
+    @AnyThread
+    fun sendPacket(np: NetworkPacket, callback: SendPacketStatusCallback, priority: SendPriority) =
+        sendPacket(np, callback, priority, null)
+
+    @AnyThread
+    fun sendPacket(np: NetworkPacket, supersedeKey: String) =
+        sendPacket(np, defaultCallback, PluginFactory.getSendPriority(np.type), supersedeKey)
+
+    @AnyThread
+    fun sendPacket(np: NetworkPacket, callback: SendPacketStatusCallback) =
+        sendPacket(np, callback, PluginFactory.getSendPriority(np.type))
+
+    @AnyThread
+    fun sendPacket(np: NetworkPacket, priority: SendPriority) = sendPacket(np, defaultCallback, priority)
+
     @AnyThread
     fun sendPacket(np: NetworkPacket) = sendPacket(np, defaultCallback)
 
@@ -475,13 +643,15 @@ class Device : PacketReceiver {
     fun sendPacketBlocking(np: NetworkPacket): Boolean = sendPacketBlocking(np, defaultCallback, false)
 
     /**
-     * Send `np` over one of this device's connected [.links].
+     * Send `np` over one of this device's connected [.links]. They are tried in the order given by
+     * [LinkScheduler], and if a link fails to send it the next one is tried right away.
      *
      * @param np                        the packet to send
      * @param callback                  a callback that can receive realtime updates
      * @param sendPayloadFromSameThread when set to true and np contains a Payload, this function
      * won't return until the Payload has been received by the
-     * other end, or times out after 10 seconds
+     * other end, or times out after 10 seconds. Otherwise it returns once the packet is written, and
+     * the payload is sent from the link's [BaseLink.getPayloadTransfers]
      * @return true if the packet was sent ok, false otherwise
      * @see BaseLink.sendPacket
      */
@@ -490,12 +660,24 @@ class Device : PacketReceiver {
         np: NetworkPacket,
         callback: SendPacketStatusCallback,
         sendPayloadFromSameThread: Boolean
+    ): Boolean = sendPacketBlocking(np, callback, sendPayloadFromSameThread, PluginFactory.getSendPriority(np.type))
+
+    /**
+     * Like the public sendPacketBlocking, with the priority the packet was queued with, which is
+     * what [LinkScheduler] picks the link by.
+     */
+    @WorkerThread
+    private fun sendPacketBlocking(
+        np: NetworkPacket,
+        callback: SendPacketStatusCallback,
+        sendPayloadFromSameThread: Boolean,
+        priority: SendPriority
     ): Boolean {
-        val success = links.any { link ->
+        val success = LinkScheduler.order(links, np, priority).any { link ->
             try {
                 link.sendPacket(np, callback, sendPayloadFromSameThread)
             } catch (e: IOException) {
-                Log.w("KDE/sendPacket", "Failed to send packet", e)
+                Log.w("KDE/sendPacket", "Failed to send packet over ${link.name}", e)
                 false
             }.also { sent ->
                 countSent(deviceId, np.type, sent)
@@ -512,6 +694,27 @@ class Device : PacketReceiver {
         return success
     }
 
+    /**
+     * Sends packets without payload over the link [LinkScheduler] picks for the first one in one go
+     * if it supports it, and the rest (or all of them, if it doesn't) one by one.
+     */
+    @WorkerThread
+    private fun sendPacketsBlocking(packets: List<NetworkPacketWithCallback>) {
+        var sent = 0
+        val first = packets.first()
+        val link = LinkScheduler.order(links, first.np, first.priority).firstOrNull()
+        if (link != null && packets.size > 1) {
+            sent = try {
+                link.sendPackets(packets)
+            } catch (e: IOException) {
+                Log.w("KDE/sendPacket", "Failed to send packets", e)
+                0
+            }
+            packets.subList(0, sent).forEach { countSent(deviceId, it.np.type, true) }
+        }
+        packets.subList(sent, packets.size).forEach { sendPacketBlocking(it.np, it.callback, false, it.priority) }
+    }
+
     //
     // Plugin-related functions
     //
@@ -584,6 +787,7 @@ class Device : PacketReceiver {
     @Synchronized
     private fun removePlugin(pluginKey: String): Boolean {
         val plugin = loadedPlugins.remove(pluginKey) ?: return false
+        pluginPacketExecutors.remove(pluginKey)
 
         try {
             plugin.onDestroy()
@@ -650,4 +854,17 @@ class Device : PacketReceiver {
     fun disconnect() {
         links.forEach(BaseLink::disconnect)
     }
+
+    companion object {
+        private val CONCURRENT_PACKET_EXECUTOR = Executor { ThreadHelper.execute(it) }
+
+        /**
+         * How many packets a plugin can have waiting (or running, if it handles them concurrently)
+         * before the link has to wait for it.
+         */
+        const val MAX_PENDING_PLUGIN_PACKETS = 32
+
+        const val DEFAULT_MAX_SEND_BATCH_SIZE = 32
+        const val DEFAULT_MAX_SEND_BATCH_DELAY_MILLIS = 0L
+    }
 }
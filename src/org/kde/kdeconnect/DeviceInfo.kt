@@ -29,12 +29,13 @@ class DeviceInfo(
     @JvmField var protocolVersion: Int = 0,
     @JvmField var incomingCapabilities: Set<String>? = null,
     @JvmField var outgoingCapabilities: Set<String>? = null,
+    @JvmField var linkFeatures: Set<String>? = null,
 ) {
 
     /**
      * Saves the info in settings so it can be restored later using loadFromSettings().
      * This is used to keep info from paired devices, even when they are not reachable.
-     * The capabilities and protocol version are not persisted.
+     * The capabilities, link features and protocol version are not persisted.
      */
     fun saveInSettings(settings: SharedPreferences) {
         try {
@@ -65,6 +66,7 @@ class DeviceInfo(
             np["deviceType"] = type.toString()
             np["incomingCapabilities"] = incomingCapabilities!!
             np["outgoingCapabilities"] = outgoingCapabilities!!
+            linkFeatures?.let { np["linkFeatures"] = it }
         }
 
     companion object {
@@ -99,7 +101,8 @@ class DeviceInfo(
                     certificate = certificate,
                     protocolVersion = getInt("protocolVersion"),
                     incomingCapabilities = getStringSet("incomingCapabilities"),
-                    outgoingCapabilities = getStringSet("outgoingCapabilities")
+                    outgoingCapabilities = getStringSet("outgoingCapabilities"),
+                    linkFeatures = getStringSet("linkFeatures"),
                 )
             }
 
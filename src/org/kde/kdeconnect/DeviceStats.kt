@@ -24,7 +24,15 @@ object DeviceStats {
      */
     private const val CLEANUP_INTERVAL_MILLIS = EVENT_KEEP_WINDOW_MILLIS / 4
 
+    /**
+     * Causes of [countWakeup]
+     */
+    const val WAKEUP_READ = "to read from the socket"
+    const val WAKEUP_HEARTBEAT = "to check the connection"
+
     private val eventsByDevice: MutableMap<String, PacketStats> = HashMap<String, PacketStats>()
+    private val sendQueues: MutableMap<String, OutgoingPacketQueue> = HashMap()
+    private val rttByDevice: MutableMap<String, MutableMap<String, Long>> = HashMap() // By link name
     private var nextCleanup = System.currentTimeMillis() + CLEANUP_INTERVAL_MILLIS
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -55,10 +63,146 @@ object DeviceStats {
                 append(" sent (")
                 append(count.sentFailed)
                 append(" failed)\n")
+                if (count.superseded > 0) {
+                    append("• ")
+                    append(count.superseded)
+                    append(" superseded before sending\n")
+                }
+            }
+
+            val handshakes = packetStats.handshakes
+            if (handshakes.full.count + handshakes.resumed.count > 0) {
+                append("\nTLS handshakes\n• ")
+                append(handshakes.full.count)
+                append(" full (")
+                append(handshakes.full.averageMillis)
+                append(" ms avg)\n• ")
+                append(handshakes.resumed.count)
+                append(" resumed (")
+                append(handshakes.resumed.averageMillis)
+                append(" ms avg)\n")
+            }
+
+            val reconnects = packetStats.reconnects
+            if (reconnects.direct.count + reconnects.discovered.count > 0) {
+                append("\nReconnections\n• ")
+                append(reconnects.direct.count)
+                append(" to the last known address (")
+                append(reconnects.direct.averageMillis)
+                append(" ms avg)\n• ")
+                append(reconnects.discovered.count)
+                append(" after discovery (")
+                append(reconnects.discovered.averageMillis)
+                append(" ms avg)\n")
             }
+
+            if (packetStats.wakeupsByCause.isNotEmpty()) {
+                append("\nWakeups\n")
+                packetStats.wakeupsByCause.forEach { (cause, wakeups) ->
+                    append("• ")
+                    append(wakeups.size)
+                    append(" ")
+                    append(cause)
+                    append(" (")
+                    append(wakeups.size * TimeUnit.HOURS.toMillis(1) / maxOf(timeInMillis, 1))
+                    append(" per hour)\n")
+                }
+            }
+
+            val rtts = synchronized(DeviceStats::class.java) { rttByDevice[deviceId]?.toMap() }
+            if (!rtts.isNullOrEmpty()) {
+                append("\nRound trip time\n")
+                rtts.forEach { (linkName, rttMillis) ->
+                    append("• ")
+                    append(linkName)
+                    append(": ")
+                    append(rttMillis)
+                    append(" ms\n")
+                }
+            }
+
+            val sendQueue = synchronized(DeviceStats::class.java) { sendQueues[deviceId] }
+            if (sendQueue != null) {
+                append("\nSend queue\n• ")
+                append(sendQueue.size)
+                append(" packets, ")
+                append(sendQueue.bytes / 1024)
+                append(" KiB now\n• ")
+                append(sendQueue.peakSize)
+                append(" packets, ")
+                append(sendQueue.peakBytes / 1024)
+                append(" KiB peak\n• ")
+                append(sendQueue.rejectedCount)
+                append(" rejected because it was full\n")
+            }
+        }
+    }
+
+    /**
+     * Sets the queue of packets waiting to be sent to the device, whose current and peak size are
+     * shown in the stats.
+     */
+    fun setSendQueue(deviceId: String, queue: OutgoingPacketQueue) {
+        synchronized(DeviceStats::class.java) {
+            sendQueues[deviceId] = queue
+        }
+    }
+
+    @JvmStatic
+    @SuppressLint("NewApi") // We use core library desugar
+    fun countHandshake(deviceId: String, resumed: Boolean, durationMillis: Long) {
+        synchronized(DeviceStats::class.java) {
+            val handshakes = eventsByDevice.computeIfAbsent(deviceId) { PacketStats() }.handshakes
+            (if (resumed) handshakes.resumed else handshakes.full).add(durationMillis)
         }
     }
 
+    /**
+     * Sets the latest smoothed round trip time measured over a link to the device.
+     */
+    @JvmStatic
+    @SuppressLint("NewApi") // We use core library desugar
+    fun reportRtt(deviceId: String, linkName: String, rttMillis: Long) {
+        synchronized(DeviceStats::class.java) {
+            rttByDevice.computeIfAbsent(deviceId) { HashMap() }[linkName] = rttMillis
+        }
+    }
+
+    /**
+     * Counts a reconnection to a trusted device, which took durationMillis since the device was
+     * disconnected or since we started looking for it.
+     *
+     * @param direct whether it was reconnected by connecting to its last known address, instead of
+     * after it was discovered
+     */
+    @JvmStatic
+    @SuppressLint("NewApi") // We use core library desugar
+    fun countReconnect(deviceId: String, direct: Boolean, durationMillis: Long) {
+        synchronized(DeviceStats::class.java) {
+            val reconnects = eventsByDevice.computeIfAbsent(deviceId) { PacketStats() }.reconnects
+            (if (direct) reconnects.direct else reconnects.discovered).add(durationMillis)
+        }
+    }
+
+    /**
+     * Counts a time something related to the device woke up the CPU, so an idle connection that
+     * drains the battery shows up in the stats.
+     *
+     * @param cause why it woke up, eg: [WAKEUP_READ]
+     */
+    @JvmStatic
+    @SuppressLint("NewApi") // We use core library desugar
+    fun countWakeup(deviceId: String, cause: String) {
+        synchronized(DeviceStats::class.java) {
+            eventsByDevice
+                .computeIfAbsent(deviceId) { PacketStats() }
+                .wakeupsByCause
+                .computeIfAbsent(cause) { ArrayList() }
+                .add(System.currentTimeMillis())
+        }
+        cleanupIfNeeded()
+    }
+
     @SuppressLint("NewApi") // We use core library desugar
     fun countReceived(deviceId: String, packetType: String) {
         synchronized(DeviceStats::class.java) {
@@ -93,6 +237,21 @@ object DeviceStats {
         cleanupIfNeeded()
     }
 
+    /**
+     * Counts a queued packet that was dropped because a newer one replaced it before it was sent.
+     */
+    @SuppressLint("NewApi") // We use core library desugar
+    fun countSuperseded(deviceId: String, packetType: String) {
+        synchronized(DeviceStats::class.java) {
+            eventsByDevice
+                .computeIfAbsent(deviceId) { PacketStats() }
+                .supersededByType
+                .computeIfAbsent(packetType) { ArrayList() }
+                .add(System.currentTimeMillis())
+        }
+        cleanupIfNeeded()
+    }
+
     private fun cleanupIfNeeded() {
         val cutoutTimestamp = System.currentTimeMillis() - EVENT_KEEP_WINDOW_MILLIS
         if (System.currentTimeMillis() > nextCleanup) {
@@ -102,6 +261,8 @@ object DeviceStats {
                     removeOldEvents(de.receivedByType, cutoutTimestamp)
                     removeOldEvents(de.sentFailedByType, cutoutTimestamp)
                     removeOldEvents(de.sentSuccessfulByType, cutoutTimestamp)
+                    removeOldEvents(de.supersededByType, cutoutTimestamp)
+                    removeOldEvents(de.wakeupsByCause, cutoutTimestamp)
                 }
                 nextCleanup = System.currentTimeMillis() + CLEANUP_INTERVAL_MILLIS
             }
@@ -133,12 +294,41 @@ object DeviceStats {
         val receivedByType: HashMap<String, ArrayList<Long>> = HashMap()
         val sentSuccessfulByType: HashMap<String, ArrayList<Long>> = HashMap()
         val sentFailedByType: HashMap<String, ArrayList<Long>> = HashMap()
+        val supersededByType: HashMap<String, ArrayList<Long>> = HashMap()
+        val wakeupsByCause: HashMap<String, ArrayList<Long>> = HashMap()
+        val handshakes = HandshakeStats()
+        val reconnects = ReconnectStats()
+
+        internal class HandshakeStats {
+            val full = Durations()
+            val resumed = Durations()
+        }
+
+        internal class ReconnectStats {
+            val direct = Durations()
+            val discovered = Durations()
+        }
+
+        internal class Durations {
+            var count: Int = 0
+                private set
+            private var totalMillis: Long = 0
+
+            val averageMillis: Long
+                get() = if (count == 0) 0 else totalMillis / count
+
+            fun add(millis: Long) {
+                count++
+                totalMillis += millis
+            }
+        }
 
         internal data class Summary(
             val packetType: String,
             var received: Int = 0,
             var sentSuccessful: Int = 0,
             var sentFailed: Int = 0,
+            var superseded: Int = 0,
             var total: Int = 0
         )
 
@@ -161,6 +351,10 @@ object DeviceStats {
                     summary.sentFailed += value.size
                     summary.total += value.size
                 }
+                for ((key, value) in supersededByType) {
+                    val summary = countsByType.computeIfAbsent(key) { packetType -> Summary(packetType) }
+                    summary.superseded += value.size
+                }
                 return countsByType.values
             }
     }
@@ -0,0 +1,43 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Helpers
+
+import java.util.concurrent.Executor
+import java.util.concurrent.Semaphore
+
+/**
+ * Runs tasks on another executor, with at most [maxPendingTasks] of them submitted and not finished
+ * yet. Submitting one more blocks the caller until one finishes, which pushes back on whoever
+ * produces the tasks instead of letting them pile up.
+ */
+class BoundedExecutor(
+    private val executor: Executor,
+    maxPendingTasks: Int,
+) : Executor {
+
+    private val room = Semaphore(maxPendingTasks)
+
+    /**
+     * Blocks while the executor is full.
+     *
+     * @throws InterruptedException if interrupted while waiting, the task isn't run then
+     */
+    @Throws(InterruptedException::class)
+    override fun execute(command: Runnable) {
+        room.acquire()
+        try {
+            executor.execute {
+                try {
+                    command.run()
+                } finally {
+                    room.release()
+                }
+            }
+        } catch (e: RuntimeException) {
+            room.release()
+            throw e
+        }
+    }
+}
@@ -15,6 +15,7 @@ import android.util.Log
 import com.univocity.parsers.common.TextParsingException
 import com.univocity.parsers.csv.CsvParser
 import com.univocity.parsers.csv.CsvParserSettings
+import org.kde.kdeconnect.Backends.LinkFeatures
 import org.kde.kdeconnect.DeviceInfo
 import org.kde.kdeconnect.DeviceType
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper
@@ -152,7 +153,8 @@ object DeviceHelper {
             deviceType,
             PROTOCOL_VERSION,
             PluginFactory.incomingCapabilities,
-            PluginFactory.outgoingCapabilities
+            PluginFactory.outgoingCapabilities,
+            LinkFeatures.supported,
         )
     }
 
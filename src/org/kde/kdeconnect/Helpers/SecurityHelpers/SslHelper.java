@@ -26,11 +26,13 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
 import org.kde.kdeconnect.Helpers.RandomHelper;
+import org.kde.kdeconnect.DeviceStats;
 import org.kde.kdeconnect.KdeConnect;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.KeyStore;
@@ -48,10 +50,13 @@ import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.Date;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.Locale;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -62,6 +67,25 @@ import javax.security.auth.x500.X500Principal;
 public class SslHelper {
 
     public static Certificate certificate; //my device's certificate
+
+    // Client sessions are cached by host and port, but payload sockets use a different port every time
+    private static final int SESSION_CACHE_PORT = 1716;
+    private static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+    private static class CachedSslContext {
+        final SSLContext sslContext;
+        final Certificate localCertificate;
+        final String remoteCertificate;
+
+        CachedSslContext(SSLContext sslContext, Certificate localCertificate, String remoteCertificate) {
+            this.sslContext = sslContext;
+            this.localCertificate = localCertificate;
+            this.remoteCertificate = remoteCertificate;
+        }
+    }
+
+    private static final HashMap<String, CachedSslContext> trustedSslContexts = new HashMap<>(); // Guarded by itself
+    private static CachedSslContext untrustedSslContext = null; // Guarded by trustedSslContexts
     private static final CertificateFactory factory;
     static {
         try {
@@ -193,8 +217,48 @@ public class SslHelper {
         return parseCertificate(certificateBytes);
     }
 
+    /**
+     * Returns a cached context, since creating one is expensive and TLS sessions can only be resumed
+     * with the same context that created them. The context for a trusted device is recreated if
+     * either certificate changes. Untrusted devices share a single context, because it doesn't
+     * depend on the remote device and we don't want unknown devices to fill the cache.
+     */
     private static SSLContext getSslContextForDevice(Context context, String deviceId, boolean isDeviceTrusted) {
-        //TODO: Cache
+        String remoteCertificate = "";
+        if (isDeviceTrusted) {
+            SharedPreferences devicePreferences = context.getSharedPreferences(deviceId, Context.MODE_PRIVATE);
+            remoteCertificate = devicePreferences.getString("certificate", "");
+        }
+        synchronized (trustedSslContexts) {
+            CachedSslContext cached = isDeviceTrusted ? trustedSslContexts.get(deviceId) : untrustedSslContext;
+            if (cached != null && cached.localCertificate == certificate && cached.remoteCertificate.equals(remoteCertificate)) {
+                return cached.sslContext;
+            }
+        }
+        SSLContext tlsContext = createSslContextForDevice(context, deviceId, isDeviceTrusted);
+        if (tlsContext != null) {
+            CachedSslContext cached = new CachedSslContext(tlsContext, certificate, remoteCertificate);
+            synchronized (trustedSslContexts) {
+                if (isDeviceTrusted) {
+                    trustedSslContexts.put(deviceId, cached);
+                } else {
+                    untrustedSslContext = cached;
+                }
+            }
+        }
+        return tlsContext;
+    }
+
+    /**
+     * Forgets the context (and with it, the resumable TLS sessions) for a device, eg: when unpairing.
+     */
+    public static void invalidateSslContext(String deviceId) {
+        synchronized (trustedSslContexts) {
+            trustedSslContexts.remove(deviceId);
+        }
+    }
+
+    private static SSLContext createSslContextForDevice(Context context, String deviceId, boolean isDeviceTrusted) {
         try {
             // Get device private key
             PrivateKey privateKey = RsaHelper.getPrivateKey(context);
@@ -226,6 +290,8 @@ public class SslHelper {
             } else {
                 tlsContext.init(keyManagerFactory.getKeyManagers(), trustAllCerts, RandomHelper.secureRandom);
             }
+            tlsContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            tlsContext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
             return tlsContext;
         } catch (Exception e) {
             Log.e("KDE/SslHelper", "Error creating tls context", e);
@@ -235,6 +301,8 @@ public class SslHelper {
     }
 
     private static void configureSslSocket(SSLSocket socket, boolean isDeviceTrusted, boolean isClient) throws SocketException {
+       // Only payload transfers use blocking sockets, where this catches a stalled transfer. The idle
+       // links are read by LanReaderEngine without any timeout, their liveness is up to LinkHealthMonitor.
        socket.setSoTimeout(10000);
         if (isClient) {
             socket.setUseClientMode(true);
@@ -249,13 +317,47 @@ public class SslHelper {
 
     }
 
+    /**
+     * Wraps the socket and does the TLS handshake, resuming a previous session with the same device if possible.
+     */
     public static SSLSocket convertToSslSocket(Context context, Socket socket, String deviceId, boolean isDeviceTrusted, boolean clientMode) throws IOException {
         SSLSocketFactory sslsocketFactory = SslHelper.getSslContextForDevice(context, deviceId, isDeviceTrusted).getSocketFactory();
-        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), SESSION_CACHE_PORT, true);
         SslHelper.configureSslSocket(sslsocket, isDeviceTrusted, clientMode);
+        long handshakeStart = System.currentTimeMillis();
+        sslsocket.startHandshake();
+        reportHandshake(deviceId, sslsocket.getSession(), handshakeStart);
         return sslsocket;
     }
 
+    /**
+     * Logs how long a handshake took and whether it resumed a previous session, and adds it to the {@link DeviceStats}.
+     */
+    public static void reportHandshake(String deviceId, SSLSession session, long handshakeStartMillis) {
+        long duration = System.currentTimeMillis() - handshakeStartMillis;
+        // A resumed session was created during an earlier handshake
+        boolean resumed = session.getCreationTime() < handshakeStartMillis;
+        Log.d("KDE/SslHelper", (resumed ? "Resumed" : "Full") + " TLS handshake with " + deviceId + " took " + duration + "ms");
+        DeviceStats.countHandshake(deviceId, resumed, duration);
+    }
+
+    /**
+     * Same as {@link #convertToSslSocket} but for non-blocking sockets: returns an {@link SSLEngine}
+     * that the caller has to drive over a SocketChannel.
+     */
+    public static SSLEngine createSslEngine(Context context, InetSocketAddress peerAddress, String deviceId, boolean isDeviceTrusted, boolean clientMode) {
+        SSLEngine engine = SslHelper.getSslContextForDevice(context, deviceId, isDeviceTrusted).createSSLEngine(peerAddress.getAddress().getHostAddress(), SESSION_CACHE_PORT);
+        engine.setUseClientMode(clientMode);
+        if (!clientMode) {
+            if (isDeviceTrusted) {
+                engine.setNeedClientAuth(true);
+            } else {
+                engine.setWantClientAuth(true);
+            }
+        }
+        return engine;
+    }
+
     public static String getCertificateHash(Certificate certificate) {
         byte[] hash;
         try {
@@ -0,0 +1,53 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Helpers
+
+import android.util.Log
+import java.util.concurrent.Executor
+
+/**
+ * Runs tasks one at a time and in submission order, borrowing threads from [ThreadHelper].
+ * Unlike a single-thread executor, it doesn't keep a thread alive while there's nothing to do.
+ */
+class SerialExecutor @JvmOverloads constructor(
+    private val executor: Executor = Executor { ThreadHelper.execute(it) },
+) : Executor {
+
+    private val tasks = ArrayDeque<Runnable>() // Guarded by itself
+    private var draining = false // Guarded by tasks
+
+    override fun execute(command: Runnable) {
+        synchronized(tasks) {
+            tasks.addLast(command)
+            if (draining) {
+                return
+            }
+            draining = true
+        }
+        executor.execute(::drain)
+    }
+
+    /**
+     * Number of tasks submitted that haven't started running yet.
+     */
+    val pendingTasks: Int
+        get() = synchronized(tasks) { tasks.size }
+
+    private fun drain() {
+        while (true) {
+            val task = synchronized(tasks) {
+                tasks.removeFirstOrNull() ?: run {
+                    draining = false
+                    return
+                }
+            }
+            try {
+                task.run()
+            } catch (e: Exception) {
+                Log.e("SerialExecutor", "Exception running task", e)
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+import org.kde.kdeconnect.Backends.BaseLink
+
+/**
+ * Decides in which order the links to a device are tried when sending a packet. The first one that
+ * sends it wins, the rest are only tried if it fails.
+ *
+ * Links come sorted by the priority of their provider, and that order is kept unless the live metrics
+ * of the links say otherwise:
+ *  - Packets with a payload go first to the link expected to finish sending it soonest, given how
+ *    fast its payloads have been going out and how much it still has waiting to be sent.
+ *  - [SendPriority.INTERACTIVE] packets go first to the link with the lowest round trip time.
+ *  - Links whose last pings weren't answered ([BaseLink.isUnresponsive]) go last, without waiting
+ *    for a send to fail on them.
+ *
+ * Another link only takes the place of the preferred one if it's better by [SWITCH_MARGIN], so small
+ * fluctuations in the metrics don't make packets bounce between links. A metric that isn't known for
+ * the preferred link (eg: no payload has been sent over it yet) keeps the provider order.
+ */
+object LinkScheduler {
+
+    const val SWITCH_MARGIN = 1.25
+
+    fun order(links: List<BaseLink>, np: NetworkPacket, priority: SendPriority): List<BaseLink> {
+        if (links.size < 2) {
+            return links
+        }
+        val (responsive, unresponsive) = links.partition { !it.isUnresponsive }
+        val ordered = when {
+            np.hasPayload() -> preferCheapest(responsive) { estimateTransferSeconds(it, np.payloadSize) }
+            priority == SendPriority.INTERACTIVE -> preferCheapest(responsive) { link ->
+                link.smoothedRttMillis.takeIf { it >= 0 }
+            }
+            else -> responsive
+        }
+        return ordered + unresponsive
+    }
+
+    private fun estimateTransferSeconds(link: BaseLink, payloadSize: Long): Double? {
+        val transfers = link.payloadTransfers
+        val throughput = transfers.throughputBytesPerSecond
+        if (throughput <= 0) {
+            return null
+        }
+        return (transfers.pendingBytes + payloadSize.coerceAtLeast(0)) / throughput
+    }
+
+    /**
+     * Moves the link with the lowest cost in front of the first one, if it's clearly cheaper. Links
+     * whose cost isn't known (null) keep their place.
+     */
+    private inline fun preferCheapest(links: List<BaseLink>, cost: (BaseLink) -> Double?): List<BaseLink> {
+        if (links.size < 2) {
+            return links
+        }
+        val firstCost = cost(links[0]) ?: return links
+        var cheapest = 0
+        var cheapestCost = firstCost
+        for (i in 1 until links.size) {
+            val linkCost = cost(links[i]) ?: continue
+            if (linkCost < cheapestCost) {
+                cheapest = i
+                cheapestCost = linkCost
+            }
+        }
+        if (cheapest == 0 || cheapestCost * SWITCH_MARGIN >= firstCost) {
+            return links
+        }
+        return listOf(links[cheapest]) + links.filterIndexed { i, _ -> i != cheapest }
+    }
+}
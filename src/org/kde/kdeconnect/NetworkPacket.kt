@@ -5,6 +5,7 @@
 */
 package org.kde.kdeconnect
 
+import android.util.Log
 import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
@@ -12,20 +13,58 @@ import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.net.Socket
+import java.util.concurrent.atomic.AtomicLong
 
 class NetworkPacket private constructor(
+    /**
+     * Unique among the packets we send: taken from a counter that only grows (and starts at the
+     * current time, so it also grows across restarts). For received packets, the id the sender gave it.
+     */
+    val id: Long,
     val type: String,
-    private val mBody: JSONObject,
+    body: JSONObject?,
+    rawBody: ByteArray?,
+    deflatedBody: String?,
+    maxBodySize: Int,
     var payload: Payload?,
     var payloadTransferInfo: JSONObject,
 ) {
     constructor(type: String) : this(
+        id = nextId.incrementAndGet(),
         type = type,
-        mBody = JSONObject(),
+        body = JSONObject(),
+        rawBody = null,
+        deflatedBody = null,
+        maxBodySize = 0,
         payload = null,
         payloadTransferInfo = JSONObject()
     )
 
+    /**
+     * For received packets, the body is only decoded (and decompressed, if it was sent compressed,
+     * up to the size limit of the link it came from) the first time it's used. A body that turns
+     * out not to be valid JSON reads as empty, see [isBodyValid].
+     */
+    private val mBody: JSONObject by lazy {
+        body ?: try {
+            val json = deflatedBody?.let { PacketBodyCompression.inflate(it, maxBodySize) } ?: rawBody!!
+            JSONObject(String(json, Charsets.UTF_8))
+        } catch (e: JSONException) {
+            Log.w("NetworkPacket", "Couldn't decode the body of a $type packet", e)
+            bodyDecodingFailed = true
+            JSONObject()
+        }
+    }
+
+    private var bodyDecodingFailed = false // Only written while decoding mBody
+
+    /**
+     * Whether the body could be decoded, which it is if it wasn't yet. Packets whose body can't be
+     * are dropped before they reach the plugins, which would otherwise take it for an empty one.
+     */
+    val isBodyValid: Boolean
+        get() = mBody.let { !bodyDecodingFailed }
+
     @Volatile
     var isCanceled: Boolean = false
         private set
@@ -202,24 +241,39 @@ class NetworkPacket private constructor(
         return mBody.has(key)
     }
 
+    /**
+     * The packet as sent over the wire. Links should write it with a [NetworkPacketWriter] instead,
+     * which doesn't need to build the String.
+     */
+    @Throws(JSONException::class)
+    fun serialize(): String = NetworkPacketWriter().also { it.write(this) }.toString(Charsets.UTF_8.name())
+
+    /**
+     * Writes the packet as [serialize] does, see [NetworkPacketWriter.write].
+     */
     @Throws(JSONException::class)
-    fun serialize(): String {
-        val jo = JSONObject()
-        jo.put("id", System.currentTimeMillis())
-        jo.put("type", type)
-        jo.put("body", mBody)
+    internal fun writeTo(writer: NetworkPacketWriter, compressBody: Boolean) {
+        writer.writeAscii("{\"id\":")
+        writer.writeValue(id)
+        writer.writeAscii(",\"type\":")
+        writer.writeString(type)
+        writer.writeBody(mBody, compressBody)
         if (hasPayload()) {
-            jo.put("payloadSize", payload!!.payloadSize)
-            jo.put("payloadTransferInfo", payloadTransferInfo)
-        }
-        // QJSon does not escape slashes, but Java JSONObject does. Converting to QJson format.
-        try {
-            return jo.toString().replace("\\/", "/") + "\n"
-        } catch (e : OutOfMemoryError) {
-            throw RuntimeException("OOM serializing packet of type $type", e)
+            writer.writeAscii(",\"payloadSize\":")
+            writer.writeValue(payload!!.payloadSize)
+            writer.writeAscii(",\"payloadTransferInfo\":")
+            writer.writeObject(payloadTransferInfo)
         }
+        writer.writeAscii("}\n")
     }
 
+    /**
+     * Rough length in bytes of the body once serialized, before it's compressed (if it is): that of
+     * its keys and strings, plus a few bytes for each value. Much cheaper than serializing it, which
+     * is only done once, when it's sent.
+     */
+    internal fun estimateBodySize(): Long = estimateSerializedSize(mBody)
+
     val payloadSize: Long
         get() = payload?.payloadSize ?: 0
 
@@ -240,9 +294,17 @@ class NetworkPacket private constructor(
         private val inputSocket: Socket?
         val payloadSize: Long
 
+        /**
+         * Whether the payload is a buffer held in memory, rather than read from a file or socket.
+         */
+        var isInMemory: Boolean = false
+            private set
+
         constructor(payloadSize: Long) : this(null, payloadSize)
 
-        constructor(data: ByteArray) : this(ByteArrayInputStream(data), data.size.toLong())
+        constructor(data: ByteArray) : this(ByteArrayInputStream(data), data.size.toLong()) {
+            isInMemory = true
+        }
 
         /**
          * **NOTE: Do not use this to set an SSLSockets InputStream as the payload, use Payload(Socket, long) instead because of this [bug](https://issuetracker.google.com/issues/37018094)**
@@ -253,9 +315,14 @@ class NetworkPacket private constructor(
             this.payloadSize = payloadSize
         }
 
-        constructor(inputSocket: Socket, payloadSize: Long) {
+        constructor(inputSocket: Socket, payloadSize: Long) : this(inputSocket, inputSocket.getInputStream(), payloadSize)
+
+        /**
+         * For a stream that reads from inputSocket, eg: wrapping its InputStream.
+         */
+        constructor(inputSocket: Socket, inputStream: InputStream, payloadSize: Long) {
             this.inputSocket = inputSocket
-            this.inputStream = inputSocket.getInputStream()
+            this.inputStream = inputStream
             this.payloadSize = payloadSize
         }
 
@@ -277,17 +344,50 @@ class NetworkPacket private constructor(
         const val PACKET_TYPE_IDENTITY: String = "kdeconnect.identity"
         const val PACKET_TYPE_PAIR: String = "kdeconnect.pair"
 
+        private val nextId = AtomicLong(System.currentTimeMillis())
+
+        private const val ESTIMATED_VALUE_BYTES = 8L // Quotes, colon and comma, or a number
+
+        private fun estimateSerializedSize(value: Any?): Long = when (value) {
+            is JSONObject -> value.keys().asSequence().sumOf { key ->
+                key.length + ESTIMATED_VALUE_BYTES + estimateSerializedSize(value.opt(key))
+            }
+            is JSONArray -> (0 until value.length()).sumOf { i ->
+                ESTIMATED_VALUE_BYTES + estimateSerializedSize(value.opt(i))
+            }
+            is String -> value.length.toLong()
+            is Number, is Boolean, null, JSONObject.NULL -> 0L
+            else -> value.toString().length.toLong()
+        }
+
+        @JvmStatic
+        @Throws(JSONException::class)
+        fun unserialize(s: String): NetworkPacket = fromJson(JSONObject(s))
+
+        /**
+         * Builds a packet from its already parsed JSON, eg: by [NetworkPacketParser].
+         *
+         * @param rawBody the body as UTF-8 JSON, to decode when it's first used, if [jo] doesn't
+         * have it already
+         * @param maxBodySize how big the body can get once decompressed, the limit of the link
+         * the packet came from
+         */
         @JvmStatic
+        @JvmOverloads
         @Throws(JSONException::class)
-        fun unserialize(s: String): NetworkPacket {
-            val jo = JSONObject(s)
+        fun fromJson(
+            jo: JSONObject,
+            rawBody: ByteArray? = null,
+            maxBodySize: Int = NetworkPacketParser.DEFAULT_MAX_PACKET_SIZE
+        ): NetworkPacket {
             val type = jo.getString("type")
-            val mBody = jo.getJSONObject("body")
+            val deflatedBody = jo.optString(PacketBodyCompression.DEFLATED_BODY_KEY, null)
+            val mBody = if (rawBody == null && deflatedBody == null) jo.getJSONObject("body") else null
 
             val hasPayload = jo.has("payloadSize")
             val payloadTransferInfo = if (hasPayload) jo.getJSONObject("payloadTransferInfo") else JSONObject()
             val payload = if (hasPayload) Payload(jo.getLong("payloadSize")) else null
-            return NetworkPacket(type, mBody, payload, payloadTransferInfo)
+            return NetworkPacket(jo.optLong("id"), type, mBody, rawBody, deflatedBody, maxBodySize, payload, payloadTransferInfo)
         }
     }
 }
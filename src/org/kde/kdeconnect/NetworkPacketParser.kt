@@ -0,0 +1,429 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Incremental parser for the packets received on a link: one JSON object per line, in UTF-8.
+ *
+ * Bytes are passed to [feed] as they arrive, in chunks of any size, and the packet is built straight
+ * from them, so the whole line never needs to be buffered nor decoded into a String first. A parser
+ * is meant to be reused for all the packets of a connection, and so are its buffers.
+ *
+ * Only the envelope of the packet (its type and payload fields) is decoded here. The body is kept as
+ * raw bytes that [NetworkPacket] only decodes when it's first read, so packets nobody handles never
+ * are, and those that are get decoded on the thread of the plugin rather than the one reading them.
+ *
+ * Packets longer than [maxPacketSize] bytes are skipped.
+ */
+class NetworkPacketParser @JvmOverloads constructor(
+    @Volatile var maxPacketSize: Int = DEFAULT_MAX_PACKET_SIZE,
+) {
+
+    /**
+     * Thrown when a packet is longer than [maxPacketSize]. The rest of its line is skipped, so
+     * parsing can go on with the next packet.
+     */
+    class PacketTooLargeException(message: String) : JSONException(message)
+
+    private enum class State {
+        IDLE, // Between packets
+        OBJECT_FIRST_KEY, OBJECT_KEY, COLON,
+        ARRAY_FIRST_VALUE, VALUE, AFTER_VALUE,
+        STRING, ESCAPE, UNICODE_ESCAPE, LITERAL,
+        RAW_BODY, RAW_BODY_STRING, RAW_BODY_ESCAPE, // Copying the body as is, see startRawBody()
+        PACKET_END, // After the closing brace, until the newline
+        SKIP, // Discarding an invalid packet, until the newline
+    }
+
+    private var state = State.IDLE
+    private var packetBytes = 0
+
+    // Reused between packets
+    private val containers = ArrayList<Any>() // JSONObject or JSONArray
+    private val keys = ArrayList<String?>() // Key for the next value of each container, if it's an object
+    private val text = StringBuilder() // Current string or literal
+    private var rawBody = ByteArray(INITIAL_RAW_BODY_CAPACITY) // Current body, in its first rawBodyLength bytes
+    private var rawBodyLength = 0
+    private var rawBodyDepth = 0
+
+    private var stringIsKey = false
+    private var unicodeDigits = 0
+    private var unicodeValue = 0
+    private var utf8Remaining = 0
+    private var utf8CodePoint = 0
+
+    private var packetRawBody: ByteArray? = null
+    private var packet: NetworkPacket? = null
+    private var error: JSONException? = null
+
+    /**
+     * Whether there's no packet partially parsed, ie: the next byte starts a new line.
+     */
+    val isIdle: Boolean
+        get() = state == State.IDLE
+
+    /**
+     * Parses bytes until a packet is completed or found to be invalid, or until all the bytes are
+     * consumed. In the first two cases, [takePacket] returns the packet or throws the error. Between
+     * packets it also stops at a zero byte, which can't start a line of JSON, without consuming it:
+     * it is up to the caller to handle whatever follows.
+     *
+     * @return the number of bytes consumed
+     */
+    fun feed(buffer: ByteArray, offset: Int, length: Int): Int {
+        check(packet == null && error == null) { "The last result has to be taken before parsing more" }
+        val end = offset + length
+        var i = offset
+        while (i < end) {
+            val b = buffer[i].toInt() and 0xFF
+            if (state == State.IDLE && b == 0) {
+                break
+            }
+            i++
+            // The newline isn't part of the packet: if it counted, it could push a packet right at
+            // the limit over it, and the skipping would go on into the next line
+            if (state != State.IDLE && state != State.SKIP && b != '\n'.code && ++packetBytes > maxPacketSize) {
+                skipPacket()
+                error = PacketTooLargeException("Packet longer than $maxPacketSize bytes")
+                break
+            }
+            try {
+                if (consume(b)) {
+                    break
+                }
+            } catch (e: JSONException) {
+                skipPacket()
+                if (b == '\n'.code) {
+                    state = State.IDLE
+                }
+                error = e
+                break
+            }
+        }
+        return i - offset
+    }
+
+    /**
+     * Returns the packet completed by the last call to [feed], if any.
+     *
+     * @throws JSONException if the last call to [feed] found an invalid packet. The rest of its line
+     * is skipped, so parsing can go on with the next packet.
+     */
+    @Throws(JSONException::class)
+    fun takePacket(): NetworkPacket? {
+        error?.let {
+            error = null
+            throw it
+        }
+        return packet.also { packet = null }
+    }
+
+    /**
+     * Forgets any packet partially parsed, eg: after the connection is reset.
+     */
+    fun reset() {
+        skipPacket()
+        state = State.IDLE
+        packet = null
+        error = null
+    }
+
+    /**
+     * @return true if the byte completed a packet
+     */
+    private fun consume(b: Int): Boolean {
+        when (state) {
+            State.IDLE -> when {
+                isWhitespace(b) || b == '\n'.code -> {}
+                b == '{'.code -> {
+                    packetBytes = 1
+                    push(JSONObject())
+                    state = State.OBJECT_FIRST_KEY
+                }
+                else -> throw JSONException("Expected a packet but got ${describe(b)}")
+            }
+            State.OBJECT_FIRST_KEY, State.OBJECT_KEY -> when {
+                isWhitespace(b) -> {}
+                b == '"'.code -> startString(isKey = true)
+                b == '}'.code && state == State.OBJECT_FIRST_KEY -> return endContainer()
+                else -> throw JSONException("Expected a key but got ${describe(b)}")
+            }
+            State.COLON -> when {
+                isWhitespace(b) -> {}
+                b == ':'.code -> state = State.VALUE
+                else -> throw JSONException("Expected ':' but got ${describe(b)}")
+            }
+            State.ARRAY_FIRST_VALUE -> when {
+                isWhitespace(b) -> {}
+                b == ']'.code -> return endContainer()
+                else -> startValue(b)
+            }
+            State.VALUE -> when {
+                isWhitespace(b) -> {}
+                b == '{'.code && containers.size == 1 && keys[0] == BODY_KEY -> startRawBody()
+                else -> startValue(b)
+            }
+            State.AFTER_VALUE -> when {
+                isWhitespace(b) -> {}
+                b == ','.code -> state = if (containers.last() is JSONObject) State.OBJECT_KEY else State.VALUE
+                b == '}'.code && containers.last() is JSONObject -> return endContainer()
+                b == ']'.code && containers.last() is JSONArray -> return endContainer()
+                else -> throw JSONException("Expected ',' or the end of the ${containerName()} but got ${describe(b)}")
+            }
+            State.STRING -> consumeStringByte(b)
+            State.ESCAPE -> {
+                state = State.STRING
+                when (b) {
+                    '"'.code, '\\'.code, '/'.code -> text.append(b.toChar())
+                    'b'.code -> text.append('\b')
+                    'f'.code -> text.append('\u000C')
+                    'n'.code -> text.append('\n')
+                    'r'.code -> text.append('\r')
+                    't'.code -> text.append('\t')
+                    'u'.code -> {
+                        state = State.UNICODE_ESCAPE
+                        unicodeDigits = 0
+                        unicodeValue = 0
+                    }
+                    else -> throw JSONException("Invalid escape sequence \\${b.toChar()}")
+                }
+            }
+            State.UNICODE_ESCAPE -> {
+                val digit = Character.digit(b, 16)
+                if (digit < 0) {
+                    throw JSONException("Invalid unicode escape sequence")
+                }
+                unicodeValue = unicodeValue * 16 + digit
+                if (++unicodeDigits == 4) {
+                    // Surrogate pairs come as two escapes, each half is a char of its own in UTF-16
+                    text.append(unicodeValue.toChar())
+                    state = State.STRING
+                }
+            }
+            State.LITERAL -> {
+                if (isLiteralByte(b)) {
+                    text.append(b.toChar())
+                } else {
+                    addValue(parseLiteral())
+                    return consume(b) // The byte after a literal belongs to whatever comes next
+                }
+            }
+            State.RAW_BODY -> {
+                appendRawBody(b)
+                when (b) {
+                    '"'.code -> state = State.RAW_BODY_STRING
+                    '{'.code, '['.code -> rawBodyDepth++
+                    '}'.code, ']'.code -> if (--rawBodyDepth == 0) {
+                        packetRawBody = rawBody.copyOf(rawBodyLength)
+                        if (rawBody.size > MAX_RETAINED_BUFFER_CAPACITY) {
+                            rawBody = ByteArray(INITIAL_RAW_BODY_CAPACITY)
+                        }
+                        state = State.AFTER_VALUE
+                    }
+                }
+            }
+            State.RAW_BODY_STRING -> {
+                appendRawBody(b)
+                when (b) {
+                    '"'.code -> state = State.RAW_BODY
+                    '\\'.code -> state = State.RAW_BODY_ESCAPE
+                }
+            }
+            State.RAW_BODY_ESCAPE -> {
+                appendRawBody(b)
+                state = State.RAW_BODY_STRING
+            }
+            State.PACKET_END -> when {
+                b == '\n'.code -> {
+                    state = State.IDLE
+                    val root = containers.removeAt(0) as JSONObject
+                    keys.clear()
+                    val body = packetRawBody ?: throw JSONException("Packet without a body")
+                    packetRawBody = null
+                    packet = NetworkPacket.fromJson(root, body, maxPacketSize)
+                    return true
+                }
+                isWhitespace(b) -> {}
+                else -> throw JSONException("Expected the end of the line but got ${describe(b)}")
+            }
+            State.SKIP -> if (b == '\n'.code) {
+                state = State.IDLE
+            }
+        }
+        return false
+    }
+
+    private fun startValue(b: Int) {
+        when {
+            b == '{'.code -> {
+                push(JSONObject())
+                state = State.OBJECT_FIRST_KEY
+            }
+            b == '['.code -> {
+                push(JSONArray())
+                state = State.ARRAY_FIRST_VALUE
+            }
+            b == '"'.code -> startString(isKey = false)
+            isLiteralByte(b) -> {
+                text.setLength(0)
+                text.append(b.toChar())
+                state = State.LITERAL
+            }
+            else -> throw JSONException("Expected a value but got ${describe(b)}")
+        }
+    }
+
+    /**
+     * Starts copying the body of the packet without parsing it. Only strings and nesting are followed,
+     * to find where it ends: whether it's valid JSON is only checked once it's decoded.
+     */
+    private fun startRawBody() {
+        rawBodyLength = 0
+        rawBodyDepth = 1
+        appendRawBody('{'.code)
+        state = State.RAW_BODY
+    }
+
+    private fun appendRawBody(b: Int) {
+        // A newline always ends the line, even inside a string where JSON would have it escaped, so
+        // it can't be part of the body: the packet was cut short, and what follows is the next one
+        if (b == '\n'.code) {
+            throw JSONException("Packet ends in the middle of its body")
+        }
+        if (rawBodyLength == rawBody.size) {
+            rawBody = rawBody.copyOf(rawBody.size * 2)
+        }
+        rawBody[rawBodyLength++] = b.toByte()
+    }
+
+    private fun startString(isKey: Boolean) {
+        text.setLength(0)
+        stringIsKey = isKey
+        utf8Remaining = 0
+        state = State.STRING
+    }
+
+    private fun consumeStringByte(b: Int) {
+        if (utf8Remaining > 0) {
+            if (b and 0xC0 != 0x80) {
+                throw JSONException("Invalid UTF-8 sequence")
+            }
+            utf8CodePoint = (utf8CodePoint shl 6) or (b and 0x3F)
+            if (--utf8Remaining == 0) {
+                if (Character.isValidCodePoint(utf8CodePoint)) {
+                    text.appendCodePoint(utf8CodePoint)
+                } else {
+                    text.append(REPLACEMENT_CHARACTER)
+                }
+            }
+            return
+        }
+        when {
+            b == '"'.code -> {
+                val string = text.toString()
+                if (stringIsKey) {
+                    keys[keys.size - 1] = string
+                    state = State.COLON
+                } else {
+                    addValue(string)
+                }
+            }
+            b == '\\'.code -> state = State.ESCAPE
+            b < 0x20 -> throw JSONException("Unescaped control character in string")
+            b < 0x80 -> text.append(b.toChar())
+            b and 0xE0 == 0xC0 -> startUtf8Sequence(b and 0x1F, 1)
+            b and 0xF0 == 0xE0 -> startUtf8Sequence(b and 0x0F, 2)
+            b and 0xF8 == 0xF0 -> startUtf8Sequence(b and 0x07, 3)
+            else -> throw JSONException("Invalid UTF-8 sequence")
+        }
+    }
+
+    private fun startUtf8Sequence(bits: Int, continuationBytes: Int) {
+        utf8CodePoint = bits
+        utf8Remaining = continuationBytes
+    }
+
+    private fun parseLiteral(): Any {
+        val literal = text.toString()
+        when (literal) {
+            "true" -> return true
+            "false" -> return false
+            "null" -> return JSONObject.NULL
+        }
+        // Same number types as org.json: Integer or Long if possible, Double otherwise
+        if (literal.none { it == '.' || it == 'e' || it == 'E' }) {
+            literal.toLongOrNull()?.let { long ->
+                return if (long in Int.MIN_VALUE..Int.MAX_VALUE) long.toInt() else long
+            }
+        }
+        return literal.toDoubleOrNull()?.takeIf { it.isFinite() }
+            ?: throw JSONException("Invalid value $literal")
+    }
+
+    private fun push(container: Any) {
+        if (containers.size >= MAX_DEPTH) {
+            throw JSONException("Packet nested too deep")
+        }
+        containers.add(container)
+        keys.add(null)
+    }
+
+    private fun addValue(value: Any) {
+        when (val container = containers.last()) {
+            is JSONObject -> container.put(keys.last(), value)
+            is JSONArray -> container.put(value)
+        }
+        state = State.AFTER_VALUE
+    }
+
+    private fun endContainer(): Boolean {
+        if (containers.size == 1) {
+            state = State.PACKET_END
+            return false
+        }
+        val container = containers.removeAt(containers.size - 1)
+        keys.removeAt(keys.size - 1)
+        addValue(container)
+        return false
+    }
+
+    private fun skipPacket() {
+        containers.clear()
+        keys.clear()
+        text.setLength(0)
+        if (text.capacity() > MAX_RETAINED_BUFFER_CAPACITY) {
+            text.trimToSize()
+        }
+        packetRawBody = null
+        if (rawBody.size > MAX_RETAINED_BUFFER_CAPACITY) {
+            rawBody = ByteArray(INITIAL_RAW_BODY_CAPACITY)
+        }
+        state = State.SKIP
+    }
+
+    private fun containerName(): String = if (containers.last() is JSONObject) "object" else "array"
+
+    companion object {
+        const val DEFAULT_MAX_PACKET_SIZE = 64 * 1024 * 1024
+
+        private const val MAX_DEPTH = 512
+        private const val MAX_RETAINED_BUFFER_CAPACITY = 64 * 1024
+        private const val INITIAL_RAW_BODY_CAPACITY = 1024
+        private const val BODY_KEY = "body"
+        private const val REPLACEMENT_CHARACTER = '\uFFFD'
+
+        private fun isWhitespace(b: Int): Boolean = b == ' '.code || b == '\t'.code || b == '\r'.code
+
+        private fun isLiteralByte(b: Int): Boolean =
+            b in 'a'.code..'z'.code || b in 'A'.code..'Z'.code || b in '0'.code..'9'.code ||
+                b == '-'.code || b == '+'.code || b == '.'.code
+
+        private fun describe(b: Int): String = if (b in 0x21..0x7E) "'${b.toChar()}'" else "byte $b"
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Serializes packets straight to UTF-8 bytes, without building the JSON as a String first. The
+ * output is the same as [NetworkPacket.serialize]: compact JSON like org.json writes it, except
+ * slashes aren't escaped (like QJson does), followed by a newline.
+ *
+ * A writer is meant to be reused: several packets can be written one after the other to send them
+ * with a single write, and its buffer is kept for the next ones after calling [recycle].
+ */
+class NetworkPacketWriter : ByteArrayOutputStream(INITIAL_CAPACITY) {
+
+    /**
+     * Appends a packet. If it can't be serialized, nothing is appended.
+     *
+     * @param compressBody whether to compress the body if it's big, see [PacketBodyCompression]
+     */
+    @JvmOverloads
+    @Throws(JSONException::class)
+    fun write(np: NetworkPacket, compressBody: Boolean = false) {
+        val start = count
+        try {
+            np.writeTo(this, compressBody)
+        } catch (e: JSONException) {
+            count = start
+            throw e
+        } catch (e: OutOfMemoryError) {
+            count = start
+            throw RuntimeException("OOM serializing packet of type ${np.type}", e)
+        }
+    }
+
+    /**
+     * The packets written so far. Only valid until the writer is written to or recycled.
+     */
+    fun toByteBuffer(): ByteBuffer = ByteBuffer.wrap(buf, 0, count)
+
+    /**
+     * Empties the writer to reuse it, releasing its buffer if a big packet made it grow too much.
+     */
+    fun recycle() {
+        count = 0
+        if (buf.size > MAX_RETAINED_CAPACITY) {
+            buf = ByteArray(INITIAL_CAPACITY)
+        }
+    }
+
+    internal fun writeValue(value: Any?) {
+        when (value) {
+            null, JSONObject.NULL -> writeAscii("null")
+            is JSONObject -> writeObject(value)
+            is JSONArray -> writeArray(value)
+            is String -> writeString(value)
+            is Boolean -> writeAscii(if (value) "true" else "false")
+            is Int -> writeLong(value.toLong())
+            is Long -> writeLong(value)
+            is Number -> writeAscii(JSONObject.numberToString(value))
+            else -> writeString(value.toString())
+        }
+    }
+
+    internal fun writeBody(body: JSONObject, compress: Boolean) {
+        val start = count
+        writeAscii(",\"body\":")
+        val bodyStart = count
+        writeObject(body)
+        val bodyLength = count - bodyStart
+        if (!compress || bodyLength < PacketBodyCompression.THRESHOLD_BYTES) {
+            return
+        }
+        val deflated = PacketBodyCompression.deflate(buf, bodyStart, bodyLength) ?: return
+        count = start
+        writeAscii(",\"body\":{},\"${PacketBodyCompression.DEFLATED_BODY_KEY}\":\"")
+        write(deflated, 0, deflated.size)
+        writeByte('"'.code)
+    }
+
+    internal fun writeObject(jo: JSONObject) {
+        writeByte('{'.code)
+        var first = true
+        for (key in jo.keys()) {
+            if (!first) {
+                writeByte(','.code)
+            }
+            first = false
+            writeString(key)
+            writeByte(':'.code)
+            writeValue(jo.opt(key))
+        }
+        writeByte('}'.code)
+    }
+
+    private fun writeArray(ja: JSONArray) {
+        writeByte('['.code)
+        for (i in 0 until ja.length()) {
+            if (i > 0) {
+                writeByte(','.code)
+            }
+            writeValue(ja.opt(i))
+        }
+        writeByte(']'.code)
+    }
+
+    /**
+     * Writes a quoted string with the same escapes as org.json, except for slashes.
+     */
+    internal fun writeString(s: String) {
+        writeByte('"'.code)
+        var i = 0
+        while (i < s.length) {
+            val c = s[i++]
+            ensureCapacity(MAX_BYTES_PER_CHAR)
+            when {
+                c == '"' || c == '\\' -> {
+                    buf[count++] = '\\'.code.toByte()
+                    buf[count++] = c.code.toByte()
+                }
+                c == '\t' -> writeEscape('t')
+                c == '\b' -> writeEscape('b')
+                c == '\n' -> writeEscape('n')
+                c == '\r' -> writeEscape('r')
+                c == '\u000C' -> writeEscape('f')
+                c.code < 0x20 -> {
+                    writeEscape('u')
+                    buf[count++] = '0'.code.toByte()
+                    buf[count++] = '0'.code.toByte()
+                    buf[count++] = HEX_DIGITS[c.code shr 4]
+                    buf[count++] = HEX_DIGITS[c.code and 0xF]
+                }
+                c.code < 0x80 -> buf[count++] = c.code.toByte()
+                c.code < 0x800 -> {
+                    buf[count++] = (0xC0 or (c.code shr 6)).toByte()
+                    buf[count++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+                c.isHighSurrogate() && i < s.length && s[i].isLowSurrogate() -> {
+                    val codePoint = Character.toCodePoint(c, s[i++])
+                    buf[count++] = (0xF0 or (codePoint shr 18)).toByte()
+                    buf[count++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+                    buf[count++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+                    buf[count++] = (0x80 or (codePoint and 0x3F)).toByte()
+                }
+                // An unpaired surrogate can't be encoded, String.getBytes() replaces it with '?' as well
+                c.isSurrogate() -> buf[count++] = '?'.code.toByte()
+                else -> {
+                    buf[count++] = (0xE0 or (c.code shr 12)).toByte()
+                    buf[count++] = (0x80 or ((c.code shr 6) and 0x3F)).toByte()
+                    buf[count++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+            }
+        }
+        writeByte('"'.code)
+    }
+
+    private fun writeEscape(c: Char) {
+        buf[count++] = '\\'.code.toByte()
+        buf[count++] = c.code.toByte()
+    }
+
+    private fun writeLong(value: Long) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(value.toString()) // Can't be negated
+            return
+        }
+        ensureCapacity(MAX_LONG_DIGITS + 1)
+        var remaining = value
+        if (remaining < 0) {
+            buf[count++] = '-'.code.toByte()
+            remaining = -remaining
+        }
+        // Write the digits backwards, then reverse them
+        val start = count
+        do {
+            buf[count++] = ('0'.code + (remaining % 10).toInt()).toByte()
+            remaining /= 10
+        } while (remaining > 0)
+        buf.reverse(start, count)
+    }
+
+    /**
+     * Writes a string known to be ASCII without escaping it, eg: a number or the JSON around a value.
+     */
+    internal fun writeAscii(s: String) {
+        ensureCapacity(s.length)
+        for (c in s) {
+            buf[count++] = c.code.toByte()
+        }
+    }
+
+    private fun writeByte(b: Int) {
+        ensureCapacity(1)
+        buf[count++] = b.toByte()
+    }
+
+    private fun ensureCapacity(bytes: Int) {
+        if (count + bytes > buf.size) {
+            buf = buf.copyOf(maxOf(buf.size * 2, count + bytes))
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 4 * 1024
+        private const val MAX_RETAINED_CAPACITY = 256 * 1024
+        private const val MAX_BYTES_PER_CHAR = 6 // \u00XX
+        private const val MAX_LONG_DIGITS = 19
+        private val HEX_DIGITS = "0123456789abcdef".toByteArray()
+    }
+}
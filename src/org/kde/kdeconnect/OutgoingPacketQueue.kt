@@ -0,0 +1,210 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import org.kde.kdeconnect.Device.NetworkPacketWithCallback
+
+/**
+ * Packets waiting to be sent to a device. There is a FIFO lane for each [SendPriority], and they are
+ * drained in weighted turns: every lane that has packets gets to send up to its weight of them
+ * before any lane gets a second turn, highest priority first.
+ *
+ * Packets can be queued with a supersede key. If a packet of the same type and with the same key is
+ * still waiting, the new one takes its place in the queue instead of being appended, so only the
+ * latest state goes out (eg: while a volume slider is being dragged).
+ *
+ * The queue holds at most [maxPackets] packets and [maxBytes] bytes, as estimated by
+ * [estimateSize]. When it is full new packets are rejected, or wait for room if queued with
+ * [offerSuspending]. A packet bigger than [maxBytes] on its own is still accepted when the queue is
+ * empty, or it could never be sent. Superseding a packet is always accepted, since it doesn't make
+ * the queue longer.
+ */
+class OutgoingPacketQueue(
+    @Volatile var maxPackets: Int = DEFAULT_MAX_PACKETS,
+    @Volatile var maxBytes: Long = DEFAULT_MAX_BYTES,
+) {
+
+    sealed class OfferResult {
+        object Queued : OfferResult()
+        class Superseded(val item: NetworkPacketWithCallback) : OfferResult()
+        object Rejected : OfferResult()
+    }
+
+    private class Entry(var item: NetworkPacketWithCallback, var bytes: Long, val supersedeKey: SupersedeKey?)
+
+    private data class SupersedeKey(val packetType: String, val key: String)
+
+    private val lanes = Array(PRIORITIES.size) { ArrayDeque<Entry>() } // Guarded by this
+    private val credits = IntArray(PRIORITIES.size) // Guarded by this
+    private val entriesByKey = HashMap<SupersedeKey, Entry>() // Guarded by this
+
+    /** Signaled after a packet is added, so receive() can wait without holding the lock. */
+    private val available = Channel<Unit>(Channel.CONFLATED)
+
+    /** Incremented every time a packet leaves the queue, so offerSuspending() can wait for room. */
+    private val removedCount = MutableStateFlow(0L)
+
+    /**
+     * Number of packets dropped because a newer one with the same supersede key replaced them.
+     */
+    @Volatile
+    var supersededCount: Long = 0
+        private set
+
+    /**
+     * Number of packets not queued because the queue was full.
+     */
+    @Volatile
+    var rejectedCount: Long = 0
+        private set
+
+    /**
+     * Estimated memory used by the queued packets, see [estimateSize].
+     */
+    @Volatile
+    var bytes: Long = 0
+        private set
+
+    /** Most packets queued at once. */
+    @Volatile
+    var peakSize: Int = 0
+        private set
+
+    /** Most bytes queued at once. */
+    @Volatile
+    var peakBytes: Long = 0
+        private set
+
+    /**
+     * Queues a packet, unless the queue is full. If [supersedeKey] is not null and a packet of the
+     * same type with the same key is waiting, it is replaced (keeping its place and lane) and
+     * returned. The callback of the replaced packet is never called.
+     */
+    fun offer(item: NetworkPacketWithCallback, priority: SendPriority, supersedeKey: String? = null): OfferResult =
+        add(item, priority, supersedeKey, countRejected = true)
+
+    /**
+     * Like [offer], but if the queue is full it waits until there's room instead of rejecting the
+     * packet. Never returns [OfferResult.Rejected].
+     */
+    suspend fun offerSuspending(item: NetworkPacketWithCallback, priority: SendPriority, supersedeKey: String? = null): OfferResult {
+        while (true) {
+            val removed = removedCount.value
+            val result = add(item, priority, supersedeKey, countRejected = false)
+            if (result !== OfferResult.Rejected) {
+                return result
+            }
+            removedCount.first { it != removed }
+        }
+    }
+
+    private fun add(item: NetworkPacketWithCallback, priority: SendPriority, supersedeKey: String?, countRejected: Boolean): OfferResult {
+        val key = supersedeKey?.let { SupersedeKey(item.np.type, it) }
+        val itemBytes = estimateSize(item.np)
+        synchronized(this) {
+            val existing = key?.let { entriesByKey[it] }
+            if (existing != null) {
+                val superseded = existing.item
+                bytes += itemBytes - existing.bytes
+                existing.item = item
+                existing.bytes = itemBytes
+                peakBytes = maxOf(peakBytes, bytes)
+                supersededCount++
+                return OfferResult.Superseded(superseded)
+            }
+            val packets = lanes.sumOf { it.size }
+            if (packets > 0 && (packets >= maxPackets || bytes + itemBytes > maxBytes)) {
+                if (countRejected) {
+                    rejectedCount++
+                }
+                return OfferResult.Rejected
+            }
+            val entry = Entry(item, itemBytes, key)
+            lanes[priority.ordinal].addLast(entry)
+            bytes += itemBytes
+            if (key != null) {
+                entriesByKey[key] = entry
+            }
+            peakSize = maxOf(peakSize, packets + 1)
+            peakBytes = maxOf(peakBytes, bytes)
+        }
+        available.trySend(Unit)
+        return OfferResult.Queued
+    }
+
+    /**
+     * Takes the next packet to send, or returns null if the queue is empty.
+     */
+    fun poll(): NetworkPacketWithCallback? {
+        val item = synchronized(this) {
+            val entry = pollLocked() ?: return null
+            entry.supersedeKey?.let { entriesByKey.remove(it) }
+            bytes -= entry.bytes
+            entry.item
+        }
+        removedCount.update { it + 1 }
+        return item
+    }
+
+    private fun pollLocked(): Entry? {
+        if (lanes.all { it.isEmpty() }) {
+            return null
+        }
+        while (true) {
+            for (i in lanes.indices) {
+                if (lanes[i].isNotEmpty() && credits[i] > 0) {
+                    credits[i]--
+                    return lanes[i].removeFirst()
+                }
+            }
+            // Every lane with packets has used up its turn, start a new round
+            PRIORITIES.forEachIndexed { i, priority -> credits[i] = priority.weight }
+        }
+    }
+
+    /**
+     * Takes the next packet to send, waiting for one if the queue is empty.
+     */
+    suspend fun receive(): NetworkPacketWithCallback {
+        while (true) {
+            poll()?.let { return it }
+            available.receive()
+        }
+    }
+
+    val size: Int
+        get() = synchronized(this) { lanes.sumOf { it.size } }
+
+    fun sizeOf(priority: SendPriority): Int = synchronized(this) { lanes[priority.ordinal].size }
+
+    companion object {
+        const val DEFAULT_MAX_PACKETS = 2000
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        /**
+         * Rough size of a packet without its body nor its payload: the id, the type and the JSON
+         * around them, plus the objects that hold the packet.
+         */
+        private const val PACKET_OVERHEAD_BYTES = 256L
+
+        private val PRIORITIES = SendPriority.entries
+
+        /**
+         * Memory a queued packet holds on to: its body, see [NetworkPacket.estimateBodySize], and, if
+         * the payload is an in-memory buffer (eg: a notification icon or album art), the buffer.
+         * Payloads read from a stream only take memory once they are being sent, so they aren't counted.
+         *
+         * Called once per packet, when it's queued.
+         */
+        fun estimateSize(np: NetworkPacket): Long {
+            val payload = np.payload
+            return PACKET_OVERHEAD_BYTES + np.estimateBodySize() + if (payload != null && payload.isInMemory) payload.payloadSize else 0
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+import org.json.JSONException
+import java.io.ByteArrayOutputStream
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import kotlin.io.encoding.Base64
+import kotlin.io.encoding.ExperimentalEncodingApi
+
+/**
+ * Compression of big packet bodies, used when both ends support
+ * [org.kde.kdeconnect.Backends.LinkFeatures.COMPRESSED_BODIES].
+ *
+ * A compressed packet has an empty "body", and the real one in [DEFLATED_BODY_KEY] instead: its
+ * JSON in UTF-8, compressed in zlib format and encoded in base64, so packets are still one line of
+ * JSON and go through the links unchanged.
+ */
+@OptIn(ExperimentalEncodingApi::class)
+object PacketBodyCompression {
+    const val DEFLATED_BODY_KEY = "deflatedBody"
+
+    /**
+     * Bodies smaller than this aren't worth the CPU, and most packets are way smaller.
+     */
+    const val THRESHOLD_BYTES = 8 * 1024
+
+    /**
+     * A compressed body is only sent if, once in base64, it's at most this fraction of the original.
+     */
+    private const val MAX_RATIO = 0.6
+
+    private const val BUFFER_SIZE = 8 * 1024
+
+    /**
+     * Compresses a body serialized as UTF-8 JSON.
+     *
+     * @return the compressed body in base64, or null if it doesn't get small enough to be worth it
+     */
+    fun deflate(json: ByteArray, offset: Int, length: Int): ByteArray? {
+        // Speed matters more than the last few percent: text compresses well at any level
+        val deflater = Deflater(Deflater.BEST_SPEED)
+        try {
+            deflater.setInput(json, offset, length)
+            deflater.finish()
+            val maxLength = (length * MAX_RATIO).toInt()
+            val out = ByteArrayOutputStream(minOf(maxLength, BUFFER_SIZE))
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer))
+                if (base64Size(out.size()) > maxLength) {
+                    return null
+                }
+            }
+            return Base64.encodeToByteArray(out.toByteArray())
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun base64Size(bytes: Int): Int = (bytes + 2) / 3 * 4
+
+    /**
+     * Decompresses a body compressed by [deflate].
+     *
+     * @return the body as UTF-8 JSON
+     * @throws JSONException if it isn't valid or decompresses to more than maxLength bytes
+     */
+    @Throws(JSONException::class)
+    fun inflate(deflated: String, maxLength: Int): ByteArray {
+        val input = try {
+            Base64.decode(deflated)
+        } catch (e: IllegalArgumentException) {
+            throw JSONException("Invalid base64 in compressed body")
+        }
+        val inflater = Inflater()
+        try {
+            inflater.setInput(input)
+            val out = ByteArrayOutputStream(minOf(input.size * 4, maxLength))
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (!inflater.finished()) {
+                val inflated = inflater.inflate(buffer)
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw JSONException("Truncated compressed body")
+                }
+                out.write(buffer, 0, inflated)
+                if (out.size() > maxLength) {
+                    throw JSONException("Compressed body longer than $maxLength bytes")
+                }
+            }
+            return out.toByteArray()
+        } catch (e: DataFormatException) {
+            throw JSONException("Invalid compressed body: ${e.message}")
+        } finally {
+            inflater.end()
+        }
+    }
+}
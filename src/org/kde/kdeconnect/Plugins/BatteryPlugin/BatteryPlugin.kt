@@ -72,7 +72,17 @@ class BatteryPlugin : Plugin() {
                 batteryInfo["currentCharge"] = currentCharge
                 batteryInfo["isCharging"] = isCharging
                 batteryInfo["thresholdEvent"] = thresholdEvent
-                device.sendPacket(batteryInfo)
+                // A new packet each time, so one still queued doesn't change with the next update
+                val np = NetworkPacket(PACKET_TYPE_BATTERY).apply {
+                    this["currentCharge"] = currentCharge
+                    this["isCharging"] = isCharging
+                    this["thresholdEvent"] = thresholdEvent
+                }
+                if (thresholdEvent == THRESHOLD_EVENT_NONE) {
+                    device.sendPacket(np, SUPERSEDE_KEY)
+                } else {
+                    device.sendPacket(np) // Events must get through, the next state mustn't replace them
+                }
             }
         }
     }
@@ -115,6 +125,9 @@ class BatteryPlugin : Plugin() {
         private const val THRESHOLD_EVENT_NONE = 0
         private const val THRESHOLD_EVENT_BATTERY_LOW = 1
 
+        // Only the latest battery state is worth sending, unless it comes with a threshold event
+        private const val SUPERSEDE_KEY = "state"
+
         fun isLowBattery(info: DeviceBatteryInfo): Boolean {
             return info.thresholdEvent == THRESHOLD_EVENT_BATTERY_LOW
         }
@@ -22,6 +22,7 @@ import org.kde.kdeconnect.Helpers.ContactsHelper.uID;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect.Plugins.PluginFactory;
+import org.kde.kdeconnect.SendPriority;
 import org.kde.kdeconnect.UserInterface.AlertDialogFragment;
 import com.zorinos.zorin_connect.R;
 
@@ -91,6 +92,14 @@ public class ContactsPlugin extends Plugin {
         };
     }
 
+    @Override
+    public @NonNull Map<String, SendPriority> getOutgoingPacketPriorities() {
+        Map<String, SendPriority> priorities = new HashMap<>();
+        priorities.put(PACKET_TYPE_CONTACTS_RESPONSE_UIDS_TIMESTAMPS, SendPriority.BULK);
+        priorities.put(PACKET_TYPE_CONTACTS_RESPONSE_VCARDS, SendPriority.BULK);
+        return priorities;
+    }
+
     @Override
     protected int getPermissionExplanation() {
         return R.string.contacts_permission_explanation;
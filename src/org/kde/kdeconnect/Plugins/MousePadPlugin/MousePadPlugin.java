@@ -16,9 +16,13 @@ import androidx.annotation.NonNull;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect.Plugins.PluginFactory;
+import org.kde.kdeconnect.SendPriority;
 import org.kde.kdeconnect.UserInterface.PluginSettingsFragment;
 import com.zorinos.zorin_connect.R;
 
+import java.util.Collections;
+import java.util.Map;
+
 @PluginFactory.LoadablePlugin
 public class MousePadPlugin extends Plugin {
 
@@ -83,6 +87,11 @@ public class MousePadPlugin extends Plugin {
         return new String[]{PACKET_TYPE_MOUSEPAD_REQUEST};
     }
 
+    @Override
+    public @NonNull Map<String, SendPriority> getOutgoingPacketPriorities() {
+        return Collections.singletonMap(PACKET_TYPE_MOUSEPAD_REQUEST, SendPriority.INTERACTIVE);
+    }
+
     @Override
     public @NonNull String getActionName() {
         return context.getString(R.string.open_mousepad);
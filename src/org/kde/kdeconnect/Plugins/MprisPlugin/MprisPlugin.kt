@@ -157,13 +157,13 @@ class MprisPlugin : Plugin() {
 
         fun sendSetVolume(volume: Int) {
             if (isSetVolumeAllowed) {
-                sendCommand(playerName, "setVolume", volume)
+                sendCommand(playerName, "setVolume", volume, supersede = true)
             }
         }
 
         fun sendSetPosition(position: Int) {
             if (isSeekAllowed) {
-                sendCommand(playerName, "SetPosition", position)
+                sendCommand(playerName, "SetPosition", position, supersede = true)
 
                 lastPosition = position.toLong()
                 lastPositionTime = System.currentTimeMillis()
@@ -230,12 +230,20 @@ class MprisPlugin : Plugin() {
         device.sendPacket(np)
     }
 
-    private fun sendCommand(player: String, method: String, value: Int) {
+    /**
+     * @param supersede whether the command can replace a previous one with the same method that
+     * hasn't been sent yet. Only for absolute values: relative ones like Seek have to add up.
+     */
+    private fun sendCommand(player: String, method: String, value: Int, supersede: Boolean = false) {
         val np = NetworkPacket(PACKET_TYPE_MPRIS_REQUEST).apply {
             this["player"] = player
             this[method] = value
         }
-        device.sendPacket(np)
+        if (supersede) {
+            device.sendPacket(np, "$method:$player")
+        } else {
+            device.sendPacket(np)
+        }
     }
 
     override fun onPacketReceived(np: NetworkPacket): Boolean {
@@ -290,7 +290,7 @@ public class MprisReceiverPlugin extends Plugin {
         } else {
             Log.v(TAG, "Sending metadata without url ");
         }
-        getDevice().sendPacket(np);
+        getDevice().sendPacket(np, "metadata:" + player.getName());
     }
 
     @Override
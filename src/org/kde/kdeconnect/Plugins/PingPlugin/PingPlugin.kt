@@ -35,6 +35,8 @@ class PingPlugin : Plugin() {
     override val description: String
         get() = context.resources.getString(R.string.pref_plugin_ping_desc)
 
+    override val handlesPacketsConcurrently: Boolean = true
+
     override fun onPacketReceived(np: NetworkPacket): Boolean {
         if (np.type != PACKET_TYPE_PING) {
             Log.e(LOG_TAG, "Ping plugin should not receive packets other than pings!")
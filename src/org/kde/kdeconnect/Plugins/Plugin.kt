@@ -18,6 +18,7 @@ import androidx.fragment.app.DialogFragment
 import org.apache.commons.lang3.ArrayUtils
 import org.kde.kdeconnect.Device
 import org.kde.kdeconnect.NetworkPacket
+import org.kde.kdeconnect.SendPriority
 import org.kde.kdeconnect.UserInterface.AlertDialogFragment
 import org.kde.kdeconnect.UserInterface.MainActivity
 import org.kde.kdeconnect.UserInterface.PermissionsAlertDialogFragment
@@ -196,6 +197,13 @@ abstract class Plugin {
         return false
     }
 
+    /**
+     * Packets are passed to [onPacketReceived] in a background thread, one at a time and in the
+     * order they were received, without waiting for other plugins. Return true if your plugin can
+     * handle several packets at once, so a slow packet doesn't delay the next ones.
+     */
+    open val handlesPacketsConcurrently: Boolean = false
+
     /**
      * Should return the list of NetworkPacket types that this plugin can handle
      */
@@ -206,6 +214,14 @@ abstract class Plugin {
      */
     abstract val outgoingPacketTypes: Array<String>
 
+    /**
+     * Lane of the send queue used by default for the packet types this plugin sends. Types not
+     * listed here use [SendPriority.NORMAL]. A single packet can still be sent through a different
+     * lane by passing it to [Device.sendPacket].
+     */
+    open val outgoingPacketPriorities: Map<String, SendPriority>
+        get() = emptyMap()
+
     protected open val requiredPermissions: Array<String>
         /**
          * Should return the list of permissions from Manifest.permission.* that, if not present,
@@ -9,11 +9,13 @@ import android.content.Context
 import android.util.Log
 import androidx.annotation.DrawableRes
 import org.kde.kdeconnect.Device
+import org.kde.kdeconnect.SendPriority
 
 object PluginFactory {
     annotation class LoadablePlugin  //Annotate plugins with this so PluginFactory finds them
 
     private var pluginInfo: Map<String, PluginInfo> = mapOf()
+    private var sendPriorities: Map<String, SendPriority> = mapOf()
 
     fun initPluginInfo(context: Context) {
         try {
@@ -22,6 +24,11 @@ object PluginFactory {
                 .map { plugin -> plugin.apply { setContext(context, null) } }
 
             pluginInfo = plugins.associate { plugin -> Pair(plugin.pluginKey, PluginInfo(plugin)) }
+            // If several plugins send the same type, the most urgent priority wins
+            sendPriorities = pluginInfo.values
+                .flatMap { it.outgoingPacketPriorities.entries }
+                .groupBy({ it.key }, { it.value })
+                .mapValues { (_, priorities) -> priorities.min() }
         } catch (e: Exception) {
             throw RuntimeException(e)
         }
@@ -35,6 +42,9 @@ object PluginFactory {
     val outgoingCapabilities: Set<String>
         get() = pluginInfo.values.flatMap { plugin -> plugin.outgoingPacketTypes }.toSet()
 
+    @JvmStatic
+    fun getSendPriority(packetType: String): SendPriority = sendPriorities[packetType] ?: SendPriority.NORMAL
+
     @JvmStatic
     fun getPluginInfo(pluginKey: String): PluginInfo = pluginInfo[pluginKey]!!
 
@@ -78,12 +88,13 @@ object PluginFactory {
         val listenToUnpaired: Boolean,
         supportedPacketTypes: Array<String>,
         outgoingPacketTypes: Array<String>,
+        val outgoingPacketPriorities: Map<String, SendPriority>,
         val instantiableClass: Class<out Plugin>,
     ) {
         internal constructor(p: Plugin) : this(p.displayName, p.description, p.icon,
             p.isEnabledByDefault, p.hasSettings(), p.supportsDeviceSpecificSettings(),
             p.listensToUnpairedDevices(), p.supportedPacketTypes,
-            p.outgoingPacketTypes, p.javaClass)
+            p.outgoingPacketTypes, p.outgoingPacketPriorities, p.javaClass)
 
         val supportedPacketTypes: Set<String> = supportedPacketTypes.toSet()
         val outgoingPacketTypes: Set<String> = outgoingPacketTypes.toSet()
@@ -22,8 +22,12 @@ import org.kde.kdeconnect.DeviceType;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect.Plugins.PluginFactory;
+import org.kde.kdeconnect.SendPriority;
 import com.zorinos.zorin_connect.R;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @PluginFactory.LoadablePlugin
 public class PresenterPlugin extends Plugin {
 
@@ -79,6 +83,14 @@ public class PresenterPlugin extends Plugin {
         return new String[]{PACKET_TYPE_MOUSEPAD_REQUEST, PACKET_TYPE_PRESENTER};
     }
 
+    @Override
+    public @NonNull Map<String, SendPriority> getOutgoingPacketPriorities() {
+        Map<String, SendPriority> priorities = new HashMap<>();
+        priorities.put(PACKET_TYPE_MOUSEPAD_REQUEST, SendPriority.INTERACTIVE);
+        priorities.put(PACKET_TYPE_PRESENTER, SendPriority.INTERACTIVE);
+        return priorities;
+    }
+
     @Override
     public @NonNull String getActionName() {
         return context.getString(R.string.pref_plugin_presenter);
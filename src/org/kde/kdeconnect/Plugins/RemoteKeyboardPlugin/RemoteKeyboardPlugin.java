@@ -30,6 +30,7 @@ import androidx.fragment.app.DialogFragment;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect.Plugins.PluginFactory;
+import org.kde.kdeconnect.SendPriority;
 import org.kde.kdeconnect.UserInterface.MainActivity;
 import org.kde.kdeconnect.UserInterface.PluginSettingsFragment;
 import org.kde.kdeconnect.UserInterface.StartActivityAlertDialogFragment;
@@ -38,6 +39,8 @@ import com.zorinos.zorin_connect.R;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.Collections;
+import java.util.Map;
 
 @PluginFactory.LoadablePlugin
 public class RemoteKeyboardPlugin extends Plugin implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -180,6 +183,11 @@ public class RemoteKeyboardPlugin extends Plugin implements SharedPreferences.On
         return new String[]{PACKET_TYPE_MOUSEPAD_ECHO, PACKET_TYPE_MOUSEPAD_KEYBOARDSTATE};
     }
 
+    @Override
+    public @NonNull Map<String, SendPriority> getOutgoingPacketPriorities() {
+        return Collections.singletonMap(PACKET_TYPE_MOUSEPAD_ECHO, SendPriority.INTERACTIVE);
+    }
+
     private boolean isValidSpecialKey(int key) {
         return (specialKeyMap.get(key, 0) > 0);
     }
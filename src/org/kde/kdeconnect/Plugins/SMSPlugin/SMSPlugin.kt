@@ -30,6 +30,8 @@ import androidx.annotation.WorkerThread
 import androidx.core.content.ContextCompat
 import com.klinker.android.logger.Log
 import com.klinker.android.send_message.Transaction
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
 import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
@@ -51,6 +53,7 @@ import org.kde.kdeconnect.Plugins.PluginFactory.LoadablePlugin
 import org.kde.kdeconnect.Plugins.SMSPlugin.SmsMmsUtils.partIdToMessageAttachmentPacket
 import org.kde.kdeconnect.Plugins.SMSPlugin.SmsMmsUtils.sendMessage
 import org.kde.kdeconnect.Plugins.TelephonyPlugin.TelephonyPlugin
+import org.kde.kdeconnect.SendPriority
 import org.kde.kdeconnect.UserInterface.PluginSettingsFragment
 import com.zorinos.zorin_connect.BuildConfig
 import com.zorinos.zorin_connect.R
@@ -330,7 +333,17 @@ class SMSPlugin : Plugin() {
         while (conversations.hasNext()) {
             val message: SMSHelper.Message = conversations.next()
             val partialReply: NetworkPacket = constructBulkMessagePacket(setOf(message))
-            device.sendPacket(partialReply)
+            // Wait for room in the send queue instead of piling up every conversation in memory, but
+            // not forever: if the queue doesn't drain the other end won't get them anyway
+            val queued = runBlocking {
+                withTimeoutOrNull(SEND_QUEUE_TIMEOUT_MILLIS) {
+                    device.sendPacketSuspending(partialReply, priority = SendPriority.BULK)
+                }
+            }
+            if (queued == null) {
+                Log.w("SMSPlugin", "Send queue not draining, not sending the rest of the conversations")
+                return true
+            }
         }
 
         return true
@@ -356,7 +369,7 @@ class SMSPlugin : Plugin() {
 
         val reply: NetworkPacket = constructBulkMessagePacket(conversation)
 
-        device.sendPacket(reply)
+        device.sendPacket(reply, SendPriority.BULK)
 
         return true
     }
@@ -535,6 +548,11 @@ class SMSPlugin : Plugin() {
 
         private const val KEY_PREF_BLOCKED_NUMBERS: String = "telephony_blocked_numbers"
 
+        /**
+         * How long to wait for room in the send queue before giving up on sending all conversations
+         */
+        private const val SEND_QUEUE_TIMEOUT_MILLIS: Long = 30 * 1000
+
         /**
          * Construct a proper packet of [PACKET_TYPE_SMS_MESSAGE] from the passed messages
          *
@@ -20,6 +20,7 @@ import androidx.documentfile.provider.DocumentFile;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.kde.kdeconnect.Backends.LinkFeatures;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.Helpers.FilesHelper;
 import org.kde.kdeconnect.Helpers.MediaStoreHelper;
@@ -52,15 +53,25 @@ import java.util.List;
  * <p>
  *     The I/O-part of this file reading is handled by {@link #receiveFile(InputStream, OutputStream)}.
  * </p>
+ * <p>
+ *     If the connection drops while receiving a file that has a transfer id, from a device that can
+ *     resume transfers, the partial file is kept so the rest can be appended to it later, see
+ *     {@link ResumableTransfers}. Those files are written with a {@link #PARTIAL_FILE_SUFFIX} and
+ *     renamed once complete, so a partial file isn't mistaken for the real one.
+ * </p>
  *
  * @see CompositeUploadFileJob
  */
 public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
     private final ReceiveNotification receiveNotification;
+    private final ResumableTransfers resumableTransfers;
     private NetworkPacket currentNetworkPacket;
     private String currentFileName;
     private int currentFileNum;
     private long totalReceived;
+    private long currentFileReceived;
     private long lastProgressTimeMillis;
     private long prevProgressPercentage;
 
@@ -73,9 +84,10 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
     private long totalPayloadSize;
     private boolean isRunning;
 
-    CompositeReceiveFileJob(Device device, BackgroundJob.Callback<Void> callBack) {
+    CompositeReceiveFileJob(Device device, ResumableTransfers resumableTransfers, BackgroundJob.Callback<Void> callBack) {
         super(device, callBack);
 
+        this.resumableTransfers = resumableTransfers;
         lock = new Object();
         networkPacketList = new ArrayList<>();
         receiveNotification = new ReceiveNotification(device, getId());
@@ -140,23 +152,55 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
 
                 setProgress((int)prevProgressPercentage);
 
-                fileDocument = getDocumentFileFor(currentFileName, currentNetworkPacket.getBoolean("open", false));
+                // Other devices won't resume the transfer, so its id doesn't matter
+                String transferId = canResumeTransfers() ? currentNetworkPacket.getStringOrNull(ResumableTransfers.KEY_TRANSFER_ID) : null;
+                long resumeOffset = currentNetworkPacket.getLong(ResumableTransfers.KEY_RESUME_OFFSET, 0);
+                long fileSize = resumeOffset + currentNetworkPacket.getPayloadSize();
+
+                if (resumeOffset > 0) {
+                    fileDocument = getPartialDocumentFor(transferId, resumeOffset, fileSize);
+                } else {
+                    fileDocument = getDocumentFileFor(currentFileName, currentNetworkPacket.getBoolean("open", false), transferId != null && currentNetworkPacket.hasPayload());
+                }
 
                 if (currentNetworkPacket.hasPayload()) {
-                    outputStream = new BufferedOutputStream(getDevice().getContext().getContentResolver().openOutputStream(fileDocument.getUri()));
+                    // When resuming, append to what we received before the connection dropped
+                    String mode = resumeOffset > 0 ? "wa" : "w";
+                    outputStream = new BufferedOutputStream(getDevice().getContext().getContentResolver().openOutputStream(fileDocument.getUri(), mode));
                     InputStream inputStream = currentNetworkPacket.getPayload().getInputStream();
 
-                    long received = receiveFile(inputStream, outputStream);
+                    IOException receiveError = null;
+                    try {
+                        receiveFile(inputStream, outputStream);
+                    } catch (IOException e) {
+                        receiveError = e;
+                    }
+                    long received = resumeOffset + currentFileReceived;
 
                     currentNetworkPacket.getPayload().close();
-
-                    if ( received != currentNetworkPacket.getPayloadSize()) {
-                        fileDocument.delete();
+                    // Close it now, so what we received is there if we have to resume
+                    IOUtils.close(outputStream);
+                    outputStream = null;
+
+                    // All the bytes but an error means they didn't match the payload digest
+                    if (received != fileSize || receiveError != null) {
+                        if (transferId != null && received != fileSize && !isCancelled()) {
+                            resumableTransfers.putIncoming(new ResumableTransfers.Incoming(transferId, fileDocument.getUri(), received, fileSize));
+                        } else {
+                            fileDocument.delete();
+                            if (transferId != null) {
+                                resumableTransfers.removeIncoming(transferId, false);
+                            }
+                        }
 
                         if (!isCancelled()) {
-                            throw new RuntimeException("Failed to receive: " + currentFileName + " received:" + received + " bytes, expected: " + currentNetworkPacket.getPayloadSize() + " bytes");
+                            throw new RuntimeException("Failed to receive: " + currentFileName + " received:" + received + " bytes, expected: " + fileSize + " bytes", receiveError);
                         }
                     } else {
+                        if (transferId != null) {
+                            resumableTransfers.removeIncoming(transferId, false);
+                            completeFile(fileDocument);
+                        }
                         publishFile(fileDocument, received);
                     }
                 } else {
@@ -254,7 +298,7 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
         }
     }
 
-    private DocumentFile getDocumentFileFor(final String filename, final boolean open) throws RuntimeException {
+    private DocumentFile getDocumentFileFor(final String filename, final boolean open, final boolean partial) throws RuntimeException {
         final DocumentFile destinationFolderDocument;
 
         String filenameToUse = filename;
@@ -276,6 +320,12 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
             displayName = filenameToUse;
         }
 
+        if (partial) {
+            // Renamed to the real name, extension included, by completeFile()
+            mimeType = "application/octet-stream";
+            displayName = filenameToUse + PARTIAL_FILE_SUFFIX;
+        }
+
         DocumentFile fileDocument = destinationFolderDocument.createFile(mimeType, displayName);
 
         if (fileDocument == null) {
@@ -285,17 +335,59 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
         return fileDocument;
     }
 
+    /**
+     * Gives a file created by getDocumentFileFor() as partial its real name, now that it's complete.
+     */
+    private void completeFile(DocumentFile fileDocument) throws RuntimeException {
+        String filename = currentFileName;
+        if ("file".equals(fileDocument.getUri().getScheme())) {
+            // The name could have been taken while receiving it
+            File parent = new File(fileDocument.getUri().getPath()).getParentFile();
+            filename = FilesHelper.findNonExistingNameForNewFile(parent.getAbsolutePath(), filename);
+        }
+        if (!fileDocument.renameTo(filename)) {
+            throw new RuntimeException(getDevice().getContext().getString(R.string.cannot_create_file, filename));
+        }
+    }
+
+    private boolean canResumeTransfers() {
+        return LinkFeatures.isEnabled(getDevice().getDeviceInfo(), LinkFeatures.RESUMABLE_TRANSFERS);
+    }
+
+    /**
+     * Partially received file to resume, as recorded when its transfer failed.
+     */
+    private DocumentFile getPartialDocumentFor(final String transferId, final long offset, final long size) throws RuntimeException {
+        ResumableTransfers.Incoming partial = transferId != null ? resumableTransfers.getIncoming(transferId) : null;
+        DocumentFile fileDocument = partial != null ? ResumableTransfers.documentFor(getDevice().getContext(), partial.uri) : null;
+
+        if (fileDocument == null || !fileDocument.exists() || partial.received != offset || partial.size != size) {
+            if (partial != null) {
+                resumableTransfers.removeIncoming(transferId, true);
+            }
+            throw new RuntimeException("Can't resume " + currentFileName + " from byte " + offset);
+        }
+
+        return fileDocument;
+    }
+
+    /**
+     * Copies the payload to the file. The bytes copied so far are in {@link #currentFileReceived},
+     * also if it throws.
+     */
     private long receiveFile(InputStream input, OutputStream output) throws IOException {
         byte[] data = new byte[4096];
         int count;
         long received = 0;
+        currentFileReceived = 0;
 
         while ((count = input.read(data)) >= 0 && !isCancelled()) {
+            output.write(data, 0, count);
+
             received += count;
+            currentFileReceived = received;
             totalReceived += count;
 
-            output.write(data, 0, count);
-
             long progressPercentage;
             synchronized (lock) {
                 progressPercentage = (totalReceived * 100 / totalPayloadSize);
@@ -48,6 +48,7 @@ public class CompositeUploadFileJob extends BackgroundJob<Device, Void> {
     private long totalSend;
     private int prevProgressPercentage;
     private final UploadNotification uploadNotification;
+    private final ResumableTransfers resumableTransfers;
 
     private final Object lock;                              //Use to protect concurrent access to the variables below
     @GuardedBy("lock")
@@ -59,9 +60,10 @@ public class CompositeUploadFileJob extends BackgroundJob<Device, Void> {
     @GuardedBy("lock")
     private long totalPayloadSize;
 
-    CompositeUploadFileJob(@NonNull Device device, @NonNull Callback<Void> callback) {
+    CompositeUploadFileJob(@NonNull Device device, @NonNull ResumableTransfers resumableTransfers, @NonNull Callback<Void> callback) {
         super(device, callback);
 
+        this.resumableTransfers = resumableTransfers;
         isRunning = false;
         handler = new Handler(Looper.getMainLooper());
         currentFileNum = 0;
@@ -109,6 +111,8 @@ public class CompositeUploadFileJob extends BackgroundJob<Device, Void> {
                 if (!getDevice().sendPacketBlocking(currentNetworkPacket, sendPacketStatusCallback, true)) {
                     throw new RuntimeException("Sending packet failed");
                 }
+                // Sent completely, there's nothing left to resume
+                forgetTransfer(currentNetworkPacket);
 
                 synchronized (lock) {
                     done = networkPacketList.isEmpty();
@@ -116,6 +120,10 @@ public class CompositeUploadFileJob extends BackgroundJob<Device, Void> {
             }
 
             if (isCancelled()) {
+                // The other end would otherwise ask to resume it
+                if (currentNetworkPacket != null) {
+                    forgetTransfer(currentNetworkPacket);
+                }
                 uploadNotification.cancel();
             } else {
                 uploadNotification.setFinished(getDevice().getContext().getResources().getQuantityString(R.plurals.sent_files_title, currentFileNum, getDevice().getName(), currentFileNum));
@@ -139,11 +147,20 @@ public class CompositeUploadFileJob extends BackgroundJob<Device, Void> {
 
             for (NetworkPacket networkPacket : networkPacketList) {
                 networkPacket.getPayload().close();
+                // Never started, so there's nothing to resume
+                forgetTransfer(networkPacket);
             }
             networkPacketList.clear();
         }
     }
 
+    private void forgetTransfer(NetworkPacket networkPacket) {
+        String transferId = networkPacket.getStringOrNull(ResumableTransfers.KEY_TRANSFER_ID);
+        if (transferId != null) {
+            resumableTransfers.removeOutgoing(transferId);
+        }
+    }
+
     private void addTotalsToNetworkPacket(NetworkPacket networkPacket) {
         synchronized (lock) {
             networkPacket.set(SharePlugin.KEY_NUMBER_OF_FILES, totalNumFiles);
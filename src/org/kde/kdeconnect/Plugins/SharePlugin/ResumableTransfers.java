@@ -0,0 +1,297 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Plugins.SharePlugin;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps track of the file transfers with a device that can be resumed if the connection drops midway.
+ *
+ * <p>
+ *     Files sent with a known size get a {@link #KEY_TRANSFER_ID}. If receiving one fails, the receiver
+ *     keeps the partial file, and once the device is reachable again it asks for the rest with a
+ *     {@link SharePlugin#PACKET_TYPE_SHARE_RESUME} packet containing the id and how many bytes it has.
+ *     The sender then sends the file again starting from there, with {@link #KEY_RESUME_OFFSET} set,
+ *     or replies with {@link #KEY_ABORT} if it can't.
+ * </p>
+ * <p>
+ *     Both ends store what they need in SharedPreferences, since plugins are reloaded when the device
+ *     reconnects. Transfers that haven't been resumed after {@link #MAX_AGE_MILLIS} are forgotten.
+ *     The sender keeps a persistable permission to read the file until then, files it can't keep
+ *     reading aren't sent with a transfer id.
+ * </p>
+ * <p>
+ *     Only used with devices that list {@link org.kde.kdeconnect.Backends.LinkFeatures#RESUMABLE_TRANSFERS}.
+ * </p>
+ */
+class ResumableTransfers {
+    static final String KEY_TRANSFER_ID = "transferId";
+    static final String KEY_RESUME_OFFSET = "resumeOffset";
+    static final String KEY_OFFSET = "offset";
+    static final String KEY_ABORT = "abort";
+
+    private static final String PREFERENCES_NAME = "share_resumable_transfers";
+    private static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final String INCOMING = "in";
+    private static final String OUTGOING = "out";
+
+    /**
+     * A file partially received.
+     */
+    static class Incoming {
+        final String transferId;
+        final Uri uri;
+        final long received;
+        final long size;
+
+        Incoming(String transferId, Uri uri, long received, long size) {
+            this.transferId = transferId;
+            this.uri = uri;
+            this.received = received;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file being sent, or that was.
+     */
+    static class Outgoing {
+        final String transferId;
+        final Uri uri;
+        final long size;
+
+        Outgoing(String transferId, Uri uri, long size) {
+            this.transferId = transferId;
+            this.uri = uri;
+            this.size = size;
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final String deviceId;
+
+    ResumableTransfers(@NonNull Context context, @NonNull String deviceId) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.deviceId = deviceId;
+    }
+
+    static String newTransferId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * The document of a partially received file, to append to it.
+     */
+    static DocumentFile documentFor(Context context, Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            return DocumentFile.fromFile(new File(uri.getPath()));
+        }
+        return DocumentFile.fromSingleUri(context, uri);
+    }
+
+    /**
+     * Remembers a file being sent, keeping the permission to read it so it can be sent again.
+     *
+     * @return false if the file can't be read after the app that shared it is gone, so the
+     * transfer can't be resumed and isn't remembered
+     */
+    boolean putOutgoing(@NonNull Outgoing transfer) {
+        if (!"file".equals(transfer.uri.getScheme())) {
+            try {
+                context.getContentResolver().takePersistableUriPermission(transfer.uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.d("SharePlugin", "Can't keep access to " + transfer.uri + ", it won't be resumable");
+                return false;
+            }
+        }
+        JSONObject json = new JSONObject();
+        try {
+            json.put("uri", transfer.uri.toString());
+            json.put("size", transfer.size);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        put(OUTGOING, transfer.transferId, json);
+        return true;
+    }
+
+    @Nullable
+    Outgoing getOutgoing(@NonNull String transferId) {
+        JSONObject json = get(OUTGOING, transferId);
+        if (json == null) {
+            return null;
+        }
+        return new Outgoing(transferId, Uri.parse(json.optString("uri")), json.optLong("size"));
+    }
+
+    void removeOutgoing(@NonNull String transferId) {
+        Outgoing transfer = getOutgoing(transferId);
+        preferences.edit().remove(key(OUTGOING, transferId)).apply();
+        if (transfer != null && !"file".equals(transfer.uri.getScheme()) && !isOutgoing(transfer.uri)) {
+            try {
+                context.getContentResolver().releasePersistableUriPermission(transfer.uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w("SharePlugin", "Failed to release the permission for " + transfer.uri);
+            }
+        }
+    }
+
+    /**
+     * Whether the file is still being sent in another transfer, with any device.
+     */
+    private boolean isOutgoing(Uri uri) {
+        String infix = "/" + OUTGOING + "/";
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().contains(infix) && entry.getValue() instanceof String) {
+                try {
+                    if (uri.toString().equals(new JSONObject((String) entry.getValue()).optString("uri"))) {
+                        return true;
+                    }
+                } catch (JSONException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    void putIncoming(@NonNull Incoming transfer) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("uri", transfer.uri.toString());
+            json.put("received", transfer.received);
+            json.put("size", transfer.size);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        put(INCOMING, transfer.transferId, json);
+    }
+
+    @Nullable
+    Incoming getIncoming(@NonNull String transferId) {
+        JSONObject json = get(INCOMING, transferId);
+        if (json == null) {
+            return null;
+        }
+        return new Incoming(transferId, Uri.parse(json.optString("uri")), json.optLong("received"), json.optLong("size"));
+    }
+
+    @NonNull
+    List<Incoming> getAllIncoming() {
+        List<Incoming> transfers = new ArrayList<>();
+        String prefix = key(INCOMING, "");
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                Incoming transfer = getIncoming(key.substring(prefix.length()));
+                if (transfer != null) {
+                    transfers.add(transfer);
+                }
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Forgets a partially received file, and deletes it unless it was completed.
+     */
+    void removeIncoming(@NonNull String transferId, boolean deleteFile) {
+        Incoming transfer = getIncoming(transferId);
+        preferences.edit().remove(key(INCOMING, transferId)).apply();
+        if (transfer != null && deleteFile) {
+            DocumentFile document = documentFor(context, transfer.uri);
+            if (document != null && !document.delete()) {
+                Log.w("SharePlugin", "Failed to delete partial file " + transfer.uri);
+            }
+        }
+    }
+
+    /**
+     * Forgets the transfers too old to be resumed, deleting the partial files.
+     */
+    void removeExpired() {
+        long now = System.currentTimeMillis();
+        String prefix = deviceId + "/";
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            long created;
+            try {
+                created = new JSONObject((String) entry.getValue()).optLong("created");
+            } catch (JSONException e) {
+                created = 0;
+            }
+            if (now - created > MAX_AGE_MILLIS) {
+                String[] parts = key.split("/", 3);
+                if (INCOMING.equals(parts[1])) {
+                    removeIncoming(parts[2], true);
+                } else {
+                    removeOutgoing(parts[2]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all the transfers with the device, deleting the partial files.
+     */
+    void removeAll() {
+        for (Incoming transfer : getAllIncoming()) {
+            removeIncoming(transfer.transferId, true);
+        }
+        String prefix = key(OUTGOING, "");
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                removeOutgoing(key.substring(prefix.length()));
+            }
+        }
+    }
+
+    private void put(String direction, String transferId, JSONObject json) {
+        try {
+            json.put("created", System.currentTimeMillis());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        preferences.edit().putString(key(direction, transferId), json.toString()).apply();
+    }
+
+    @Nullable
+    private JSONObject get(String direction, String transferId) {
+        String value = preferences.getString(key(direction, transferId), null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(value);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private String key(String direction, String transferId) {
+        return deviceId + "/" + direction + "/" + transferId;
+    }
+}
@@ -31,8 +31,10 @@ import androidx.core.content.pm.ShortcutManagerCompat;
 import androidx.core.graphics.drawable.IconCompat;
 import androidx.preference.PreferenceManager;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.kde.kdeconnect.Backends.LinkFeatures;
 import org.kde.kdeconnect.Helpers.FilesHelper;
 import org.kde.kdeconnect.Helpers.IntentHelper;
 import org.kde.kdeconnect.NetworkPacket;
@@ -44,6 +46,8 @@ import org.kde.kdeconnect.async.BackgroundJob;
 import org.kde.kdeconnect.async.BackgroundJobHandler;
 import com.zorinos.zorin_connect.R;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -67,6 +71,7 @@ public class SharePlugin extends Plugin {
 
     private final static String PACKET_TYPE_SHARE_REQUEST = "kdeconnect.share.request";
     final static String PACKET_TYPE_SHARE_REQUEST_UPDATE = "kdeconnect.share.request.update";
+    final static String PACKET_TYPE_SHARE_RESUME = "kdeconnect.share.resume";
 
     final static String KEY_NUMBER_OF_FILES = "numberOfFiles";
     final static String KEY_TOTAL_PAYLOAD_SIZE = "totalPayloadSize";
@@ -80,6 +85,7 @@ public class SharePlugin extends Plugin {
 
     public static final String KEY_UNREACHABLE_URL_LIST = "key_unreachable_url_list";
     private SharedPreferences mSharedPrefs;
+    private ResumableTransfers resumableTransfers;
 
     public SharePlugin() {
         backgroundJobHandler = BackgroundJobHandler.newFixedThreadPoolBackgroundJobHandler(5);
@@ -91,9 +97,12 @@ public class SharePlugin extends Plugin {
     public boolean onCreate() {
         super.onCreate();
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        resumableTransfers = new ResumableTransfers(context, device.getDeviceId());
         createOrUpdateDynamicShortcut(null);
         // Deliver URLs previously shared to this device now that it's connected
         deliverPreviouslySentIntents();
+        // Same for the files we were receiving when the connection dropped
+        requestResumes();
         return true;
     }
 
@@ -162,6 +171,20 @@ public class SharePlugin extends Plugin {
         }
     }
 
+    private void requestResumes() {
+        resumableTransfers.removeExpired();
+        if (!canResumeTransfers()) {
+            return;
+        }
+        for (ResumableTransfers.Incoming transfer : resumableTransfers.getAllIncoming()) {
+            Log.i("SharePlugin", "Requesting to resume transfer " + transfer.transferId + " from byte " + transfer.received);
+            NetworkPacket np = new NetworkPacket(PACKET_TYPE_SHARE_RESUME);
+            np.set(ResumableTransfers.KEY_TRANSFER_ID, transfer.transferId);
+            np.set(ResumableTransfers.KEY_OFFSET, transfer.received);
+            device.sendPacket(np);
+        }
+    }
+
     @Override
     protected int getOptionalPermissionExplanation() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -222,6 +245,11 @@ public class SharePlugin extends Plugin {
                 return true;
             }
 
+            if (np.getType().equals(PACKET_TYPE_SHARE_RESUME)) {
+                onResumeRequested(np);
+                return true;
+            }
+
             if (np.has("filename")) {
                 receiveFile(np);
             } else if (np.has("text")) {
@@ -269,7 +297,7 @@ public class SharePlugin extends Plugin {
         if (hasNumberOfFiles && !isOpen && receiveFileJob != null) {
             job = receiveFileJob;
         } else {
-            job = new CompositeReceiveFileJob(getDevice(), receiveFileJobCallback);
+            job = new CompositeReceiveFileJob(getDevice(), resumableTransfers, receiveFileJobCallback);
         }
 
         if (!hasNumberOfFiles) {
@@ -293,29 +321,93 @@ public class SharePlugin extends Plugin {
     }
 
     void sendUriList(final ArrayList<Uri> uriList) {
-        CompositeUploadFileJob job;
-
-        if (uploadFileJob == null) {
-            job = new CompositeUploadFileJob(getDevice(), this.receiveFileJobCallback);
-        } else {
-            job = uploadFileJob;
-        }
+        List<NetworkPacket> packets = new ArrayList<>();
 
         //Read all the data early, as we only have permissions to do it while the activity is alive
         for (Uri uri : uriList) {
             NetworkPacket np = FilesHelper.uriToNetworkPacket(context, uri, PACKET_TYPE_SHARE_REQUEST);
 
             if (np != null) {
-                job.addNetworkPacket(np);
+                // Only files of a known size can be resumed, and only if we can still read them later
+                if (np.getPayloadSize() > 0 && canResumeTransfers()) {
+                    String transferId = ResumableTransfers.newTransferId();
+                    if (resumableTransfers.putOutgoing(new ResumableTransfers.Outgoing(transferId, uri, np.getPayloadSize()))) {
+                        np.set(ResumableTransfers.KEY_TRANSFER_ID, transferId);
+                    }
+                }
+                packets.add(np);
             }
         }
 
+        uploadPackets(packets);
+    }
+
+    private boolean canResumeTransfers() {
+        return LinkFeatures.isEnabled(device.getDeviceInfo(), LinkFeatures.RESUMABLE_TRANSFERS);
+    }
+
+    private void uploadPackets(List<NetworkPacket> packets) {
+        CompositeUploadFileJob job;
+
+        if (uploadFileJob == null) {
+            job = new CompositeUploadFileJob(getDevice(), resumableTransfers, this.receiveFileJobCallback);
+        } else {
+            job = uploadFileJob;
+        }
+
+        for (NetworkPacket np : packets) {
+            job.addNetworkPacket(np);
+        }
+
         if (job != uploadFileJob) {
             uploadFileJob = job;
             backgroundJobHandler.runJob(uploadFileJob);
         }
     }
 
+    /**
+     * The other device asks for the rest of a file we were sending it, or tells us it won't be sent.
+     */
+    @WorkerThread
+    private void onResumeRequested(NetworkPacket np) {
+        String transferId = np.getString(ResumableTransfers.KEY_TRANSFER_ID);
+
+        if (np.getBoolean(ResumableTransfers.KEY_ABORT, false)) {
+            Log.i("SharePlugin", "Transfer " + transferId + " won't be resumed");
+            resumableTransfers.removeIncoming(transferId, true);
+            return;
+        }
+
+        long offset = np.getLong(ResumableTransfers.KEY_OFFSET, -1);
+        ResumableTransfers.Outgoing transfer = resumableTransfers.getOutgoing(transferId);
+        NetworkPacket resumed = transfer != null ? FilesHelper.uriToNetworkPacket(context, transfer.uri, PACKET_TYPE_SHARE_REQUEST) : null;
+        try {
+            // The file could have changed in the meantime
+            if (resumed == null || offset <= 0 || resumed.getPayloadSize() != transfer.size || offset >= transfer.size) {
+                throw new IOException("Can't resume transfer " + transferId + " from byte " + offset);
+            }
+            InputStream inputStream = resumed.getPayload().getInputStream();
+            IOUtils.skipFully(inputStream, offset);
+            resumed.setPayload(new NetworkPacket.Payload(inputStream, transfer.size - offset));
+        } catch (IOException e) {
+            Log.w("SharePlugin", "Not resuming transfer", e);
+            if (resumed != null) {
+                resumed.getPayload().close();
+            }
+            resumableTransfers.removeOutgoing(transferId);
+            NetworkPacket abort = new NetworkPacket(PACKET_TYPE_SHARE_RESUME);
+            abort.set(ResumableTransfers.KEY_TRANSFER_ID, transferId);
+            abort.set(ResumableTransfers.KEY_ABORT, true);
+            device.sendPacket(abort);
+            return;
+        }
+
+        Log.i("SharePlugin", "Resuming transfer " + transferId + " from byte " + offset);
+        resumed.set(ResumableTransfers.KEY_TRANSFER_ID, transferId);
+        resumed.set(ResumableTransfers.KEY_RESUME_OFFSET, offset);
+        uploadPackets(List.of(resumed));
+    }
+
     public void share(Intent intent) {
         Bundle extras = intent.getExtras();
         ArrayList<Uri> streams = streamsFromIntent(intent, extras);
@@ -369,12 +461,12 @@ public class SharePlugin extends Plugin {
 
     @Override
     public @NonNull String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_SHARE_REQUEST, PACKET_TYPE_SHARE_REQUEST_UPDATE};
+        return new String[]{PACKET_TYPE_SHARE_REQUEST, PACKET_TYPE_SHARE_REQUEST_UPDATE, PACKET_TYPE_SHARE_RESUME};
     }
 
     @Override
     public @NonNull String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_SHARE_REQUEST};
+        return new String[]{PACKET_TYPE_SHARE_REQUEST, PACKET_TYPE_SHARE_RESUME};
     }
 
     @Override
@@ -431,5 +523,6 @@ public class SharePlugin extends Plugin {
             mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         }
         mSharedPrefs.edit().remove(KEY_UNREACHABLE_URL_LIST + deviceId).apply();
+        new ResumableTransfers(context, deviceId).removeAll();
     }
 }
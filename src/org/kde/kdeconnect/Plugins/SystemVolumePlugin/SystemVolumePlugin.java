@@ -95,7 +95,7 @@ public class SystemVolumePlugin extends Plugin {
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_SYSTEMVOLUME_REQUEST);
         np.set("volume", volume);
         np.set("name", name);
-        getDevice().sendPacket(np);
+        getDevice().sendPacket(np, "volume:" + name);
     }
 
     void sendMute(String name, boolean mute) {
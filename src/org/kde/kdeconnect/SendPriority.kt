@@ -0,0 +1,20 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect
+
+/**
+ * Lane of the outgoing queue a packet goes through. Lanes are drained in weighted turns: while all
+ * of them have packets waiting, for every [BULK] packet sent up to [NORMAL]'s weight of normal
+ * packets and [INTERACTIVE]'s weight of interactive ones are sent, so bulk traffic never starves.
+ *
+ * @see OutgoingPacketQueue
+ */
+enum class SendPriority(val weight: Int) {
+    /** Packets the user is waiting on right now, eg: mouse movements or key presses. */
+    INTERACTIVE(8),
+    NORMAL(4),
+    /** Large responses that can take their time, eg: a dump of all SMS conversations. */
+    BULK(1),
+}
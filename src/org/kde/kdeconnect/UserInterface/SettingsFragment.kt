@@ -34,6 +34,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import org.apache.commons.io.IOUtils
 import org.kde.kdeconnect.BackgroundService
+import org.kde.kdeconnect.Backends.LinkHealthMonitor
 import org.kde.kdeconnect.Helpers.CreateFileParams
 import org.kde.kdeconnect.Helpers.CreateFileResultContract
 import org.kde.kdeconnect.Helpers.DeviceHelper
@@ -65,6 +66,7 @@ class SettingsFragment : PreferenceFragmentCompat() {
             trustedNetworkPref(context),
             devicesByIpPref(context),
             bluetoothSupportPref(context),
+            linkHeartbeatPref(context),
             exportLogsPref(context),
             moreSettingsPref(context),
         ).forEach(screen::addPreference)
@@ -221,6 +223,16 @@ class SettingsFragment : PreferenceFragmentCompat() {
         }
     }
 
+    private fun linkHeartbeatPref(context: Context) = ListPreference(context).apply {
+        key = KEY_LINK_HEARTBEAT_INTERVAL
+        setTitle(R.string.link_heartbeat_title)
+        setDialogTitle(R.string.link_heartbeat_title)
+        setEntries(R.array.link_heartbeat_list)
+        setEntryValues(R.array.link_heartbeat_values)
+        setDefaultValue((LinkHealthMonitor.DEFAULT_INTERVAL_MILLIS / 1000).toString())
+        summaryProvider = ListPreference.SimpleSummaryProvider.getInstance()
+    }
+
     private fun exportLogsPref(context: Context) = Preference(context).apply {
         isPersistent = false
         setTitle(R.string.settings_export_logs)
@@ -256,5 +268,6 @@ class SettingsFragment : PreferenceFragmentCompat() {
     companion object {
         const val KEY_BLUETOOTH_ENABLED: String = "bluetooth_enabled"
         const val KEY_APP_THEME: String = "theme_pref"
+        const val KEY_LINK_HEARTBEAT_INTERVAL: String = "link_heartbeat_interval"
     }
 }
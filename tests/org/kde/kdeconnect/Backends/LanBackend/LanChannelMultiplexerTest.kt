@@ -0,0 +1,133 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends.LanBackend
+
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+class LanChannelMultiplexerTest {
+
+    /**
+     * Two multiplexers whose frames go straight to each other, like the two ends of a connection.
+     */
+    private class Connection {
+        val sentData = AtomicInteger() // Bytes of DATA messages sent by the sender
+        val maxChunk = AtomicInteger()
+        lateinit var sender: LanChannelMultiplexer
+        lateinit var receiver: LanChannelMultiplexer
+
+        init {
+            sender = LanChannelMultiplexer(channelTo { receiver })
+            receiver = LanChannelMultiplexer(channelTo { sender })
+        }
+
+        private fun channelTo(peer: () -> LanChannelMultiplexer): LanTlsChannel =
+            Mockito.mock(LanTlsChannel::class.java) { invocation ->
+                if (invocation.method.name == "write") {
+                    val frame = ByteArrayOutputStream()
+                    invocation.arguments.forEach { buffer ->
+                        buffer as ByteBuffer
+                        frame.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+                    }
+                    val message = ByteBuffer.wrap(frame.toByteArray())
+                    message.position(LanReaderEngine.BINARY_FRAME_HEADER_SIZE)
+                    if (message.get(message.position()) == LanChannelMultiplexer.MESSAGE_DATA) {
+                        val length = message.remaining() - 5
+                        sentData.addAndGet(length)
+                        maxChunk.accumulateAndGet(length, ::maxOf)
+                    }
+                    peer().onFrameReceived(message)
+                }
+                null
+            }
+    }
+
+    private fun send(connection: Connection, data: ByteArray, error: AtomicReference<IOException>): Pair<Int, Thread> {
+        val channel = connection.sender.openChannel()
+        val thread = Thread {
+            try {
+                channel.use { it.write(data) }
+            } catch (e: IOException) {
+                error.set(e)
+            }
+        }
+        thread.start()
+        return Pair(channel.id, thread)
+    }
+
+    @Test
+    fun senderStopsAtTheWindow() {
+        val connection = Connection()
+        val data = ByteArray(LanChannelMultiplexer.WINDOW_SIZE * 4) { it.toByte() }
+        val error = AtomicReference<IOException>()
+        val (id, sender) = send(connection, data, error)
+
+        // Nobody reads, so only a window's worth goes out
+        sender.join(300)
+        Assert.assertTrue(sender.isAlive)
+        Assert.assertEquals(LanChannelMultiplexer.WINDOW_SIZE, connection.sentData.get())
+
+        // Reading returns credits, which let the rest through
+        val received = connection.receiver.takeIncomingChannel(id)!!.readBytes()
+        sender.join(5000)
+        Assert.assertNull(error.get())
+        Assert.assertArrayEquals(data, received)
+        Assert.assertTrue(connection.maxChunk.get() <= LanChannelMultiplexer.MAX_CHUNK_SIZE)
+    }
+
+    @Test
+    fun closingTheReceiverCancelsTheSender() {
+        val connection = Connection()
+        val error = AtomicReference<IOException>()
+        val (id, sender) = send(connection, ByteArray(LanChannelMultiplexer.WINDOW_SIZE * 2), error)
+
+        sender.join(300)
+        connection.receiver.takeIncomingChannel(id)!!.close()
+        sender.join(5000)
+        Assert.assertFalse(sender.isAlive)
+        Assert.assertNotNull(error.get())
+        Assert.assertNull(connection.receiver.takeIncomingChannel(id))
+    }
+
+    @Test
+    fun channelsAreForgottenOnceTakenAndEnded() {
+        val connection = Connection()
+        val channel = connection.sender.openChannel()
+        channel.write(ByteArray(10))
+        // Nobody can be waiting for it until it's taken
+        Assert.assertFalse(connection.receiver.isReceivingPayloads())
+
+        val incoming = connection.receiver.takeIncomingChannel(channel.id)!!
+        Assert.assertTrue(connection.receiver.isReceivingPayloads())
+        Assert.assertNull(connection.receiver.takeIncomingChannel(channel.id))
+
+        channel.close()
+        Assert.assertFalse(connection.receiver.isReceivingPayloads())
+        Assert.assertEquals(10, incoming.readBytes().size)
+
+        // Also when it ends before it's taken
+        val ended = connection.sender.openChannel()
+        ended.close()
+        connection.receiver.takeIncomingChannel(ended.id)!!
+        Assert.assertFalse(connection.receiver.isReceivingPayloads())
+    }
+
+    @Test
+    fun losingTheConnectionFailsTheReceiver() {
+        val connection = Connection()
+        val channel = connection.sender.openChannel()
+        channel.write(ByteArray(10))
+        val incoming = connection.receiver.takeIncomingChannel(channel.id)!!
+
+        connection.receiver.close()
+        Assert.assertEquals(10, incoming.read(ByteArray(100)))
+        Assert.assertThrows(IOException::class.java) { incoming.read() }
+    }
+}
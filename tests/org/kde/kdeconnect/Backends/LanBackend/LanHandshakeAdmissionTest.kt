@@ -0,0 +1,95 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends.LanBackend
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.Closeable
+import java.net.InetAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class LanHandshakeAdmissionTest {
+
+    private class Connection : Closeable {
+        val closed = AtomicBoolean(false)
+
+        override fun close() {
+            closed.set(true)
+        }
+    }
+
+    private val host = InetAddress.getByName("192.168.1.10")
+    private val otherHost = InetAddress.getByName("192.168.1.11")
+
+    @Test
+    fun limitsHandshakesPerAddress() {
+        val admission = LanHandshakeAdmission()
+        val release = CountDownLatch(1)
+        val done = CountDownLatch(2)
+        val blocking = LanHandshakeAdmission.Handshake {
+            release.await(5, TimeUnit.SECONDS)
+            done.countDown()
+        }
+
+        repeat(LanHandshakeAdmission.MAX_HANDSHAKES_PER_ADDRESS) {
+            Assert.assertTrue(admission.admit(host, Connection(), blocking))
+        }
+        val rejected = Connection()
+        Assert.assertFalse(admission.admit(host, rejected, blocking))
+        Assert.assertTrue(rejected.closed.get())
+
+        // Other hosts still get in
+        val other = CountDownLatch(1)
+        Assert.assertTrue(admission.admit(otherHost, Connection()) { other.countDown() })
+        Assert.assertTrue(other.await(5, TimeUnit.SECONDS))
+
+        // And this one again once its handshakes are done
+        release.countDown()
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS))
+        Thread.sleep(100) // The slot is freed right after the handshake returns
+        Assert.assertTrue(admission.admit(host, Connection()) {})
+        Assert.assertEquals(1, admission.rejectedCount)
+    }
+
+    @Test
+    fun handshakesThatWaitedTooLongDontRun() {
+        val admission = LanHandshakeAdmission(200)
+        val release = CountDownLatch(1)
+        // Keep all the threads busy past the time budget, each from its own address
+        repeat(LanHandshakeAdmission.MAX_CONCURRENT_HANDSHAKES) { i ->
+            admission.admit(InetAddress.getByName("10.0.0.$i"), Connection()) { release.await(5, TimeUnit.SECONDS) }
+        }
+
+        val queued = Connection()
+        val ran = AtomicBoolean(false)
+        Assert.assertTrue(admission.admit(host, queued) { ran.set(true) })
+        Thread.sleep(400)
+        release.countDown()
+
+        val deadline = System.currentTimeMillis() + 5000
+        while (!queued.closed.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Assert.assertTrue(queued.closed.get())
+        Assert.assertFalse(ran.get())
+        Assert.assertEquals(1, admission.timedOutCount)
+    }
+
+    @Test
+    fun handshakesGetTheRestOfTheBudget() {
+        val admission = LanHandshakeAdmission(1000)
+        val admitted = System.currentTimeMillis()
+        val deadlineSeen = CountDownLatch(1)
+        var deadline = 0L
+        admission.admit(host, Connection()) {
+            deadline = it
+            deadlineSeen.countDown()
+        }
+        Assert.assertTrue(deadlineSeen.await(5, TimeUnit.SECONDS))
+        Assert.assertTrue(deadline >= admitted + 1000)
+        Assert.assertTrue(deadline <= System.currentTimeMillis() + 1000)
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends.LanBackend
+
+import org.bouncycastle.asn1.x500.X500Name
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.math.BigInteger
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.security.KeyPairGenerator
+import java.security.KeyStore
+import java.security.cert.X509Certificate
+import java.util.Date
+import java.util.concurrent.atomic.AtomicReference
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.X509TrustManager
+
+class LanIdentityReaderTest {
+
+    private lateinit var server: ServerSocketChannel
+    private lateinit var local: SocketChannel // Where the identity is received
+    private lateinit var remote: SocketChannel // Where it's sent from
+
+    @Before
+    fun connect() {
+        server = ServerSocketChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        remote = SocketChannel.open(server.localAddress)
+        local = server.accept()
+    }
+
+    @After
+    fun close() {
+        remote.close()
+        local.close()
+        server.close()
+    }
+
+    private fun deadline() = System.currentTimeMillis() + 5000
+
+    private fun send(text: String) {
+        remote.write(ByteBuffer.wrap(text.toByteArray()))
+    }
+
+    @Test
+    fun keepsWhatFollowsTheLine() {
+        send("{\"type\":\"kdeconnect.identity\"}\nwhat follows")
+        Thread.sleep(100) // So it's all there on the first read
+
+        val reader = LanIdentityReader()
+        Assert.assertEquals("{\"type\":\"kdeconnect.identity\"}\n", reader.readLine(local, 1000, deadline()))
+        val remaining = reader.remaining
+        Assert.assertEquals("what follows", String(remaining.array(), remaining.position(), remaining.remaining()))
+    }
+
+    @Test
+    fun readsLinesLongerThanTheBuffer() {
+        val line = "x".repeat(LanIdentityReader.INITIAL_BUFFER_SIZE * 3) + "\n"
+        val sender = Thread {
+            // In pieces, so the line has to be put together
+            line.chunked(1000).forEach {
+                send(it)
+                Thread.sleep(5)
+            }
+        }
+        sender.start()
+        Assert.assertEquals(line, LanIdentityReader().readLine(local, line.length, deadline()))
+        sender.join()
+    }
+
+    @Test
+    fun givesUp() {
+        send("x".repeat(200))
+        Assert.assertThrows(IOException::class.java) { LanIdentityReader().readLine(local, 100, deadline()) }
+
+        // Nothing more arrives
+        Assert.assertThrows(SocketTimeoutException::class.java) {
+            LanIdentityReader().readLine(local, 1000, System.currentTimeMillis() + 200)
+        }
+    }
+
+    /**
+     * The other end starts the TLS handshake right after sending its identity, so what's read along
+     * with the identity is the start of the handshake, and the TLS channel has to get it.
+     */
+    @Test
+    fun handsTheRestToTheTlsChannel() {
+        val context = sslContext()
+        val remoteError = AtomicReference<Throwable>()
+        val remoteSide = Thread {
+            try {
+                send("{\"type\":\"kdeconnect.identity\"}\n")
+                val tls = LanTlsChannel(remote, context.createSSLEngine().apply { useClientMode = true })
+                tls.handshake(5000)
+                tls.write(ByteBuffer.wrap("hello\n".toByteArray()))
+            } catch (e: Throwable) {
+                remoteError.set(e)
+            }
+        }
+        remoteSide.start()
+        Thread.sleep(300) // So the start of the handshake is read along with the identity
+
+        val reader = LanIdentityReader()
+        reader.readLine(local, 1000, deadline())
+        val remaining = reader.remaining
+        Assert.assertTrue(remaining.hasRemaining())
+
+        val tls = LanTlsChannel(local, context.createSSLEngine().apply { useClientMode = false }, remaining)
+        tls.handshake(5000)
+        Assert.assertEquals("hello\n", tls.readLine(100, 5000))
+        remoteSide.join(5000)
+        Assert.assertNull(remoteError.get())
+    }
+
+    private fun sslContext(): SSLContext {
+        val keyPair = KeyPairGenerator.getInstance("EC").apply { initialize(256) }.generateKeyPair()
+        val name = X500Name("CN=test")
+        val now = System.currentTimeMillis()
+        val certificate = JcaX509CertificateConverter().getCertificate(
+            JcaX509v3CertificateBuilder(name, BigInteger.ONE, Date(now - 60 * 1000), Date(now + 60 * 60 * 1000), name, keyPair.public)
+                .build(JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.private))
+        )
+        val keyStore = KeyStore.getInstance(KeyStore.getDefaultType()).apply {
+            load(null, null)
+            setKeyEntry("test", keyPair.private, CharArray(0), arrayOf(certificate))
+        }
+        val keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+            .apply { init(keyStore, CharArray(0)) }
+            .keyManagers
+        val trustAll = object : X509TrustManager {
+            override fun checkClientTrusted(chain: Array<X509Certificate>, authType: String) {}
+            override fun checkServerTrusted(chain: Array<X509Certificate>, authType: String) {}
+            override fun getAcceptedIssuers(): Array<X509Certificate> = arrayOf()
+        }
+        return SSLContext.getInstance("TLS").apply { init(keyManagers, arrayOf(trustAll), null) }
+    }
+}
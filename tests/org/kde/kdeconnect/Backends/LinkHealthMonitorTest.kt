@@ -0,0 +1,62 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends
+
+import android.content.Context
+import org.junit.Assert
+import org.junit.Test
+import org.kde.kdeconnect.Device
+import org.kde.kdeconnect.DeviceInfo
+import org.kde.kdeconnect.DeviceType
+import org.kde.kdeconnect.NetworkPacket
+import org.mockito.Mockito
+import java.io.IOException
+import java.security.cert.Certificate
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LinkHealthMonitorTest {
+
+    private class FakeLink(private val onSend: (NetworkPacket) -> Unit) :
+        BaseLink(Mockito.mock(Context::class.java), Mockito.mock(BaseLinkProvider::class.java)) {
+
+        private val info = DeviceInfo("0123456789abcdef0123456789abcdef", Mockito.mock(Certificate::class.java), "Test", DeviceType.DESKTOP)
+        val dead = CountDownLatch(1)
+
+        override fun getName() = "FakeLink"
+
+        override fun getDeviceInfo() = info
+
+        override fun sendPacket(np: NetworkPacket, callback: Device.SendPacketStatusCallback, sendPayloadFromSameThread: Boolean): Boolean {
+            onSend(np)
+            return true
+        }
+
+        override fun onHealthCheckFailed(reason: IOException) {
+            dead.countDown()
+        }
+    }
+
+    @Test
+    fun unansweredPingsMakeTheLinkDead() {
+        val link = FakeLink {}
+        val monitor = LinkHealthMonitor(link, intervalMillis = 20, maxMissedAcks = 3)
+        monitor.start()
+        Assert.assertTrue(link.dead.await(5, TimeUnit.SECONDS))
+        Assert.assertTrue(monitor.smoothedRttMillis < 0)
+    }
+
+    @Test
+    fun ackedPingsMeasureTheRoundTrip() {
+        lateinit var monitor: LinkHealthMonitor
+        // The other end of the link answers the pings, and its acks come back to the monitor
+        val peer = FakeLink { ack -> monitor.onAckReceived(NetworkPacket.unserialize(ack.serialize())) }
+        val link = FakeLink { ping -> LinkHealthMonitor.onPingReceived(peer, NetworkPacket.unserialize(ping.serialize())) }
+        monitor = LinkHealthMonitor(link, intervalMillis = 20, maxMissedAcks = 2)
+        monitor.start()
+        Assert.assertFalse(link.dead.await(500, TimeUnit.MILLISECONDS))
+        monitor.stop()
+        Assert.assertTrue(monitor.smoothedRttMillis >= 0)
+    }
+}
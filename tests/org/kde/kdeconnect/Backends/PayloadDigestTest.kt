@@ -0,0 +1,84 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends
+
+import org.junit.Assert
+import org.junit.Ignore
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.util.Random
+
+class PayloadDigestTest {
+
+    private val payload = ByteArray(100_000).also { Random(42).nextBytes(it) }
+
+    /** The payload followed by its digest and then unrelated bytes, as on a reused connection. */
+    private fun framed(algorithm: String, corruptAt: Int = -1): ByteArray {
+        val digest = PayloadDigest.create(algorithm)!!
+        digest.update(payload, 0, payload.size)
+        val sent = payload.copyOf()
+        if (corruptAt >= 0) {
+            sent[corruptAt] = (sent[corruptAt] + 1).toByte()
+        }
+        return sent + digest.digest() + byteArrayOf(1, 2, 3)
+    }
+
+    private fun readAll(algorithm: String, bytes: ByteArray): ByteArray {
+        val stream = PayloadDigest.verifying(ByteArrayInputStream(bytes), payload.size.toLong(), PayloadDigest.create(algorithm))
+        return stream.readBytes()
+    }
+
+    @Test
+    fun matchingPayload() {
+        for (algorithm in PayloadDigest.ALGORITHMS) {
+            Assert.assertArrayEquals(algorithm, payload, readAll(algorithm, framed(algorithm)))
+        }
+    }
+
+    @Test
+    fun corruptedPayload() {
+        for (algorithm in PayloadDigest.ALGORITHMS) {
+            Assert.assertThrows(algorithm, IOException::class.java) {
+                readAll(algorithm, framed(algorithm, corruptAt = 1234))
+            }
+        }
+    }
+
+    @Test
+    fun missingDigest() {
+        Assert.assertThrows(IOException::class.java) {
+            readAll(PayloadDigest.CRC32, payload)
+        }
+    }
+
+    @Test
+    fun noDigest() {
+        val input = ByteArrayInputStream(payload)
+        Assert.assertSame(input, PayloadDigest.verifying(input, payload.size.toLong(), null))
+        Assert.assertNull(PayloadDigest.create("whirlpool"))
+    }
+
+    /**
+     * Throughput of each algorithm over 1 GiB, in the 64 KiB chunks the payload copy loops work with.
+     */
+    @Ignore("Benchmark, run manually")
+    @Test
+    fun benchmark() {
+        val chunk = ByteArray(64 * 1024).also { Random(1).nextBytes(it) }
+        val total = 1L shl 30
+        for (algorithm in PayloadDigest.ALGORITHMS) {
+            val digest = PayloadDigest.create(algorithm)!!
+            val start = System.nanoTime()
+            var done = 0L
+            while (done < total) {
+                digest.update(chunk, 0, chunk.size)
+                done += chunk.size
+            }
+            digest.digest()
+            val seconds = (System.nanoTime() - start) / 1e9
+            println("$algorithm: %.2f s, %.0f MiB/s".format(seconds, total / seconds / (1 shl 20)))
+        }
+    }
+}
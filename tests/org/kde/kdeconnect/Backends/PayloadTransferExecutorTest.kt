@@ -0,0 +1,197 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Backends
+
+import org.junit.Assert
+import org.junit.Test
+import org.kde.kdeconnect.Device
+import org.kde.kdeconnect.NetworkPacket
+import java.io.IOException
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class PayloadTransferExecutorTest {
+
+    private class Callback : Device.SendPacketStatusCallback() {
+        var succeeded = 0
+        var failed = 0
+
+        override fun onSuccess() {
+            succeeded++
+        }
+
+        override fun onFailure(e: Throwable) {
+            failed++
+        }
+    }
+
+    @Test
+    fun reportsTheResult() {
+        val transfers = PayloadTransferExecutor()
+        val np = NetworkPacket("kdeconnect.test")
+
+        val ok = Callback()
+        Assert.assertTrue(PayloadTransferExecutor.await(transfers.submit(transfers.reserve(), np, ok) {}))
+        Assert.assertEquals(1, ok.succeeded)
+        Assert.assertEquals(0, ok.failed)
+
+        val broken = Callback()
+        Assert.assertFalse(PayloadTransferExecutor.await(transfers.submit(transfers.reserve(), np, broken) { throw IOException("Broken pipe") }))
+        Assert.assertEquals(0, broken.succeeded)
+        Assert.assertEquals(1, broken.failed)
+    }
+
+    @Test
+    fun limitsConcurrentTransfers() {
+        val transfers = PayloadTransferExecutor(2)
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        val release = CountDownLatch(1)
+        val submitted = AtomicInteger()
+        val sent = AtomicInteger()
+        val senders = List(6) {
+            Thread {
+                val reservation = transfers.reserve()
+                submitted.incrementAndGet()
+                val result = transfers.submit(reservation, NetworkPacket("kdeconnect.test"), Callback()) {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+                    release.await(5, TimeUnit.SECONDS)
+                    running.decrementAndGet()
+                }
+                if (PayloadTransferExecutor.await(result)) {
+                    sent.incrementAndGet()
+                }
+            }.apply { start() }
+        }
+        Thread.sleep(200)
+        Assert.assertEquals(2, running.get())
+        Assert.assertEquals(2, submitted.get()) // The rest wait before sending their packet
+        release.countDown()
+        senders.forEach { it.join(5000) }
+        Assert.assertEquals(6, sent.get())
+        Assert.assertEquals(2, maxRunning.get())
+
+        transfers.maxConcurrentTransfers = 3
+        Assert.assertEquals(3, transfers.maxConcurrentTransfers)
+    }
+
+    @Test
+    fun releasedReservationsFreeTheirSlot() {
+        val transfers = PayloadTransferExecutor(1)
+        val first = transfers.reserve()
+        val reserved = CountDownLatch(1)
+        Thread {
+            transfers.reserve().release()
+            reserved.countDown()
+        }.start()
+        Assert.assertFalse(reserved.await(200, TimeUnit.MILLISECONDS))
+
+        first.release()
+        first.release() // Releasing twice doesn't free another slot
+        Assert.assertTrue(reserved.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun parkedPacketsGoFirst() {
+        val transfers = PayloadTransferExecutor(1)
+        val first = transfers.tryReserve()!!
+        Assert.assertNull(transfers.tryReserve())
+
+        val parkedSent = CountDownLatch(1)
+        transfers.park(NetworkPacket("kdeconnect.test")) { reservation ->
+            parkedSent.countDown()
+            transfers.submit(reservation, NetworkPacket("kdeconnect.test"), Callback()) { Thread.sleep(200) }
+        }
+        // A sender that waits for a slot doesn't get ahead of the parked packet
+        val reserved = CountDownLatch(1)
+        Thread {
+            transfers.reserve().release()
+            reserved.countDown()
+        }.start()
+        Assert.assertFalse(parkedSent.await(100, TimeUnit.MILLISECONDS))
+
+        first.release()
+        Assert.assertTrue(parkedSent.await(5, TimeUnit.SECONDS))
+        Assert.assertFalse(reserved.await(100, TimeUnit.MILLISECONDS))
+        Assert.assertTrue(reserved.await(5, TimeUnit.SECONDS))
+    }
+
+    /**
+     * Sends payloads like LanLink does from the send loop: the packet tells the other end which port
+     * to connect to, and the other end gives up if no data arrives for a while. None should give up
+     * while the transfers before them go out, however slow they are, and the loop never waits for
+     * the transfers.
+     */
+    @Test
+    fun peersDontWaitForQueuedTransfers() {
+        val transfers = PayloadTransferExecutor(2)
+        val timedOut = AtomicInteger()
+        val received = AtomicInteger()
+        val sent = CountDownLatch(4)
+        val peers = Collections.synchronizedList(ArrayList<Thread>())
+
+        fun sendPacket(reservation: PayloadTransferExecutor.Reservation) {
+            val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+            server.soTimeout = PEER_TIMEOUT_MILLIS
+            // "Sending the packet": the other end connects right away and waits for the payload
+            peers += Thread {
+                try {
+                    Socket(InetAddress.getLoopbackAddress(), server.localPort).use { socket ->
+                        socket.soTimeout = PEER_TIMEOUT_MILLIS
+                        val input = socket.getInputStream()
+                        while (input.read() != -1) {
+                            received.incrementAndGet()
+                        }
+                    }
+                } catch (e: SocketTimeoutException) {
+                    timedOut.incrementAndGet()
+                }
+            }.apply { start() }
+            val callback = object : Device.SendPacketStatusCallback() {
+                override fun onSuccess() = sent.countDown()
+                override fun onFailure(e: Throwable) {}
+            }
+            transfers.submit(reservation, NetworkPacket("kdeconnect.test"), callback) {
+                server.use {
+                    it.accept().use { socket ->
+                        repeat(SLOW_TRANSFER_CHUNKS) {
+                            socket.getOutputStream().write(1)
+                            Thread.sleep(SLOW_TRANSFER_CHUNK_MILLIS)
+                        }
+                    }
+                }
+            }
+        }
+
+        val loopStarted = System.currentTimeMillis()
+        repeat(4) {
+            val np = NetworkPacket("kdeconnect.test")
+            val reservation = transfers.tryReserve()
+            if (reservation != null) {
+                sendPacket(reservation)
+            } else {
+                transfers.park(np, ::sendPacket)
+            }
+        }
+        Assert.assertTrue(System.currentTimeMillis() - loopStarted < SLOW_TRANSFER_CHUNK_MILLIS)
+
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS))
+        synchronized(peers) { peers.toList() }.forEach { it.join(5000) }
+        Assert.assertEquals(0, timedOut.get())
+        Assert.assertEquals(4 * SLOW_TRANSFER_CHUNKS, received.get())
+    }
+
+    companion object {
+        private const val PEER_TIMEOUT_MILLIS = 500
+        // Each transfer takes longer than the peer waits, but never goes quiet for that long
+        private const val SLOW_TRANSFER_CHUNKS = 7
+        private const val SLOW_TRANSFER_CHUNK_MILLIS = 100L
+    }
+}
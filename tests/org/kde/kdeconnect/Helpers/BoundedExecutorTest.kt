@@ -0,0 +1,32 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect.Helpers
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class BoundedExecutorTest {
+
+    @Test
+    fun blocksWhileFull() {
+        val release = CountDownLatch(1)
+        val executor = BoundedExecutor(SerialExecutor(Executors.newSingleThreadExecutor()), 2)
+        executor.execute { release.await() }
+        executor.execute {}
+
+        val submitted = CountDownLatch(1)
+        val producer = Thread {
+            executor.execute {}
+            submitted.countDown()
+        }
+        producer.start()
+        Assert.assertFalse(submitted.await(200, TimeUnit.MILLISECONDS))
+
+        release.countDown()
+        Assert.assertTrue(submitted.await(5, TimeUnit.SECONDS))
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect
+
+import org.junit.Assert
+import org.junit.Test
+import org.kde.kdeconnect.Backends.BaseLink
+import org.kde.kdeconnect.Backends.PayloadTransferExecutor
+import org.mockito.Mockito
+
+class LinkSchedulerTest {
+
+    private fun link(rttMillis: Double = -1.0, throughput: Double = -1.0, pendingBytes: Long = 0, unresponsive: Boolean = false): BaseLink {
+        val transfers = Mockito.mock(PayloadTransferExecutor::class.java)
+        Mockito.`when`(transfers.throughputBytesPerSecond).thenReturn(throughput)
+        Mockito.`when`(transfers.pendingBytes).thenReturn(pendingBytes)
+        val link = Mockito.mock(BaseLink::class.java)
+        Mockito.`when`(link.smoothedRttMillis).thenReturn(rttMillis)
+        Mockito.`when`(link.isUnresponsive).thenReturn(unresponsive)
+        Mockito.`when`(link.payloadTransfers).thenReturn(transfers)
+        return link
+    }
+
+    private fun packetWithPayload(size: Long) = NetworkPacket("kdeconnect.share.request").apply {
+        payload = NetworkPacket.Payload(size)
+    }
+
+    @Test
+    fun interactiveGoesToLowestRtt() {
+        val lan = link(rttMillis = 200.0)
+        val bluetooth = link(rttMillis = 40.0)
+        val np = NetworkPacket("kdeconnect.mousepad.request")
+        Assert.assertEquals(listOf(bluetooth, lan), LinkScheduler.order(listOf(lan, bluetooth), np, SendPriority.INTERACTIVE))
+        Assert.assertEquals(listOf(lan, bluetooth), LinkScheduler.order(listOf(lan, bluetooth), np, SendPriority.NORMAL))
+    }
+
+    @Test
+    fun smallDifferencesKeepProviderOrder() {
+        val lan = link(rttMillis = 50.0)
+        val bluetooth = link(rttMillis = 45.0)
+        val np = NetworkPacket("kdeconnect.mousepad.request")
+        Assert.assertEquals(listOf(lan, bluetooth), LinkScheduler.order(listOf(lan, bluetooth), np, SendPriority.INTERACTIVE))
+    }
+
+    @Test
+    fun unknownMetricsKeepProviderOrder() {
+        val lan = link()
+        val bluetooth = link(rttMillis = 40.0, throughput = 1e9)
+        Assert.assertEquals(listOf(lan, bluetooth), LinkScheduler.order(listOf(lan, bluetooth), NetworkPacket("a"), SendPriority.INTERACTIVE))
+        Assert.assertEquals(listOf(lan, bluetooth), LinkScheduler.order(listOf(lan, bluetooth), packetWithPayload(1000), SendPriority.BULK))
+    }
+
+    @Test
+    fun payloadGoesToSoonestToFinish() {
+        val lan = link(throughput = 10e6, pendingBytes = 500_000_000)
+        val bluetooth = link(throughput = 200e3)
+        Assert.assertEquals(listOf(bluetooth, lan), LinkScheduler.order(listOf(lan, bluetooth), packetWithPayload(1_000_000), SendPriority.BULK))
+        Assert.assertEquals(listOf(lan, bluetooth), LinkScheduler.order(listOf(lan, bluetooth), packetWithPayload(500_000_000), SendPriority.BULK))
+    }
+
+    @Test
+    fun unresponsiveLinksGoLast() {
+        val lan = link(unresponsive = true)
+        val bluetooth = link()
+        Assert.assertEquals(listOf(bluetooth, lan), LinkScheduler.order(listOf(lan, bluetooth), NetworkPacket("a"), SendPriority.NORMAL))
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect
+
+import org.json.JSONException
+import org.junit.Assert
+import org.junit.Assume
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class NetworkPacketParserTest {
+
+    private fun NetworkPacketParser.parseAll(bytes: ByteArray, chunkSize: Int = bytes.size): List<NetworkPacket> {
+        val packets = ArrayList<NetworkPacket>()
+        var offset = 0
+        while (offset < bytes.size) {
+            val end = minOf(offset + chunkSize, bytes.size)
+            while (offset < end) {
+                offset += feed(bytes, offset, end - offset)
+                takePacket()?.let(packets::add)
+            }
+        }
+        return packets
+    }
+
+    @Test
+    fun parsesSerializedPackets() {
+        val np = NetworkPacket("kdeconnect.test").apply {
+            this["string"] = "hello \"world\" / ñ ✓ 😀\n"
+            this["int"] = 42
+            this["long"] = 1L shl 40
+            this["double"] = 1.5
+            this["bool"] = true
+            this["list"] = listOf("a", "b")
+        }
+        val bytes = (np.serialize() + np.serialize()).toByteArray(Charsets.UTF_8)
+
+        // Byte by byte too, to split every token and UTF-8 sequence
+        for (chunkSize in listOf(bytes.size, 7, 1)) {
+            val packets = NetworkPacketParser().parseAll(bytes, chunkSize)
+            Assert.assertEquals(2, packets.size)
+            packets.forEach { parsed ->
+                Assert.assertEquals("kdeconnect.test", parsed.type)
+                Assert.assertEquals(np.getString("string"), parsed.getString("string"))
+                Assert.assertEquals(42, parsed.getInt("int"))
+                Assert.assertEquals(1L shl 40, parsed.getLong("long"))
+                Assert.assertEquals(1.5, parsed.getDouble("double"), 0.0)
+                Assert.assertTrue(parsed.getBoolean("bool"))
+                Assert.assertEquals(listOf("a", "b"), parsed.getStringList("list"))
+            }
+        }
+    }
+
+    @Test
+    fun parsesPayloadFields() {
+        val line = "{\"id\":1,\"type\":\"kdeconnect.share.request\",\"body\":{\"nested\":{\"a\":[1,[],{}]}}," +
+            "\"payloadSize\":1234,\"payloadTransferInfo\":{\"port\":1739}}\r\n"
+        val np = NetworkPacketParser().parseAll(line.toByteArray()).single()
+        Assert.assertEquals(1234L, np.payloadSize)
+        Assert.assertEquals(1739, np.payloadTransferInfo.getInt("port"))
+        Assert.assertEquals(3, np.getJSONObject("nested")!!.getJSONArray("a").length())
+    }
+
+    @Test
+    fun skipsPacketsTooLarge() {
+        val parser = NetworkPacketParser(maxPacketSize = 100)
+        val big = NetworkPacket("big").apply { this["data"] = "x".repeat(200) }.serialize()
+        val small = NetworkPacket("small").serialize()
+        val bytes = (big + small).toByteArray()
+
+        var offset = 0
+        var error: JSONException? = null
+        val packets = ArrayList<NetworkPacket>()
+        while (offset < bytes.size) {
+            offset += parser.feed(bytes, offset, bytes.size - offset)
+            try {
+                parser.takePacket()?.let(packets::add)
+            } catch (e: JSONException) {
+                error = e
+            }
+        }
+        Assert.assertTrue(error is NetworkPacketParser.PacketTooLargeException)
+        Assert.assertEquals(listOf("small"), packets.map { it.type })
+    }
+
+    @Test
+    fun limitsDecompressedBodies() {
+        val json = "{\"data\":\"${"x".repeat(1000)}\"}".toByteArray()
+        val deflated = String(PacketBodyCompression.deflate(json, 0, json.size)!!)
+        val line = "{\"id\":1,\"type\":\"kdeconnect.test\",\"body\":{},\"deflatedBody\":\"$deflated\"}\n"
+
+        val np = NetworkPacketParser().parseAll(line.toByteArray()).single()
+        Assert.assertEquals(1000, np.getString("data").length)
+
+        // The line fits, but what it decompresses to doesn't
+        val limited = NetworkPacketParser(maxPacketSize = 500).parseAll(line.toByteArray()).single()
+        Assert.assertFalse(limited.has("data"))
+    }
+
+    @Test
+    fun skipsOnlyTheLineTooLarge() {
+        val small = NetworkPacket("small").serialize()
+        val maxPacketSize = 100
+        // A line of exactly one byte more than allowed, newline aside
+        val prefix = "{\"id\":1,\"type\":\"big\",\"body\":{\"data\":\""
+        val big = prefix + "x".repeat(maxPacketSize + 1 - prefix.length - 3) + "\"}}\n"
+        Assert.assertEquals(maxPacketSize + 2, big.length)
+
+        val parser = NetworkPacketParser(maxPacketSize)
+        val bytes = (big + small).toByteArray()
+        var offset = parser.feed(bytes, 0, bytes.size)
+        Assert.assertThrows(NetworkPacketParser.PacketTooLargeException::class.java) { parser.takePacket() }
+        while (offset < bytes.size) {
+            offset += parser.feed(bytes, offset, bytes.size - offset)
+        }
+        Assert.assertEquals("small", parser.takePacket()!!.type)
+
+        // A line of maxPacketSize + 1 bytes with the newline fits, and doesn't take the next one along
+        val fits = big.replaceFirst("x", "")
+        Assert.assertEquals(maxPacketSize + 1, fits.length)
+        val packets = NetworkPacketParser(maxPacketSize).parseAll((fits + small).toByteArray())
+        Assert.assertEquals(listOf("big", "small"), packets.map { it.type })
+    }
+
+    @Test
+    fun recoversAfterInvalidPacket() {
+        val parser = NetworkPacketParser()
+        val bytes = ("{\"type\":\"broken\",,}\n" + NetworkPacket("ok").serialize()).toByteArray()
+        var offset = parser.feed(bytes, 0, bytes.size)
+        Assert.assertThrows(JSONException::class.java) { parser.takePacket() }
+        offset += parser.feed(bytes, offset, bytes.size - offset)
+        Assert.assertEquals("ok", parser.takePacket()!!.type)
+        Assert.assertEquals(bytes.size, offset)
+    }
+
+    @Test
+    fun bodiesEndWithTheLine() {
+        val parser = NetworkPacketParser()
+        val cutShort = listOf(
+            "{\"id\":1,\"type\":\"broken\",\"body\":{\"a\":[1,\n",
+            "{\"id\":1,\"type\":\"broken\",\"body\":{\"a\":\"unterminated\n",
+            "{\"id\":1,\"type\":\"broken\",\"body\":{\"a\":\"\\\n",
+        )
+        for (line in cutShort) {
+            val bytes = (line + NetworkPacket("ok").serialize()).toByteArray()
+            var offset = parser.feed(bytes, 0, bytes.size)
+            Assert.assertEquals(line.length, offset)
+            Assert.assertThrows(JSONException::class.java) { parser.takePacket() }
+            Assert.assertTrue(parser.isIdle)
+            offset += parser.feed(bytes, offset, bytes.size - offset)
+            Assert.assertEquals("ok", parser.takePacket()!!.type)
+            Assert.assertEquals(bytes.size, offset)
+        }
+    }
+
+    @Test
+    fun stopsAtBinaryFrames() {
+        val parser = NetworkPacketParser()
+        val line = NetworkPacket("text").serialize().toByteArray()
+        val bytes = line + byteArrayOf(0, 0, 0, 0, 1, 42)
+        Assert.assertEquals(line.size, parser.feed(bytes, 0, bytes.size))
+        Assert.assertNotNull(parser.takePacket())
+        Assert.assertTrue(parser.isIdle)
+        Assert.assertEquals(0, parser.feed(bytes, line.size, bytes.size - line.size))
+    }
+
+    @Test
+    fun bodyIsDecodedOnDemand() {
+        val line = "{\"id\":1,\"type\":\"t\",\"body\":{\"s\":\"}]\\\"{\",\"bad\":,},\"payloadSize\":5,\"payloadTransferInfo\":{}}\n"
+        val np = NetworkPacketParser().parseAll(line.toByteArray()).single()
+        // Strings can contain brackets, the body only ends at the matching one
+        Assert.assertEquals(5L, np.payloadSize)
+        // The body isn't valid, but that's only found out when reading it
+        Assert.assertFalse(np.isBodyValid)
+        Assert.assertFalse(np.has("s"))
+
+        val valid = NetworkPacketParser().parseAll(NetworkPacket("t").apply { this["s"] = "}" }.serialize().toByteArray()).single()
+        Assert.assertTrue(valid.isBodyValid)
+    }
+
+    @Test
+    fun undecodedBodiesSaveAllocations() {
+        val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        Assume.assumeTrue(threadBean != null && threadBean.isThreadAllocatedMemorySupported)
+        val np = NetworkPacket("kdeconnect.notification").apply { repeat(50) { this["field$it"] = "value $it" } }
+        val bytes = np.serialize().toByteArray()
+        val parser = NetworkPacketParser()
+        val threadId = Thread.currentThread().id
+
+        fun allocatedBytes(decodeBody: Boolean): Long {
+            val before = threadBean!!.getThreadAllocatedBytes(threadId)
+            repeat(1000) {
+                parser.feed(bytes, 0, bytes.size)
+                val packet = parser.takePacket()!!
+                if (decodeBody) {
+                    Assert.assertTrue(packet.has("field49"))
+                }
+            }
+            return threadBean.getThreadAllocatedBytes(threadId) - before
+        }
+
+        allocatedBytes(decodeBody = true) // Warm up
+        val undecoded = allocatedBytes(decodeBody = false)
+        val decoded = allocatedBytes(decodeBody = true)
+        Assert.assertTrue("Allocated $undecoded bytes without decoding the bodies, $decoded decoding them", undecoded * 2 < decoded)
+    }
+}
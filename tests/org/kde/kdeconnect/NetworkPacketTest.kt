@@ -49,7 +49,7 @@ class NetworkPacketTest {
         val cert = Mockito.mock(Certificate::class.java)
 
         val deviceInfo =
-            DeviceInfo("myid", cert, "myname", DeviceType.TV, 12, Sets.newSet("ASDFG"), Sets.newSet("QWERTY"))
+            DeviceInfo("myid", cert, "myname", DeviceType.TV, 12, Sets.newSet("ASDFG"), Sets.newSet("QWERTY"), Sets.newSet("ZXCVB"))
 
         val np = deviceInfo.toIdentityPacket()
 
@@ -63,5 +63,6 @@ class NetworkPacketTest {
         Assert.assertEquals(parsed.protocolVersion.toLong(), deviceInfo.protocolVersion.toLong())
         Assert.assertEquals(parsed.incomingCapabilities, deviceInfo.incomingCapabilities)
         Assert.assertEquals(parsed.outgoingCapabilities, deviceInfo.outgoingCapabilities)
+        Assert.assertEquals(parsed.linkFeatures, deviceInfo.linkFeatures)
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect
+
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Test
+
+class NetworkPacketWriterTest {
+
+    private fun withId(bytes: ByteArray, id: Long): ByteArray {
+        val s = String(bytes, Charsets.UTF_8)
+        return s.replaceFirst(Regex("^\\{\"id\":\\d+"), "{\"id\":$id").toByteArray(Charsets.UTF_8)
+    }
+
+    @Test
+    fun sameBytesAsOrgJson() {
+        val body = JSONObject()
+            .put("slashes", "http://example.com/a\\/b")
+            .put("escapes", "\"quoted\"\t\b\n\r\u000C\u0001\u001F\u007F")
+            .put("unicode", "ñ ✓ 😀 \u2028")
+            .put("unpaired", "a\uD800b")
+            .put("int", -42)
+            .put("long", Long.MIN_VALUE)
+            .put("double", 0.1)
+            .put("wholeDouble", 2.0)
+            .put("big", 1.5e300)
+            .put("bool", false)
+            .put("array", JSONArray().put(1).put("two").put(JSONObject.NULL).put(JSONArray()).put(JSONObject()))
+            .put("nested", JSONObject().put("a", JSONObject().put("b/c", "d")))
+        val jo = JSONObject()
+            .put("id", 1234L)
+            .put("type", "kdeconnect.test")
+            .put("body", body)
+            .put("payloadSize", 10L)
+            .put("payloadTransferInfo", JSONObject().put("port", 1739))
+        // How packets were serialized before NetworkPacketWriter, which is what's on the wire
+        val expected = (jo.toString().replace("\\/", "/") + "\n").toByteArray(Charsets.UTF_8)
+
+        val np = NetworkPacket.fromJson(jo).apply { payload = NetworkPacket.Payload(ByteArray(10)) }
+        val written = withId(NetworkPacketWriter().also { it.write(np) }.toByteArray(), 1234)
+        Assert.assertEquals(String(expected, Charsets.UTF_8), String(written, Charsets.UTF_8))
+        Assert.assertArrayEquals(expected, written)
+    }
+
+    @Test
+    fun batchesAndRecycles() {
+        val writer = NetworkPacketWriter()
+        writer.write(NetworkPacket("a"))
+        writer.write(NetworkPacket("b").apply { this["big"] = "x".repeat(1024 * 1024) })
+        val lines = String(writer.toByteArray(), Charsets.UTF_8).split("\n")
+        Assert.assertEquals(3, lines.size)
+        Assert.assertEquals("a", NetworkPacket.unserialize(lines[0]).type)
+        Assert.assertEquals("b", NetworkPacket.unserialize(lines[1]).type)
+
+        writer.recycle()
+        Assert.assertEquals(0, writer.size())
+        Assert.assertEquals(0, writer.toByteBuffer().remaining())
+    }
+
+    @Test
+    fun failedPacketIsNotWritten() {
+        val writer = NetworkPacketWriter()
+        writer.write(NetworkPacket("ok"))
+        val size = writer.size()
+        val bad = NetworkPacket("bad").apply { this["array"] = JSONArray().put(1).put(Double.NaN as Any) }
+        Assert.assertThrows(JSONException::class.java) { writer.write(bad) }
+        Assert.assertEquals(size, writer.size())
+    }
+}
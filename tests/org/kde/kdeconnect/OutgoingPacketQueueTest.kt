@@ -0,0 +1,109 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect
+
+import org.junit.Assert
+import org.junit.Test
+import org.kde.kdeconnect.Device.NetworkPacketWithCallback
+
+class OutgoingPacketQueueTest {
+
+    private val callback = object : Device.SendPacketStatusCallback() {
+        override fun onSuccess() {}
+        override fun onFailure(e: Throwable) {}
+    }
+
+    private fun OutgoingPacketQueue.offer(type: String, priority: SendPriority) =
+        offer(NetworkPacketWithCallback(NetworkPacket(type), callback), priority)
+
+    private fun OutgoingPacketQueue.drain(): List<String> =
+        generateSequence { poll() }.map { it.np.type }.toList()
+
+    @Test
+    fun fifoWithinLane() {
+        val queue = OutgoingPacketQueue()
+        queue.offer("a", SendPriority.NORMAL)
+        queue.offer("b", SendPriority.NORMAL)
+        queue.offer("c", SendPriority.NORMAL)
+        Assert.assertEquals(listOf("a", "b", "c"), queue.drain())
+        Assert.assertNull(queue.poll())
+    }
+
+    @Test
+    fun interactiveJumpsAheadOfBulk() {
+        val queue = OutgoingPacketQueue()
+        repeat(100) { queue.offer("bulk", SendPriority.BULK) }
+        queue.offer("mouse", SendPriority.INTERACTIVE)
+        Assert.assertEquals("mouse", queue.poll()!!.np.type)
+        Assert.assertEquals(100, queue.size)
+    }
+
+    @Test
+    fun bulkIsNotStarved() {
+        val queue = OutgoingPacketQueue()
+        repeat(20) { queue.offer("interactive", SendPriority.INTERACTIVE) }
+        repeat(20) { queue.offer("normal", SendPriority.NORMAL) }
+        repeat(20) { queue.offer("bulk", SendPriority.BULK) }
+
+        val firstRound = queue.drain().take(SendPriority.entries.sumOf { it.weight })
+        Assert.assertEquals(SendPriority.INTERACTIVE.weight, firstRound.count { it == "interactive" })
+        Assert.assertEquals(SendPriority.NORMAL.weight, firstRound.count { it == "normal" })
+        Assert.assertEquals(SendPriority.BULK.weight, firstRound.count { it == "bulk" })
+    }
+
+    @Test
+    fun supersedeReplacesInPlace() {
+        val queue = OutgoingPacketQueue()
+        val first = NetworkPacketWithCallback(NetworkPacket("volume"), callback)
+        val second = NetworkPacketWithCallback(NetworkPacket("volume"), callback)
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer(first, SendPriority.NORMAL, "sink"))
+        queue.offer("other", SendPriority.NORMAL)
+        Assert.assertSame(first, (queue.offer(second, SendPriority.NORMAL, "sink") as OutgoingPacketQueue.OfferResult.Superseded).item)
+        // Same key but a different type doesn't supersede
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer(NetworkPacketWithCallback(NetworkPacket("mute"), callback), SendPriority.NORMAL, "sink"))
+
+        Assert.assertSame(second, queue.poll())
+        Assert.assertEquals(listOf("other", "mute"), queue.drain())
+        Assert.assertEquals(1L, queue.supersededCount)
+
+        // Once sent, a packet can't be superseded anymore
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer(first, SendPriority.NORMAL, "sink"))
+    }
+
+    @Test
+    fun boundedByCount() {
+        val queue = OutgoingPacketQueue(maxPackets = 2)
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer("a", SendPriority.NORMAL))
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer("b", SendPriority.NORMAL))
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Rejected, queue.offer("c", SendPriority.NORMAL))
+        Assert.assertEquals(1L, queue.rejectedCount)
+        queue.poll()
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer("c", SendPriority.NORMAL))
+        Assert.assertEquals(listOf("b", "c"), queue.drain())
+    }
+
+    @Test
+    fun boundedByBytes() {
+        val queue = OutgoingPacketQueue(maxBytes = 1000)
+        val bigPayload = NetworkPacket("art").apply { payload = NetworkPacket.Payload(ByteArray(5000)) }
+        // Too big on its own, but accepted since the queue is empty
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer(NetworkPacketWithCallback(bigPayload, callback), SendPriority.NORMAL))
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Rejected, queue.offer("a", SendPriority.NORMAL))
+        Assert.assertEquals(OutgoingPacketQueue.estimateSize(bigPayload), queue.bytes)
+        queue.poll()
+        Assert.assertEquals(0L, queue.bytes)
+    }
+
+    @Test
+    fun bigBodiesCountTowardsTheBytes() {
+        val queue = OutgoingPacketQueue(maxBytes = 100_000)
+        // Like a page of SMS messages: no payload, but a big body
+        val bigBody = NetworkPacket("sms").apply { this["messages"] = "x".repeat(60_000) }
+        Assert.assertTrue(OutgoingPacketQueue.estimateSize(bigBody) > 60_000)
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer(NetworkPacketWithCallback(bigBody, callback), SendPriority.BULK))
+        val another = NetworkPacket("sms").apply { this["messages"] = "y".repeat(60_000) }
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Rejected, queue.offer(NetworkPacketWithCallback(another, callback), SendPriority.BULK))
+        Assert.assertSame(OutgoingPacketQueue.OfferResult.Queued, queue.offer("small", SendPriority.NORMAL))
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+package org.kde.kdeconnect
+
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Test
+
+class PacketBodyCompressionTest {
+
+    private fun smsMessages(count: Int) = NetworkPacket("kdeconnect.sms.messages").apply {
+        val messages = JSONArray()
+        repeat(count) {
+            messages.put(JSONObject()
+                .put("event", 1)
+                .put("body", "Message number $it, see you at ${it % 24}:00 near the usual place?")
+                .put("addresses", JSONArray().put(JSONObject().put("address", "+3460012${it % 1000}")))
+                .put("date", 1700000000000L + it * 60000L)
+                .put("type", 1 + it % 2)
+                .put("read", 1)
+                .put("thread_id", it % 40)
+                .put("_id", it)
+                .put("sub_id", 1))
+        }
+        this["messages"] = messages
+        this["version"] = 2
+    }
+
+    private fun contactVcards(count: Int) = NetworkPacket("kdeconnect.contacts.response_vcards").apply {
+        val uids = JSONArray()
+        repeat(count) {
+            val uid = "contact-$it"
+            uids.put(uid)
+            this[uid] = "BEGIN:VCARD\nVERSION:2.1\nN:Surname$it;Name$it;;;\nFN:Name$it Surname$it\n" +
+                "TEL;CELL:+34600${100000 + it}\nEMAIL;HOME:name$it@example.com\n" +
+                "X-KDECONNECT-ID-DEV-0123456789abcdef:$it\nX-KDECONNECT-TIMESTAMP:${1700000000 + it}\nEND:VCARD"
+        }
+        this["uids"] = uids
+    }
+
+    private fun roundTrip(np: NetworkPacket, compress: Boolean): Pair<Int, NetworkPacket> {
+        val bytes = NetworkPacketWriter().also { it.write(np, compress) }.toByteArray()
+        val parser = NetworkPacketParser()
+        Assert.assertEquals(bytes.size, parser.feed(bytes, 0, bytes.size))
+        return bytes.size to parser.takePacket()!!
+    }
+
+    @Test
+    fun bigBodiesShrink() {
+        for (np in listOf(smsMessages(5000), contactVcards(2000))) {
+            val (plainSize, plain) = roundTrip(np, compress = false)
+            val (compressedSize, compressed) = roundTrip(np, compress = true)
+            Assert.assertTrue("${np.type}: $compressedSize bytes compressed, $plainSize not", compressedSize * 3 < plainSize)
+            Assert.assertEquals(plain.type, compressed.type)
+            for (key in listOf("messages", "uids", "contact-1999")) {
+                Assert.assertEquals(plain.has(key), compressed.has(key))
+            }
+            val written = String(NetworkPacketWriter().also { it.write(plain) }.toByteArray(), Charsets.UTF_8)
+            val rewritten = String(NetworkPacketWriter().also { it.write(compressed) }.toByteArray(), Charsets.UTF_8)
+            Assert.assertEquals(written.substringAfter(",\"type\""), rewritten.substringAfter(",\"type\""))
+        }
+    }
+
+    @Test
+    fun smallBodiesAreSentAsIs() {
+        val np = NetworkPacket("kdeconnect.ping").apply { this["message"] = "hi" }
+        val (plainSize, _) = roundTrip(np, compress = false)
+        val (compressedSize, _) = roundTrip(np, compress = true)
+        Assert.assertEquals(plainSize, compressedSize)
+    }
+
+    @Test
+    fun incompressibleBodiesAreSentAsIs() {
+        val random = java.util.Random(42)
+        val np = NetworkPacket("kdeconnect.test").apply {
+            this["noise"] = String(CharArray(64 * 1024) { ('!' + random.nextInt(90)) })
+        }
+        val bytes = NetworkPacketWriter().also { it.write(np, compressBody = true) }.toByteArray()
+        Assert.assertFalse(String(bytes, Charsets.UTF_8).contains(PacketBodyCompression.DEFLATED_BODY_KEY))
+    }
+}